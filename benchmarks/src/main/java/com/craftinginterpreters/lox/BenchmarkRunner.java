@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar </br>
+ * </br>
+ * Takes the usual JMH command line, but always adds the </br>
+ * GC profiler so allocation rates are reported next to </br>
+ * throughput. Imports in the corpus are looked up in the </br>
+ * lib/ directory given by -Dlox.lib (default: ./lib)
+ * 
+ * @author dragonfire
+ *
+ */
+public class BenchmarkRunner {
+	
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		
+		String lib = System.getProperty("lox.lib", "lib");
+		
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.jvmArgsAppend("-Dlox.lib=" + new java.io.File(lib).getAbsolutePath())
+				.addProfiler(GCProfiler.class)
+				.build();
+		
+		new Runner(options).run();
+		
+	}
+	
+}
@@ -0,0 +1,79 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The Lox programs the benchmarks run, stored as </br>
+ * resources under corpus/
+ * 
+ * @author dragonfire
+ *
+ */
+final class Corpus {
+	
+	private Corpus() {}
+	
+	static String source(String program) {
+		
+		try(InputStream in = Corpus.class.getResourceAsStream("/corpus/" + program + ".lox")) {
+			
+			if(in == null)
+				throw new IllegalArgumentException("No corpus program named '" + program + "'");
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			
+			int read;
+			while((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+			
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+			
+		} catch(IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+		
+	}
+	
+	static String file(String program) {
+		
+		return "corpus/" + program + ".lox";
+	}
+	
+	static List<Token> scan(String program) {
+		
+		return new Scanner(context(), file(program), source(program)).scanTokens();
+	}
+	
+	static List<Stmt> parse(String program) {
+		
+		return new Parser(context(), scan(program)).parse();
+	}
+	
+	/**
+	 * A context whose output goes nowhere, so the </br>
+	 * benchmarks measure the interpreter and not the terminal
+	 */
+	static LoxContext context() {
+		
+		return new LoxContext(new OutputChannel(new Writer() {
+			
+			@Override
+			public void write(char[] cbuf, int off, int len) {}
+			
+			@Override
+			public void flush() {}
+			
+			@Override
+			public void close() {}
+			
+		}, OutputChannel.FlushPolicy.FULL), Diagnostics.stderr(), new ModuleCache());
+		
+	}
+	
+}
@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs every program in the corpus with each {@link Engine}, </br>
+ * compiling included for the engines that compile, with and </br>
+ * without the optimizer, see {@link LoxContext#optimize}
+ *
+ * @author dragonfire
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EngineBenchmark {
+
+	@Param({ "fib", "binary_trees", "strings", "list", "dispatch", "loops", "numeric" })
+	public String program;
+
+	@Param({ "tree", "closures", "specializing", "vm" })
+	public String engine;
+
+	@Param({ "on", "off" })
+	public String optimizer;
+
+	private List<Stmt> parsed;
+	private List<Stmt> statements;
+
+	private LoxContext context;
+
+	@Setup(Level.Trial)
+	public void load() {
+
+		parsed = Corpus.parse(program);
+
+	}
+
+	/**
+	 * A fresh, already resolved interpreter for every run, </br>
+	 * like {@link PipelineBenchmark.Fresh}
+	 */
+	@Setup(Level.Invocation)
+	public void resolve() {
+
+		context = Corpus.context();
+		context.interpreter.engine = Engine.valueOf(engine.toUpperCase());
+		new Resolver(context).resolve(parsed);
+		statements = optimizer.equals("on") ? context.optimize(parsed) : parsed;
+
+	}
+
+	@Benchmark
+	public Interpreter interpret() {
+
+		context.interpreter.interpret(statements);
+		return context.interpreter;
+
+	}
+
+}
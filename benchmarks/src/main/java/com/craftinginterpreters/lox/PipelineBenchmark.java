@@ -0,0 +1,134 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each stage of the pipeline in {@link LoxContext#run} </br>
+ * separately, over every program in the corpus
+ * 
+ * @author dragonfire
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PipelineBenchmark {
+	
+	@Param({ "fib", "binary_trees", "strings", "list", "dispatch", "loops" })
+	public String program;
+	
+	private String file;
+	private String source;
+	private List<Token> tokens;
+	private List<Stmt> statements;
+	
+	private LoxContext context;
+	
+	@Setup(Level.Trial)
+	public void load() {
+		
+		file = Corpus.file(program);
+		source = Corpus.source(program);
+		tokens = Corpus.scan(program);
+		statements = Corpus.parse(program);
+		context = Corpus.context();
+		
+	}
+	
+	/**
+	 * The optimizer writes what it finds into the context, so </br>
+	 * every run of it gets a fresh, already resolved one
+	 */
+	@State(Scope.Thread)
+	public static class Resolved {
+		
+		LoxContext context;
+		List<Stmt> statements;
+		
+		@Setup(Level.Invocation)
+		public void resolve(PipelineBenchmark benchmark) {
+			
+			// JMH may hand this a different instance than the one running the benchmark
+			statements = benchmark.statements;
+			context = Corpus.context();
+			new Resolver(context).resolve(statements);
+			
+		}
+		
+	}
+	
+	/**
+	 * The interpreter keeps its globals between runs, so every </br>
+	 * run of the program gets a fresh one, with the statements </br>
+	 * already resolved and optimized like a script's are
+	 */
+	@State(Scope.Thread)
+	public static class Fresh {
+		
+		LoxContext context;
+		List<Stmt> statements;
+		
+		@Setup(Level.Invocation)
+		public void resolve(PipelineBenchmark benchmark) {
+			
+			context = Corpus.context();
+			new Resolver(context).resolve(benchmark.statements);
+			statements = context.optimize(benchmark.statements);
+			
+		}
+		
+	}
+	
+	@Benchmark
+	public List<Token> scanTokens() {
+		
+		return new Scanner(context, file, source).scanTokens();
+	}
+	
+	@Benchmark
+	public List<Stmt> parse() {
+		
+		return new Parser(context, tokens).parse();
+	}
+	
+	@Benchmark
+	public Resolver resolveStatements() {
+		
+		Resolver resolver = new Resolver(context);
+		resolver.resolve(statements);
+		return resolver;
+		
+	}
+	
+	@Benchmark
+	public List<Stmt> optimize(Resolved resolved) {
+		
+		return resolved.context.optimize(resolved.statements);
+	}
+	
+	@Benchmark
+	public Interpreter interpret(Fresh fresh) {
+		
+		fresh.context.interpreter.interpret(fresh.statements);
+		return fresh.context.interpreter;
+		
+	}
+	
+}
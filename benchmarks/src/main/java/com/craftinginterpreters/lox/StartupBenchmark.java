@@ -0,0 +1,113 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time from starting a new JVM running </br>
+ * {@link Lox} to its first statement having run: the </br>
+ * corpus' startup program imports a module and prints </br>
+ * once. Compares starting cold with starting from a </br>
+ * {@link StartupArchive} made by running it once
+ *
+ * @author dragonfire
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupBenchmark {
+	
+	@Param({ "cold", "archive" })
+	public String start;
+	
+	private Path directory;
+	private List<String> command;
+	
+	@Setup(Level.Trial)
+	public void prepare() throws IOException, InterruptedException {
+		
+		directory = Files.createTempDirectory("lox-startup");
+		
+		Path script = directory.resolve("startup.lox");
+		Files.write(script, Corpus.source("startup").getBytes(StandardCharsets.UTF_8));
+		
+		command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		
+		if(start.equals("archive")) {
+			
+			Path archive = directory.resolve("startup.jsa");
+			StartupArchive.create(archive, script.toString());
+			
+			command.add("-XX:SharedArchiveFile=" + archive);
+			command.add("-Xshare:auto");
+			
+		}
+		
+		command.add("-Dlox.lib=" + Lox.getLibLoc());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Lox.class.getName());
+		command.add(script.toString());
+		
+	}
+	
+	@TearDown(Level.Trial)
+	public void clean() throws IOException {
+		
+		for(String file : new String[] { "startup.lox", "startup.jsa" })
+			Files.deleteIfExists(directory.resolve(file));
+		Files.deleteIfExists(directory);
+		
+	}
+	
+	/**
+	 * Output is buffered until the script ends, which for </br>
+	 * this script is right after its first statement
+	 */
+	@Benchmark
+	public int firstStatement() throws IOException, InterruptedException {
+		
+		Process lox = new ProcessBuilder(command).redirectErrorStream(true).start();
+		
+		int read = 0;
+		try(InputStream output = lox.getInputStream()) {
+			byte[] buffer = new byte[256];
+			int chunk;
+			while((chunk = output.read(buffer)) != -1)
+				read += chunk;
+		}
+		
+		if(lox.waitFor() != 0)
+			throw new IllegalStateException("The startup program exited with " + lox.exitValue());
+		
+		return read;
+		
+	}
+	
+}
@@ -0,0 +1,705 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Compiles the body of a function into bytecode for the {@link Vm}
+ * </p>
+ *
+ * <p>
+ * Only a function that keeps every local in its frame can run </br>
+ * there, since the registers are all a call has. Its frame </br>
+ * slots are its first registers, and each expression gets the </br>
+ * register its value goes in. Temporaries are taken above the </br>
+ * frame slots and given back as soon as the expression using </br>
+ * them is done
+ * </p>
+ *
+ * <p>
+ * Closures, classes, <b>this</b>, <b>super</b>, <b>try</b>, </br>
+ * <b>throw</b> and anything in an environment aren't compiled, </br>
+ * the whole function is then left to the closure compiler
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class Assembler implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+	
+	// Thrown when the body has something the Vm can't run
+	private static final class Unsupported extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Unsupported() {
+			
+			super(null, null, false, false);
+		}
+		
+	}
+	
+	private static final Unsupported UNSUPPORTED = new Unsupported();
+	
+	private final Interpreter resolutions;
+	
+	private int[] code;
+	private int size;
+	private final List<Token> tokens;
+	private final List<Long> constants;
+	private final List<String> strings;
+	
+	// The next free register, and the most any expression used
+	private int next;
+	private int registers;
+	
+	// Where the value of the expression being compiled goes, -1 if nowhere
+	private int target;
+	
+	private Assembler(Interpreter resolutions, int frameSize) {
+		
+		this.resolutions = resolutions;
+		this.code = new int[16 * Vm.WIDTH];
+		this.size = 0;
+		this.tokens = new ArrayList<>();
+		this.constants = new ArrayList<>();
+		this.strings = new ArrayList<>();
+		this.next = frameSize;
+		this.registers = frameSize;
+		this.target = -1;
+		
+	}
+	
+	/**
+	 * @return the body compiled, or null if the Vm can't run it
+	 */
+	static Vm.Program assemble(Interpreter resolutions, List<Stmt> body, int frameSize, int[] parameterSlots) {
+		
+		for(int slot : parameterSlots)
+			if(slot < 0)
+				return null;
+		
+		Assembler assembler = new Assembler(resolutions, frameSize);
+		
+		try {
+			for(Stmt statement : body)
+				statement.accept(assembler);
+		} catch(Unsupported unsupported) {
+			return null;
+		}
+		
+		assembler.emit(Vm.RETURN_NIL, 0, 0, 0, null);
+		
+		long[] constants = new long[assembler.constants.size()];
+		for(int i = 0; i < constants.length; i++)
+			constants[i] = assembler.constants.get(i);
+		
+		// The constants go in the registers after the temporaries
+		int[] code = Arrays.copyOf(assembler.code, assembler.size);
+		for(int i = 0; i < code.length; i++)
+			if(i % Vm.WIDTH != 0 && code[i] < 0)
+				code[i] = assembler.registers + ~code[i];
+		
+		return new Vm.Program(code, constants, assembler.strings.toArray(new String[0]),
+				assembler.tokens.toArray(new Token[0]), assembler.registers + constants.length, parameterSlots);
+		
+	}
+	
+	/**
+	 * @return where the instruction is, to patch its jump
+	 */
+	private int emit(int opcode, int a, int b, int c, Token token) {
+		
+		if(size == code.length)
+			code = Arrays.copyOf(code, size * 2);
+		
+		code[size] = opcode;
+		code[size + 1] = a;
+		code[size + 2] = b;
+		code[size + 3] = c;
+		tokens.add(token);
+		
+		size += Vm.WIDTH;
+		
+		return size - Vm.WIDTH;
+		
+	}
+	
+	/**
+	 * Makes the jump at the instruction go to the next one emitted
+	 */
+	private void patch(int jump) {
+		
+		code[jump + 3] = size;
+	}
+	
+	private int temporary() {
+		
+		registers = Math.max(registers, next + 1);
+		return next++;
+		
+	}
+	
+	private void compile(Expr expr, int target) {
+		
+		int enclosing = this.target;
+		this.target = target;
+		
+		expr.accept(this);
+		
+		this.target = enclosing;
+		
+	}
+	
+	/**
+	 * @return a register holding the value of the expression, the </br>
+	 *         variable's own if it's a local nothing after it </br>
+	 *         assigns, or the constant's if it's a literal
+	 */
+	private int operand(Expr expr, boolean assignedAfter) {
+		
+		Integer slot = slot(expr);
+		if(slot != null && !assignedAfter)
+			return slot;
+		
+		while(expr instanceof Expr.Grouping)
+			expr = ((Expr.Grouping) expr).expression;
+		
+		if(expr instanceof Expr.Literal && !(((Expr.Literal) expr).value instanceof String))
+			return constant(((Expr.Literal) expr).value);
+		
+		int register = temporary();
+		compile(expr, register);
+		
+		return register;
+		
+	}
+	
+	/**
+	 * @return the frame slot of a local variable, null if it's </br>
+	 *         a global or not a variable. Anything in an </br>
+	 *         environment isn't compiled
+	 */
+	private Integer slot(Expr expr) {
+		
+		while(expr instanceof Expr.Grouping)
+			expr = ((Expr.Grouping) expr).expression;
+		
+		if(!(expr instanceof Expr.Variable))
+			return null;
+		
+		Integer distance = resolutions.distance(expr);
+		if(distance != null && distance >= 0)
+			throw UNSUPPORTED;
+		
+		return (distance == null) ? null : ~distance;
+		
+	}
+	
+	/**
+	 * @return whether evaluating the expression can assign a local
+	 */
+	private static boolean assigns(Expr expr) {
+		
+		if(expr instanceof Expr.Variable || expr instanceof Expr.Literal)
+			return false;
+		if(expr instanceof Expr.Grouping)
+			return assigns(((Expr.Grouping) expr).expression);
+		if(expr instanceof Expr.Unary)
+			return assigns(((Expr.Unary) expr).right);
+		if(expr instanceof Expr.Binary)
+			return assigns(((Expr.Binary) expr).left) || assigns(((Expr.Binary) expr).right);
+		if(expr instanceof Expr.Logical)
+			return assigns(((Expr.Logical) expr).left) || assigns(((Expr.Logical) expr).right);
+		if(expr instanceof Expr.Get)
+			return assigns(((Expr.Get) expr).object);
+		
+		if(expr instanceof Expr.Call) {
+			Expr.Call call = (Expr.Call) expr;
+			return assigns(call.callee) || call.arguments.stream().anyMatch(Assembler::assigns);
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * @return the jump taken when the condition is false
+	 */
+	private int jumpUnless(Expr condition) {
+		
+		while(condition instanceof Expr.Grouping)
+			condition = ((Expr.Grouping) condition).expression;
+		
+		int mark = next;
+		
+		if(condition instanceof Expr.Binary) {
+			
+			Expr.Binary binary = (Expr.Binary) condition;
+			int opcode = -1;
+			
+			switch(binary.operator.type) {
+			case LESS:
+				opcode = Vm.JUMP_UNLESS_LESS;
+				break;
+			case LESS_EQUAL:
+				opcode = Vm.JUMP_UNLESS_LESS_EQUAL;
+				break;
+			case GREATER:
+				opcode = Vm.JUMP_UNLESS_GREATER;
+				break;
+			case GREATER_EQUAL:
+				opcode = Vm.JUMP_UNLESS_GREATER_EQUAL;
+				break;
+			default:
+			}
+			
+			if(opcode >= 0) {
+				
+				int left = operand(binary.left, assigns(binary.right));
+				int right = operand(binary.right, false);
+				next = mark;
+				
+				return emit(opcode, left, right, -1, binary.operator);
+				
+			}
+			
+		}
+		
+		int value = operand(condition, false);
+		next = mark;
+		
+		return emit(Vm.JUMP_IF_FALSE, value, 0, -1, null);
+		
+	}
+	
+	/**
+	 * @return the register the number, boolean or <b>nil</b> is </br>
+	 *         kept in, numbered ~index until every temporary is known
+	 */
+	private int constant(Object value) {
+		
+		long bits;
+		
+		if(value instanceof Double)
+			bits = Double.doubleToLongBits((double) value);
+		else if(value instanceof Boolean)
+			bits = Value.bool((boolean) value);
+		else if(value == null)
+			bits = Value.NIL;
+		else
+			throw UNSUPPORTED;
+		
+		int index = constants.indexOf(bits);
+		if(index < 0) {
+			constants.add(bits);
+			index = constants.size() - 1;
+		}
+		
+		return ~index;
+		
+	}
+	
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		
+		for(Stmt statement : stmt.statements)
+			statement.accept(this);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitCatchStmt(Stmt.Catch stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitExitStmt(Stmt.Exit stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		
+		int mark = next;
+		
+		// Nothing needs the value of an assignment made on its own
+		if(stmt.expression instanceof Expr.Assign || stmt.expression instanceof Expr.Set)
+			compile(stmt.expression, -1);
+		else
+			compile(stmt.expression, temporary());
+		
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		
+		int otherwise = jumpUnless(stmt.condition);
+		stmt.thenBranch.accept(this);
+		
+		if(stmt.elseBranch == null) {
+			patch(otherwise);
+			return null;
+		}
+		
+		int end = emit(Vm.JUMP, 0, 0, -1, null);
+		patch(otherwise);
+		stmt.elseBranch.accept(this);
+		patch(end);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitImportStmt(Stmt.Import stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitIncludeStmt(Stmt.Include stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		
+		int mark = next;
+		
+		emit(Vm.PRINT, operand(stmt.expression, false), 0, 0, stmt.keyword);
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		
+		if(stmt.value == null) {
+			emit(Vm.RETURN_NIL, 0, 0, 0, stmt.keyword);
+			return null;
+		}
+		
+		int mark = next;
+		
+		emit(Vm.RETURN, operand(stmt.value, false), 0, 0, stmt.keyword);
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitThrowStmt(Stmt.Throw stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitTryStmt(Stmt.Try stmt) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		
+		if(stmt.slot < 0)
+			throw UNSUPPORTED;
+		
+		int enclosing = target;
+		target = stmt.slot;
+		
+		if(stmt.initializer == null)
+			emit(Vm.MOVE, target, constant(null), 0, null);
+		else
+			// Nothing reads the variable in its own initializer
+			stmt.initializer.accept(this);
+		
+		target = enclosing;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		
+		int start = size;
+		int exit = jumpUnless(stmt.condition);
+		
+		stmt.body.accept(this);
+		
+		emit(Vm.JUMP, 0, 0, start, null);
+		patch(exit);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		
+		Integer distance = resolutions.distance(expr);
+		
+		if(distance != null && distance >= 0)
+			throw UNSUPPORTED;
+		
+		int mark = next;
+		
+		if(distance == null) {
+			
+			int value = (target < 0) ? temporary() : target;
+			compile(expr.value, value);
+			emit(Vm.SET_GLOBAL, value, 0, 0, expr.name);
+			
+		} else {
+			
+			int slot = ~distance;
+			Expr value = expr.value;
+			while(value instanceof Expr.Grouping)
+				value = ((Expr.Grouping) value).expression;
+			
+			// Logical operators put their left operand in before they're done with the variable
+			if(value instanceof Expr.Logical) {
+				int register = temporary();
+				compile(value, register);
+				emit(Vm.MOVE, slot, register, 0, null);
+			} else
+				compile(value, slot);
+			
+			if(target >= 0 && target != slot)
+				emit(Vm.MOVE, target, slot, 0, null);
+			
+		}
+		
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		
+		int opcode;
+		
+		switch(expr.operator.type) {
+		case PLUS:
+			opcode = Vm.ADD;
+			break;
+		case MINUS:
+			opcode = Vm.SUBTRACT;
+			break;
+		case STAR:
+			opcode = Vm.MULTIPLY;
+			break;
+		case SLASH:
+			opcode = Vm.DIVIDE;
+			break;
+		case LESS:
+			opcode = Vm.LESS;
+			break;
+		case LESS_EQUAL:
+			opcode = Vm.LESS_EQUAL;
+			break;
+		case GREATER:
+			opcode = Vm.GREATER;
+			break;
+		case GREATER_EQUAL:
+			opcode = Vm.GREATER_EQUAL;
+			break;
+		case EQUAL_EQUAL:
+			opcode = Vm.EQUAL;
+			break;
+		case BANG_EQUAL:
+			opcode = Vm.NOT_EQUAL;
+			break;
+		default:
+			throw UNSUPPORTED;
+		}
+		
+		int mark = next;
+		
+		int left = operand(expr.left, assigns(expr.right));
+		int right = operand(expr.right, false);
+		emit(opcode, target, left, right, expr.operator);
+		
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		
+		int mark = next;
+		
+		int callee = temporary();
+		compile(expr.callee, callee);
+		
+		// The arguments go in the registers right after the callee
+		for(Expr argument : expr.arguments)
+			compile(argument, temporary());
+		
+		emit(Vm.CALL, target, callee, expr.arguments.size(), expr.paren);
+		
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		
+		int mark = next;
+		
+		emit(Vm.GET, target, operand(expr.object, false), 0, expr.name);
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		
+		expr.expression.accept(this);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitLambdaExpr(Expr.Lambda expr) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		
+		Object value = expr.value;
+		
+		if(value instanceof String) {
+			strings.add((String) value);
+			emit(Vm.STRING, target, strings.size() - 1, 0, null);
+		} else
+			emit(Vm.MOVE, target, constant(value), 0, null);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		
+		boolean or = expr.operator.type == TokenType.OR || expr.operator.type == TokenType.PIPE;
+		
+		compile(expr.left, target);
+		int end = emit(or ? Vm.JUMP_IF_TRUE : Vm.JUMP_IF_FALSE, target, 0, -1, null);
+		compile(expr.right, target);
+		patch(end);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		
+		int mark = next;
+		
+		int object = operand(expr.object, assigns(expr.value));
+		emit(Vm.INSTANCE, object, 0, 0, expr.name);
+		
+		int value = operand(expr.value, false);
+		emit(Vm.SET, object, value, 0, expr.name);
+		
+		if(target >= 0)
+			emit(Vm.MOVE, target, value, 0, null);
+		
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		
+		throw UNSUPPORTED;
+	}
+	
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		
+		int opcode;
+		
+		switch(expr.operator.type) {
+		case MINUS:
+			opcode = Vm.NEGATE;
+			break;
+		case BANG:
+			opcode = Vm.NOT;
+			break;
+		default:
+			throw UNSUPPORTED;
+		}
+		
+		int mark = next;
+		
+		emit(opcode, target, operand(expr.right, false), 0, expr.operator);
+		next = mark;
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		
+		Integer slot = slot(expr);
+		
+		if(slot == null)
+			emit(Vm.GLOBAL, target, 0, 0, expr.name);
+		else if(slot != target)
+			emit(Vm.MOVE, target, slot, 0, null);
+		
+		return null;
+		
+	}
+	
+}
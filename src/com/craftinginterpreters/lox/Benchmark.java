@@ -0,0 +1,180 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * The native <b>bench(fn, iterations)</b> micro-benchmark harness
+ * </p>
+ *
+ * <p>
+ * Calls <b>fn</b> (which takes no arguments) <b>iterations</b> times </br>
+ * per batch. The first {@link #WARMUP_BATCHES} batches give the JVM a </br>
+ * chance to compile the interpreter paths the function uses and are </br>
+ * thrown away, then {@link #MEASURED_BATCHES} batches are timed with </br>
+ * {@link System#nanoTime()}.
+ * </p>
+ *
+ * <p>
+ * The time per call of each batch is a sample. The mean, standard </br>
+ * deviation and percentiles of the samples are printed as a table </br>
+ * and returned as a <b>BenchResult</b> with the fields mean, stddev, </br>
+ * min, p50, p90, max (all in nanoseconds), batches and iterations. </br>
+ * There's no p99: out of {@link #MEASURED_BATCHES} samples it would </br>
+ * only be the max again
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class Benchmark implements LoxCallable {
+	
+	static final int WARMUP_BATCHES = 5;
+	static final int MEASURED_BATCHES = 20;
+	
+	private static final LoxClass BENCH_RESULT = new LoxClass("BenchResult", null, new HashMap<>());
+	
+	@Override
+	public Object call(Interpreter interpreter, List<Object> arguments) {
+		
+		Object function = arguments.get(0);
+		Object count = arguments.get(1);
+		
+		if(!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != 0)
+			throw new InterpreterRuntimeError("Can only benchmark functions that take no arguments");
+		
+		if(!(count instanceof Double) || (double) count < 1 || (double) count != Math.floor((double) count))
+			throw new InterpreterRuntimeError("Iterations must be a positive integer");
+		
+		LoxCallable callable = (LoxCallable) function;
+		long iterations = (long) (double) count;
+		List<Object> noArguments = new ArrayList<>();
+		
+		for(int batch = 0; batch < WARMUP_BATCHES; batch++)
+			runBatch(interpreter, callable, noArguments, iterations);
+		
+		double[] samples = new double[MEASURED_BATCHES];
+		for(int batch = 0; batch < MEASURED_BATCHES; batch++)
+			samples[batch] = (double) runBatch(interpreter, callable, noArguments, iterations) / iterations;
+		
+		LoxInstance result = summarize(samples, iterations);
+		
+		interpreter.output.print(table(callable, result));
+		
+		return result;
+		
+	}
+	
+	@Override
+	public int arity() {
+		
+		return 2;
+	}
+	
+	@Override
+	public String toString() {
+		
+		return "<native fn bench>";
+	}
+	
+	private long runBatch(Interpreter interpreter, LoxCallable function, List<Object> arguments, long iterations) {
+		
+		long start = System.nanoTime();
+		
+		for(long i = 0; i < iterations; i++)
+			function.call(interpreter, arguments);
+		
+		return System.nanoTime() - start;
+		
+	}
+	
+	private LoxInstance summarize(double[] samples, long iterations) {
+		
+		double mean = 0;
+		for(double sample : samples)
+			mean += sample;
+		mean /= samples.length;
+		
+		double variance = 0;
+		for(double sample : samples)
+			variance += (sample - mean) * (sample - mean);
+		variance /= (samples.length > 1) ? samples.length - 1 : 1;
+		
+		double[] sorted = Arrays.copyOf(samples, samples.length);
+		Arrays.sort(sorted);
+		
+		LoxInstance result = new LoxInstance(BENCH_RESULT);
+		
+		set(result, "mean", mean);
+		set(result, "stddev", Math.sqrt(variance));
+		set(result, "min", sorted[0]);
+		set(result, "p50", percentile(sorted, 50));
+		set(result, "p90", percentile(sorted, 90));
+		set(result, "max", sorted[sorted.length - 1]);
+		set(result, "batches", (double) samples.length);
+		set(result, "iterations", (double) iterations);
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Nearest-rank percentile of already sorted samples
+	 */
+	private double percentile(double[] sorted, int percentile) {
+		
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+		
+	}
+	
+	private String table(LoxCallable function, LoxInstance result) {
+		
+		String[] columns = { "mean", "stddev", "min", "p50", "p90", "max" };
+		
+		StringBuilder table = new StringBuilder();
+		
+		table.append("bench ").append(function).append(": ")
+			.append(MEASURED_BATCHES).append(" batches x ")
+			.append((long) get(result, "iterations")).append(" iterations, time per call\n");
+		
+		for(String column : columns)
+			table.append(String.format("%12s", column));
+		table.append('\n');
+		
+		for(String column : columns)
+			table.append(String.format("%12s", format(get(result, column))));
+		table.append('\n');
+		
+		return table.toString();
+		
+	}
+	
+	private String format(double nanos) {
+		
+		if(nanos >= 1e9)
+			return String.format("%.3f s", nanos / 1e9);
+		if(nanos >= 1e6)
+			return String.format("%.3f ms", nanos / 1e6);
+		if(nanos >= 1e3)
+			return String.format("%.3f us", nanos / 1e3);
+		return String.format("%.1f ns", nanos);
+		
+	}
+	
+	private void set(LoxInstance instance, String field, double value) {
+		
+		instance.set(new Token("", "", TokenType.IDENTIFIER, field, null, 0), value);
+	}
+	
+	private double get(LoxInstance instance, String field) {
+		
+		return (double) instance.get(new Token("", "", TokenType.IDENTIFIER, field, null, 0));
+	}
+	
+}
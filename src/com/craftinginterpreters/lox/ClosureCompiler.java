@@ -0,0 +1,792 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * Compiles resolved statements once into a tree of small </br>
+ * closures that are linked to each other directly, instead </br>
+ * of visiting the AST every time it runs
+ * </p>
+ *
+ * <p>
+ * Everything the tree walker looks up on every visit is </br>
+ * decided here, once: which operator a binary expression </br>
+ * is, how many scopes out or in which slot of the frame </br>
+ * a variable lives, how many arguments a call passes. </br>
+ * Running a closure is then a single interface call with </br>
+ * no double dispatch and no switch, and functions declared </br>
+ * in compiled code run their compiled bodies
+ * </p>
+ *
+ * <p>
+ * The closures take the interpreter and environment they </br>
+ * run in as arguments, so one compiled function can run </br>
+ * in every interpreter forked from a snapshot
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.CompiledExpr>, Stmt.Visitor<ClosureCompiler.CompiledStmt> {
+	
+	interface CompiledExpr {
+		Object evaluate(Interpreter interpreter, Environment environment);
+	}
+	
+	interface CompiledStmt {
+		void execute(Interpreter interpreter, Environment environment);
+	}
+	
+	// An expression type inference proved is always a number, unboxed
+	interface CompiledNumber {
+		double evaluate(Interpreter interpreter, Environment environment);
+	}
+	
+	// Only used for the resolver's side table, compiled code runs in any interpreter
+	final Interpreter resolutions;
+	
+	ClosureCompiler(Interpreter resolutions) {
+		
+		this.resolutions = resolutions;
+	}
+	
+	CompiledStmt compile(Stmt stmt) {
+		
+		return stmt.accept(this);
+	}
+	
+	CompiledExpr compile(Expr expr) {
+		
+		return expr.accept(this);
+	}
+	
+	/**
+	 * Compiles an expression that's always a number. Arithmetic </br>
+	 * on operands that are always numbers stays unboxed all the </br>
+	 * way down, anything else gets unboxed once it's evaluated
+	 */
+	CompiledNumber number(Expr expr) {
+		
+		if(expr instanceof Expr.Literal) {
+			double value = (double) ((Expr.Literal) expr).value;
+			return (interpreter, environment) -> value;
+		}
+		
+		if(expr instanceof Expr.Grouping)
+			return number(((Expr.Grouping) expr).expression);
+		
+		if(expr instanceof Expr.Unary && ((Expr.Unary) expr).right.type == LoxType.NUMBER) {
+			CompiledNumber right = number(((Expr.Unary) expr).right);
+			return (interpreter, environment) -> -right.evaluate(interpreter, environment);
+		}
+		
+		if(expr instanceof Expr.Binary && numbers((Expr.Binary) expr)) {
+			
+			Expr.Binary binary = (Expr.Binary) expr;
+			CompiledNumber left = number(binary.left);
+			CompiledNumber right = number(binary.right);
+			
+			switch(binary.operator.type) {
+			case MINUS:
+				return (interpreter, environment) -> left.evaluate(interpreter, environment)
+						- right.evaluate(interpreter, environment);
+			case STAR:
+				return (interpreter, environment) -> left.evaluate(interpreter, environment)
+						* right.evaluate(interpreter, environment);
+			case SLASH:
+				return (interpreter, environment) -> left.evaluate(interpreter, environment)
+						/ right.evaluate(interpreter, environment);
+			case PLUS:
+				return (interpreter, environment) -> left.evaluate(interpreter, environment)
+						+ right.evaluate(interpreter, environment);
+			default:
+			}
+			
+		}
+		
+		CompiledExpr value = compile(expr);
+		return (interpreter, environment) -> (double) value.evaluate(interpreter, environment);
+		
+	}
+	
+	/**
+	 * @return whether both operands are always numbers, so </br>
+	 *         the operator needs no checks
+	 */
+	static boolean numbers(Expr.Binary expr) {
+		
+		return expr.left.type == LoxType.NUMBER && expr.right.type == LoxType.NUMBER;
+	}
+	
+	/**
+	 * @return the statements run one after another in the </br>
+	 *         environment they're given
+	 */
+	CompiledStmt compile(List<Stmt> statements) {
+		
+		CompiledStmt[] compiled = new CompiledStmt[statements.size()];
+		for(int i = 0; i < compiled.length; i++)
+			compiled[i] = compile(statements.get(i));
+		
+		if(compiled.length == 1)
+			return compiled[0];
+		
+		return (interpreter, environment) -> {
+			for(CompiledStmt statement : compiled)
+				statement.execute(interpreter, environment);
+		};
+		
+	}
+	
+	/**
+	 * @return the body of a function, run by its calls
+	 */
+	CompiledStmt body(Stmt.Function stmt) {
+		
+		return compile(stmt.body);
+	}
+	
+	CompiledStmt body(Expr.Lambda expr) {
+		
+		return compile(expr.body);
+	}
+	
+	@Override
+	public CompiledStmt visitBlockStmt(Stmt.Block stmt) {
+		
+		CompiledStmt body = compile(stmt.statements);
+		
+		if(stmt.sharesScope)
+			return body;
+		
+		return (interpreter, environment) -> body.execute(interpreter, new Environment(environment));
+		
+	}
+	
+	@Override
+	public CompiledStmt visitCatchStmt(Stmt.Catch stmt) {
+		
+		return compile(stmt.body);
+	}
+	
+	@Override
+	public CompiledStmt visitClassStmt(Stmt.Class stmt) {
+		
+		Token name = stmt.name;
+		CompiledExpr superclassExpr = (stmt.superclass == null) ? null : compile(stmt.superclass);
+		
+		int count = stmt.methods.size();
+		Stmt.Function[] declarations = stmt.methods.toArray(new Stmt.Function[count]);
+		CompiledStmt[] bodies = new CompiledStmt[count];
+		for(int i = 0; i < count; i++)
+			bodies[i] = compile(declarations[i].body);
+		
+		return (interpreter, environment) -> {
+			
+			LoxClass superclass = null;
+			
+			if(superclassExpr != null) {
+				Object value = superclassExpr.evaluate(interpreter, environment);
+				if(!(value instanceof LoxClass))
+					throw new InterpreterRuntimeError(stmt.superclass.name, "Superclass must be a class");
+				superclass = (LoxClass) value;
+			}
+			
+			environment.define(name.lexeme, null);
+			
+			Environment scope = environment;
+			if(superclass != null) {
+				scope = new Environment(environment);
+				scope.define("super", superclass);
+			}
+			
+			Map<String, LoxFunction> methods = new HashMap<>();
+			for(int i = 0; i < count; i++) {
+				String method = declarations[i].name.lexeme;
+				methods.put(method, new LoxFunction(declarations[i], scope, method.equals("init"), bodies[i]));
+			}
+			
+			environment.assign(name, new LoxClass(name.lexeme, superclass, methods));
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitExitStmt(Stmt.Exit stmt) {
+		
+		Token keyword = stmt.keyword;
+		
+		if(stmt.exitCode == null)
+			return (interpreter, environment) -> {
+				throw new ExitCode(keyword);
+			};
+		
+		CompiledExpr exitCode = compile(stmt.exitCode);
+		return (interpreter, environment) -> {
+			throw new ExitCode(keyword, exitCode.evaluate(interpreter, environment));
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitExpressionStmt(Stmt.Expression stmt) {
+		
+		CompiledExpr expression = compile(stmt.expression);
+		return (interpreter, environment) -> expression.evaluate(interpreter, environment);
+		
+	}
+	
+	@Override
+	public CompiledStmt visitFunctionStmt(Stmt.Function stmt) {
+		
+		String name = stmt.name.lexeme;
+		CompiledStmt body = body(stmt);
+		
+		int slot = stmt.slot;
+		if(slot >= 0)
+			return (interpreter, environment) -> interpreter.frame[slot] = new LoxFunction(stmt, environment, false, body);
+		
+		return (interpreter, environment) -> environment.define(name, new LoxFunction(stmt, environment, false, body));
+		
+	}
+	
+	@Override
+	public CompiledStmt visitIfStmt(Stmt.If stmt) {
+		
+		CompiledExpr condition = compile(stmt.condition);
+		CompiledStmt thenBranch = compile(stmt.thenBranch);
+		
+		if(stmt.elseBranch == null)
+			return (interpreter, environment) -> {
+				if(interpreter.isTruthy(condition.evaluate(interpreter, environment)))
+					thenBranch.execute(interpreter, environment);
+			};
+		
+		CompiledStmt elseBranch = compile(stmt.elseBranch);
+		return (interpreter, environment) -> {
+			if(interpreter.isTruthy(condition.evaluate(interpreter, environment)))
+				thenBranch.execute(interpreter, environment);
+			else
+				elseBranch.execute(interpreter, environment);
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitImportStmt(Stmt.Import stmt) {
+		
+		CompiledStmt body = compile(stmt.body);
+		
+		return (interpreter, environment) -> {
+			if(interpreter.runsImport(stmt, environment))
+				body.execute(interpreter, environment);
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitIncludeStmt(Stmt.Include stmt) {
+		
+		return compile(stmt.body);
+	}
+	
+	@Override
+	public CompiledStmt visitPrintStmt(Stmt.Print stmt) {
+		
+		CompiledExpr expression = compile(stmt.expression);
+		return (interpreter, environment) -> interpreter.output.print(interpreter.stringify(expression.evaluate(interpreter, environment)));
+		
+	}
+	
+	@Override
+	public CompiledStmt visitReturnStmt(Stmt.Return stmt) {
+		
+		if(stmt.value == null)
+			return (interpreter, environment) -> {
+				throw new Return(null);
+			};
+		
+		CompiledExpr value = compile(stmt.value);
+		return (interpreter, environment) -> {
+			throw new Return(value.evaluate(interpreter, environment));
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitThrowStmt(Stmt.Throw stmt) {
+		
+		Token keyword = stmt.keyword;
+		CompiledExpr thrown = compile(stmt.thrown);
+		
+		return (interpreter, environment) -> {
+			throw interpreter.thrown(keyword, thrown.evaluate(interpreter, environment));
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitTryStmt(Stmt.Try stmt) {
+		
+		CompiledStmt body = compile(stmt.body);
+		CompiledStmt finallyStmt = (stmt.finallyStmt == null) ? null : compile(stmt.finallyStmt);
+		
+		Stmt.Catch[] catches = stmt.catches.toArray(new Stmt.Catch[0]);
+		CompiledStmt[] handlers = new CompiledStmt[catches.length];
+		for(int i = 0; i < catches.length; i++)
+			handlers[i] = compile(catches[i]);
+		
+		return (interpreter, environment) -> {
+			
+			try {
+				body.execute(interpreter, environment);
+			} catch(RuntimeError error) {
+				
+				if(error instanceof InterpreterRuntimeError && !((InterpreterRuntimeError) error).catchable)
+					throw error;
+				
+				for(int i = 0; i < catches.length; i++) {
+					if(interpreter.errorMatches(catches[i], error)) {
+						
+						Environment scope = new Environment(environment);
+						scope.define(catches[i].identifier.lexeme, interpreter.caught(error, catches[i], scope));
+						
+						handlers[i].execute(interpreter, scope);
+						
+					}
+				}
+				
+			} finally {
+				if(finallyStmt != null)
+					finallyStmt.execute(interpreter, environment);
+			}
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitVarStmt(Stmt.Var stmt) {
+		
+		String name = stmt.name.lexeme;
+		int slot = stmt.slot;
+		
+		if(stmt.initializer == null) {
+			
+			if(slot >= 0)
+				return (interpreter, environment) -> interpreter.frame[slot] = null;
+			
+			return (interpreter, environment) -> environment.define(name, null);
+			
+		}
+		
+		CompiledExpr initializer = compile(stmt.initializer);
+		
+		if(slot >= 0)
+			return (interpreter, environment) -> interpreter.frame[slot] = initializer.evaluate(interpreter, environment);
+		
+		return (interpreter, environment) -> environment.define(name, initializer.evaluate(interpreter, environment));
+		
+	}
+	
+	@Override
+	public CompiledStmt visitWhileStmt(Stmt.While stmt) {
+		
+		Token keyword = stmt.keyword;
+		CompiledExpr condition = compile(stmt.condition);
+		CompiledStmt body = compile(stmt.body);
+		
+		return (interpreter, environment) -> {
+			
+			int stackNum = interpreter.incrementStack(keyword);
+			
+			while(interpreter.isTruthy(condition.evaluate(interpreter, environment)))
+				body.execute(interpreter, environment);
+			
+			interpreter.decrementStack(stackNum);
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitAssignExpr(Expr.Assign expr) {
+		
+		Token name = expr.name;
+		CompiledExpr value = compile(expr.value);
+		Integer distance = resolutions.distance(expr);
+		
+		if(distance == null)
+			return (interpreter, environment) -> {
+				Object assigned = value.evaluate(interpreter, environment);
+				interpreter.globals.assign(name, assigned);
+				return assigned;
+			};
+		
+		if(distance < 0) {
+			int slot = ~distance;
+			return (interpreter, environment) -> interpreter.frame[slot] = value.evaluate(interpreter, environment);
+		}
+		
+		int depth = distance;
+		return (interpreter, environment) -> {
+			Object assigned = value.evaluate(interpreter, environment);
+			interpreter.writableScope(environment, depth).assignAt(0, name, assigned);
+			return assigned;
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+		
+		if(numbers(expr))
+			switch(expr.operator.type) {
+			case GREATER:
+			case GREATER_EQUAL:
+			case LESS:
+			case LESS_EQUAL:
+				return compare(expr);
+			case MINUS:
+			case STAR:
+			case SLASH:
+			case PLUS:
+				// Boxed once, at the top of the arithmetic
+				CompiledNumber value = number(expr);
+				return (interpreter, environment) -> value.evaluate(interpreter, environment);
+			default:
+			}
+		
+		Token operator = expr.operator;
+		CompiledExpr left = compile(expr.left);
+		CompiledExpr right = compile(expr.right);
+		
+		switch(operator.type) {
+		case EQUAL_EQUAL:
+			return (interpreter, environment) -> interpreter.isEqual(left.evaluate(interpreter, environment),
+					right.evaluate(interpreter, environment));
+		case BANG_EQUAL:
+			return (interpreter, environment) -> !interpreter.isEqual(left.evaluate(interpreter, environment),
+					right.evaluate(interpreter, environment));
+		case GREATER:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a > (double) b;
+			};
+		case GREATER_EQUAL:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a >= (double) b;
+			};
+		case LESS:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a < (double) b;
+			};
+		case LESS_EQUAL:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a <= (double) b;
+			};
+		case MINUS:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a - (double) b;
+			};
+		case STAR:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a * (double) b;
+			};
+		case SLASH:
+			return (interpreter, environment) -> {
+				Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return (double) a / (double) b;
+			};
+		case PLUS:
+			return (interpreter, environment) -> add(interpreter, operator, left.evaluate(interpreter, environment),
+					right.evaluate(interpreter, environment));
+		default:
+			throw new IllegalStateException("Unknown binary operator " + operator.type);
+		}
+		
+	}
+	
+	private CompiledExpr compare(Expr.Binary expr) {
+		
+		CompiledNumber left = number(expr.left);
+		CompiledNumber right = number(expr.right);
+		
+		switch(expr.operator.type) {
+		case GREATER:
+			return (interpreter, environment) -> left.evaluate(interpreter, environment)
+					> right.evaluate(interpreter, environment);
+		case GREATER_EQUAL:
+			return (interpreter, environment) -> left.evaluate(interpreter, environment)
+					>= right.evaluate(interpreter, environment);
+		case LESS:
+			return (interpreter, environment) -> left.evaluate(interpreter, environment)
+					< right.evaluate(interpreter, environment);
+		case LESS_EQUAL:
+			return (interpreter, environment) -> left.evaluate(interpreter, environment)
+					<= right.evaluate(interpreter, environment);
+		default:
+			throw new IllegalStateException("Not a comparison " + expr.operator.type);
+		}
+		
+	}
+	
+	@Override
+	public CompiledExpr visitCallExpr(Expr.Call expr) {
+		
+		Token paren = expr.paren;
+		CompiledExpr callee = compile(expr.callee);
+		
+		int count = expr.arguments.size();
+		CompiledExpr[] arguments = new CompiledExpr[count];
+		for(int i = 0; i < count; i++)
+			arguments[i] = compile(expr.arguments.get(i));
+		
+		return (interpreter, environment) -> {
+			
+			int stackNum = interpreter.incrementStack(paren);
+			
+			Object value = callee.evaluate(interpreter, environment);
+			
+			List<Object> values = new ArrayList<>(count);
+			for(CompiledExpr argument : arguments)
+				values.add(argument.evaluate(interpreter, environment));
+			
+			Object result = call(interpreter, environment, paren, value, values);
+			
+			interpreter.decrementStack(stackNum);
+			
+			return result;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitGetExpr(Expr.Get expr) {
+		
+		Token name = expr.name;
+		CompiledExpr object = compile(expr.object);
+		
+		return (interpreter, environment) -> property(interpreter, name, object.evaluate(interpreter, environment));
+		
+	}
+	
+	@Override
+	public CompiledExpr visitGroupingExpr(Expr.Grouping expr) {
+		
+		return compile(expr.expression);
+	}
+	
+	@Override
+	public CompiledExpr visitLambdaExpr(Expr.Lambda expr) {
+		
+		CompiledStmt body = body(expr);
+		return (interpreter, environment) -> new LoxFunction(expr, environment, false, body);
+		
+	}
+	
+	@Override
+	public CompiledExpr visitLiteralExpr(Expr.Literal expr) {
+		
+		Object value = expr.value;
+		return (interpreter, environment) -> value;
+		
+	}
+	
+	@Override
+	public CompiledExpr visitLogicalExpr(Expr.Logical expr) {
+		
+		CompiledExpr left = compile(expr.left);
+		CompiledExpr right = compile(expr.right);
+		
+		if(expr.operator.type == TokenType.OR || expr.operator.type == TokenType.PIPE)
+			return (interpreter, environment) -> {
+				Object value = left.evaluate(interpreter, environment);
+				return interpreter.isTruthy(value) ? value : right.evaluate(interpreter, environment);
+			};
+		
+		return (interpreter, environment) -> {
+			Object value = left.evaluate(interpreter, environment);
+			return !interpreter.isTruthy(value) ? value : right.evaluate(interpreter, environment);
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitSetExpr(Expr.Set expr) {
+		
+		Token name = expr.name;
+		CompiledExpr object = compile(expr.object);
+		CompiledExpr value = compile(expr.value);
+		
+		return (interpreter, environment) -> {
+			
+			Object instance = object.evaluate(interpreter, environment);
+			
+			if(!(instance instanceof LoxInstance))
+				throw new InterpreterRuntimeError(name, "Only instances have fields");
+			
+			Object assigned = value.evaluate(interpreter, environment);
+			interpreter.setProperty((LoxInstance) instance, name, assigned);
+			return assigned;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitSuperExpr(Expr.Super expr) {
+		
+		Token method = expr.method;
+		int distance = resolutions.distance(expr);
+		
+		return (interpreter, environment) -> {
+			
+			LoxClass superclass = (LoxClass) environment.getSuperAt(distance);
+			
+			// "this" is always one level nearer than "super"'s environment
+			LoxInstance object = (LoxInstance) environment.getThisAt(distance - 1);
+			
+			LoxFunction function = superclass.findMethod(object, method.lexeme);
+			
+			if(function == null)
+				throw new InterpreterRuntimeError(method, "Undefined property '" + method.lexeme + "'");
+			
+			return function;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitThisExpr(Expr.This expr) {
+		
+		return variable(expr.keyword, expr);
+	}
+	
+	@Override
+	public CompiledExpr visitUnaryExpr(Expr.Unary expr) {
+		
+		if(expr.operator.type == TokenType.MINUS && expr.right.type == LoxType.NUMBER) {
+			CompiledNumber value = number(expr);
+			return (interpreter, environment) -> value.evaluate(interpreter, environment);
+		}
+		
+		Token operator = expr.operator;
+		CompiledExpr right = compile(expr.right);
+		
+		switch(operator.type) {
+		case BANG:
+			return (interpreter, environment) -> !interpreter.isTruthy(right.evaluate(interpreter, environment));
+		case MINUS:
+			return (interpreter, environment) -> {
+				Object value = right.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, value);
+				return -(double) value;
+			};
+		default:
+			throw new IllegalStateException("Unknown unary operator " + operator.type);
+		}
+		
+	}
+	
+	@Override
+	public CompiledExpr visitVariableExpr(Expr.Variable expr) {
+		
+		return variable(expr.name, expr);
+	}
+	
+	/**
+	 * Calls a value the way a call expression does, </br>
+	 * checking it can be called with the arguments
+	 */
+	static Object call(Interpreter interpreter, Environment environment, Token paren, Object value, List<Object> values) {
+		
+		if(!(value instanceof LoxCallable))
+			throw new InterpreterRuntimeError(paren, "Can only call functions and classes");
+		
+		LoxCallable function = (LoxCallable) value;
+		if(values.size() != function.arity())
+			throw new InterpreterRuntimeError(paren, "Expected " + function.arity() + " arguments but got " + values.size());
+		
+		// Natives like getVar() look at the environment they're called from
+		boolean isNative = !(function instanceof LoxFunction || function instanceof LoxClass);
+		Environment previous = isNative ? interpreter.enter(environment) : null;
+		
+		try {
+			return function.call(interpreter, values);
+		} catch(InterpreterRuntimeError error) {
+			
+			// Natives don't know where they were called from
+			if(error.token == null)
+				throw new InterpreterRuntimeError(paren, error.getMessage(), error.catchable);
+			
+			throw error;
+			
+		} finally {
+			if(isNative)
+				interpreter.enter(previous);
+		}
+		
+	}
+	
+	/**
+	 * Adds two numbers or concatenates a string with anything
+	 */
+	static Object add(Interpreter interpreter, Token operator, Object left, Object right) {
+		
+		if(left instanceof Double && right instanceof Double)
+			return (double) left + (double) right;
+		if(left instanceof String || right instanceof String)
+			return interpreter.stringify(left) + interpreter.stringify(right);
+		throw new InterpreterRuntimeError(operator, "Operands must be two numbers or two strings");
+		
+	}
+	
+	static Object property(Interpreter interpreter, Token name, Object value) {
+		
+		if(value instanceof LoxInstance)
+			return interpreter.property((LoxInstance) value, name);
+		
+		throw new InterpreterRuntimeError(name, "Only instances can have properties");
+		
+	}
+	
+	private CompiledExpr variable(Token name, Expr expr) {
+		
+		Integer distance = resolutions.distance(expr);
+		
+		if(distance == null)
+			return (interpreter, environment) -> interpreter.globals.get(name);
+		
+		if(distance < 0) {
+			int slot = ~distance;
+			return (interpreter, environment) -> interpreter.frame[slot];
+		}
+		
+		int depth = distance;
+		return (interpreter, environment) -> interpreter.scope(environment, depth).get(name);
+		
+	}
+	
+}
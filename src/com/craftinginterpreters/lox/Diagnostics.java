@@ -0,0 +1,124 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintWriter;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+import com.craftinginterpreters.lox.RuntimeError.UserRuntimeError;
+
+/**
+ * Where the errors and warnings of one run are </br>
+ * reported, and whether any of them were errors </br>
+ * </br>
+ * Every {@link LoxContext} has its own, so scripts </br>
+ * running side by side can't fail each other
+ *
+ * @author dragonfire
+ *
+ */
+class Diagnostics {
+	
+	private PrintWriter err;
+	
+	boolean hadError;
+	boolean hadRuntimeError;
+	private int errorCount;
+	
+	Diagnostics(PrintWriter err) {
+		
+		this.err = err;
+		this.hadError = false;
+		this.hadRuntimeError = false;
+		this.errorCount = 0;
+		
+	}
+	
+	static Diagnostics stderr() {
+		
+		return new Diagnostics(new PrintWriter(System.err, true));
+	}
+	
+	/**
+	 * Report an error
+	 *
+	 * @param line
+	 *            the line upon which the error occurs
+	 * @param message
+	 *            a message that goes along with the error
+	 */
+	void error(String file, int line, String message) {
+		report(file, line, "", "Error", message);
+		hadError = true;
+		errorCount++;
+	}
+	
+	void error(Token token, String message) {
+		if(token.type == TokenType.EOF)
+			report(token.file, token.line, "Error", " at end", message);
+		else
+			report(token.file, token.line, "Error", " at '" + token.lexeme + "'", message);
+		hadError = true;
+		errorCount++;
+	}
+	
+	void runtimeError(InterpreterRuntimeError error) {
+		runtimeError(error.token, error.getMessage());
+	}
+	
+	void runtimeError(Token token, String message) {
+		report(token.file, token.line, "RuntimeError", " at '" + token.lexeme + "'", message);
+		hadRuntimeError = true;
+	}
+	
+	void userError(UserRuntimeError error) {
+		report(error.throwToken.file, error.throwToken.line, error.instance.klass().name, "", error.getMessage());
+		hadRuntimeError = true;
+	}
+	
+	void warning(String file, int line, String message) {
+		report(file, line, "Warning", "", message);
+	}
+	
+	void warning(Token token, String message) {
+		if(token.type == TokenType.EOF)
+			report(token.file, token.line, "Warning", " at end", message);
+		else
+			report(token.file, token.line, "Warning", " at '" + token.lexeme + "'", message);
+	}
+	
+	/**
+	 * Report something that is neither an error nor a warning
+	 */
+	void note(String message) {
+		err.println(message);
+	}
+	
+	/**
+	 * @return how many compile errors have been reported, </br>
+	 *         so callers can tell whether a step added any
+	 */
+	int errorCount() {
+		return errorCount;
+	}
+	
+	/**
+	 * Report to another writer from now on
+	 */
+	void redirect(PrintWriter err) {
+		this.err = err;
+	}
+	
+	/**
+	 * Forget the errors of the last run, the prompt </br>
+	 * keeps going after a bad line
+	 */
+	void reset() {
+		hadError = false;
+		hadRuntimeError = false;
+	}
+	
+	private void report(String file, int line, String type, String where, String message) {
+		if(!file.equals("")) file += ": ";
+		err.println("[" + file + "line " + line + "] " + type + where + ": " + message);
+	}
+	
+}
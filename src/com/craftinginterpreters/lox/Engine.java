@@ -0,0 +1,79 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How an {@link Interpreter} runs resolved statements, </br>
+ * picked with <b>--engine &lt;name&gt;</b> or </br>
+ * <b>-Dlox.engine=&lt;name&gt;</b>
+ *
+ * @author dragonfire
+ *
+ */
+enum Engine {
+	
+	/**
+	 * Visits the statements as they are
+	 */
+	TREE,
+	
+	/**
+	 * Compiles the statements into closures first, see {@link ClosureCompiler}
+	 */
+	CLOSURES,
+	
+	/**
+	 * Compiles the statements into closures that specialize </br>
+	 * themselves as they run, see {@link SpecializingCompiler}
+	 */
+	SPECIALIZING,
+	
+	/**
+	 * Compiles functions that keep every local in their frame </br>
+	 * into bytecode for a register machine that doesn't box </br>
+	 * numbers, see {@link Vm}, and the rest into closures. It </br>
+	 * allocates less, but once warmed up it's no faster than </br>
+	 * {@link #CLOSURES}: every instruction is a dispatch, and </br>
+	 * every call sets up a window of registers
+	 */
+	VM;
+	
+	/**
+	 * @return the compiler that prepares statements for this </br>
+	 *         engine, or null if it runs them as they are
+	 */
+	ClosureCompiler compiler(Interpreter resolutions) {
+		
+		switch(this) {
+		case CLOSURES:
+			return new ClosureCompiler(resolutions);
+		case SPECIALIZING:
+			return new SpecializingCompiler(resolutions);
+		case VM:
+			return new VmCompiler(resolutions);
+		default:
+			return null;
+		}
+		
+	}
+	
+	/**
+	 * @return the engine named by <b>lox.engine</b>, or the tree walker
+	 */
+	static Engine configured() {
+		
+		String name = System.getProperty("lox.engine");
+		if(name == null || name.isEmpty())
+			return TREE;
+		
+		try {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		} catch(IllegalArgumentException iae) {
+			throw new IllegalArgumentException("Unknown engine '" + name + "', expected one of "
+					+ Arrays.toString(values()).toLowerCase(Locale.ROOT));
+		}
+		
+	}
+	
+}
@@ -1,13 +1,23 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
 
-public class Environment {
+public class Environment implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
 	
 	final Environment enclosing;
-	private final HashMap<String, Object> values;
+	private final Map<String, Object> values;
+	
+	// Read-only variables underneath this environment's own, shared by every reset
+	private Map<String, Object> base;
+	
+	// Captured by a snapshot, interpreters write to their own copy of it
+	boolean frozen;
 	
 	Environment() {
 		
@@ -21,13 +31,24 @@ public class Environment {
 		values = new HashMap<>();
 	}
 	
+	/**
+	 * An environment storing its variables in a map owned </br>
+	 * by someone else, like the bindings of a script engine
+	 */
+	Environment(Environment env, Map<String, Object> values) {
+		
+		enclosing = env;
+		this.values = values;
+	}
+	
 	void define(String name, Object value) {
 		values.put(name, value);
 	}
 	
 	void assign(Token name, Object value) {
 		
-		if(values.containsKey(name.lexeme)) {
+		// Assigning a shared variable only shadows it until the next reset
+		if(values.containsKey(name.lexeme) || (base != null && base.containsKey(name.lexeme))) {
 			values.put(name.lexeme, value);
 			return;
 		}
@@ -51,6 +72,9 @@ public class Environment {
 		if(values.containsKey(name.lexeme))
 			return values.get(name.lexeme);
 		
+		if(base != null && base.containsKey(name.lexeme))
+			return base.get(name.lexeme);
+		
 		if(enclosing != null)
 			return enclosing.get(name);
 		
@@ -58,6 +82,68 @@ public class Environment {
 		
 	}
 	
+	/**
+	 * @return the variable, or the fallback if nothing defines it
+	 */
+	Object getOrDefault(String name, Object fallback) {
+		
+		if(values.containsKey(name))
+			return values.get(name);
+		
+		if(base != null && base.containsKey(name))
+			return base.get(name);
+		
+		if(enclosing != null)
+			return enclosing.getOrDefault(name, fallback);
+		
+		return fallback;
+		
+	}
+	
+	/**
+	 * Forgets everything defined or assigned on top of the </br>
+	 * shared base
+	 */
+	void reset() {
+		
+		values.clear();
+	}
+	
+	/**
+	 * Puts a read-only map of variables, like those of a </br>
+	 * snapshot, underneath this environment without copying it. </br>
+	 * Definitions and assignments go on top of it (copy on write)
+	 */
+	void share(Map<String, Object> base) {
+		
+		this.base = base;
+	}
+	
+	/**
+	 * @return every variable of this environment, frozen or not
+	 */
+	Map<String, Object> flatten() {
+		
+		Map<String, Object> variables = (base == null) ? new HashMap<>() : new HashMap<>(base);
+		variables.putAll(values);
+		
+		return variables;
+		
+	}
+	
+	java.util.Collection<Object> variables() {
+		
+		return values.values();
+	}
+	
+	/**
+	 * @return a private copy of this environment's own variables
+	 */
+	Environment copy() {
+		
+		return new Environment(enclosing, new HashMap<>(values));
+	}
+	
 	Object getThis() {
 		
 		return values.get("this");
@@ -81,7 +167,7 @@ public class Environment {
 		return ancestor(distance).getSuper();
 	}
 	
-	private Environment ancestor(int distance) {
+	Environment ancestor(int distance) {
 		
 		Environment ancestor = this;
 		
@@ -1,8 +1,16 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-public abstract class Expr {
+// Serializable so a whole interpreter can be saved to an image
+public abstract class Expr implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Filled in after parsing
+	LoxType type;
+
 	interface Visitor<R> {
 		R visitAssignExpr(Assign expr);
 		R visitBinaryExpr(Binary expr);
@@ -20,6 +28,8 @@ public abstract class Expr {
 	}
 	static class Assign extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token name;
 		final Expr value;
 
@@ -35,6 +45,8 @@ public abstract class Expr {
 	}
 	static class Binary extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr left;
 		final Token operator;
 		final Expr right;
@@ -52,6 +64,8 @@ public abstract class Expr {
 	}
 	static class Call extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr callee;
 		final Token paren;
 		final List<Expr> arguments;
@@ -69,6 +83,8 @@ public abstract class Expr {
 	}
 	static class Get extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr object;
 		final Token name;
 
@@ -84,6 +100,8 @@ public abstract class Expr {
 	}
 	static class Grouping extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr expression;
 
 		Grouping(Expr expression) {
@@ -97,10 +115,17 @@ public abstract class Expr {
 	}
 	static class Lambda extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token start;
 		final List<Token> parameters;
 		final List<Stmt> body;
 
+		// Set by the resolver
+		boolean sharesScope;
+		int frameSize;
+		int[] parameterSlots;
+
 		Lambda(Token start, List<Token> parameters, List<Stmt> body) {
 			this.start = start;
 			this.parameters = parameters;
@@ -114,6 +139,8 @@ public abstract class Expr {
 	}
 	static class Literal extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Object value;
 
 		Literal(Object value) {
@@ -127,6 +154,8 @@ public abstract class Expr {
 	}
 	static class Logical extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr left;
 		final Token operator;
 		final Expr right;
@@ -144,6 +173,8 @@ public abstract class Expr {
 	}
 	static class Set extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr object;
 		final Token name;
 		final Expr value;
@@ -161,6 +192,8 @@ public abstract class Expr {
 	}
 	static class Super extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Token method;
 
@@ -176,6 +209,8 @@ public abstract class Expr {
 	}
 	static class This extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 
 		This(Token keyword) {
@@ -189,6 +224,8 @@ public abstract class Expr {
 	}
 	static class Unary extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token operator;
 		final Expr right;
 
@@ -204,6 +241,8 @@ public abstract class Expr {
 	}
 	static class Variable extends Expr {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token name;
 
 		Variable(Token name) {
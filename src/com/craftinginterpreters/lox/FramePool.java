@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/**
+ * The frames of an interpreter's calls, kept once they </br>
+ * return for the next call as deep </br>
+ * </br>
+ * A frame only holds locals no closure captured, so nothing </br>
+ * can hold on to it after its call returns. Calls return in </br>
+ * the opposite order they were made, so the frames are a </br>
+ * stack: a call takes the frame at its depth, growing it if </br>
+ * it's too small, and gives it back cleared. Recursion only </br>
+ * allocates frames the first time it gets as deep
+ *
+ * @author dragonfire
+ *
+ */
+final class FramePool {
+	
+	private static final int INITIAL_DEPTH = 64;
+	
+	private Object[][] frames;
+	private int depth;
+	
+	FramePool() {
+		
+		frames = new Object[INITIAL_DEPTH][];
+		depth = 0;
+		
+	}
+	
+	/**
+	 * @return a frame of at least the given size, every slot nil
+	 */
+	Object[] acquire(int size) {
+		
+		if(depth == frames.length)
+			frames = Arrays.copyOf(frames, depth * 2);
+		
+		Object[] frame = frames[depth];
+		
+		if(frame == null || frame.length < size)
+			frames[depth] = frame = new Object[size];
+		
+		depth++;
+		
+		return frame;
+		
+	}
+	
+	/**
+	 * Gives back the last frame acquired
+	 *
+	 * @param size
+	 *            the size it was acquired with, only those slots </br>
+	 *            were used
+	 */
+	void release(int size) {
+		
+		depth--;
+		
+		// Don't keep the values alive, and the next call expects nil
+		Arrays.fill(frames[depth], 0, size, null);
+		
+	}
+	
+}
@@ -0,0 +1,622 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * <p>
+ * An {@link Optimizer} that also replaces calls of small </br>
+ * functions with what the function returns
+ * </p>
+ *
+ * <p>
+ * A function is inlined where it's called if:
+ * </p>
+ * <ul>
+ * <li>it's declared with <b>fn</b> and its name is never </br>
+ * assigned to or declared again, so the call can only </br>
+ * mean that function</li>
+ * <li>its body is a single <b>return</b> of a small expression </br>
+ * without lambdas, assignments, <b>this</b>, <b>super</b> or </br>
+ * calls to itself</li>
+ * <li>every argument is a literal, or a local variable and </br>
+ * the body calls nothing that could change it in between</li>
+ * <li>the call comes after the declaration</li>
+ * </ul>
+ *
+ * <p>
+ * The parameters in the inlined expression are replaced by </br>
+ * the arguments, and every other variable is resolved again </br>
+ * from where the call is. The declaration itself stays, so </br>
+ * the function can still be passed around and called. Each </br>
+ * program may only grow by half its size
+ * </p>
+ *
+ * <p>
+ * Methods are never inlined, which one runs depends on the </br>
+ * instance. Neither are functions a later line of the </br>
+ * prompt declares again, so the prompt shouldn't inline
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class Inliner extends Optimizer {
+	
+	private static final int MAX_BODY_NODES = 16;
+	private static final int MIN_BUDGET = 64;
+	
+	private final Interpreter interpreter;
+	
+	// Every scope the resolver had, and which function each local name in it means
+	private final Stack<Scope> scopes;
+	private final Map<String, Stmt.Function> globals;
+	
+	// Names that can't mean the same function everywhere
+	private final java.util.Set<String> unstable;
+	
+	private int budget;
+	private int inlined;
+	private boolean inlining;
+	
+	/**
+	 * @param program
+	 *            all the statements that will be optimized, to find </br>
+	 *            out which functions can be inlined and how much
+	 */
+	Inliner(LoxContext context, List<Stmt> program) {
+		
+		super(context);
+		
+		this.interpreter = context.interpreter;
+		this.scopes = new Stack<>();
+		this.globals = new HashMap<>();
+		
+		Survey survey = new Survey();
+		int size = survey.count(program);
+		
+		this.unstable = survey.unstable;
+		this.budget = Math.max(MIN_BUDGET, size / 2);
+		this.inlined = 0;
+		this.inlining = false;
+		
+	}
+	
+	/**
+	 * A scope and the functions declared in it, null for </br>
+	 * names that aren't ones that can be inlined
+	 */
+	private static final class Scope {
+		
+		final Map<String, Stmt.Function> functions;
+		// Whether it runs in an environment of its own
+		final boolean environment;
+		
+		Scope(boolean environment) {
+			
+			this.functions = new HashMap<>();
+			this.environment = environment;
+			
+		}
+		
+	}
+	
+	/**
+	 * @return how many calls were inlined
+	 */
+	int inlined() {
+		
+		return inlined;
+	}
+	
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		
+		scopes.push(new Scope(!stmt.sharesScope));
+		
+		Stmt optimized = super.visitBlockStmt(stmt);
+		
+		scopes.pop();
+		
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitCatchStmt(Stmt.Catch stmt) {
+		
+		scopes.push(new Scope(true));
+		scopes.peek().functions.put(stmt.identifier.lexeme, null);
+		
+		Stmt optimized = super.visitCatchStmt(stmt);
+		
+		scopes.pop();
+		
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitClassStmt(Stmt.Class stmt) {
+		
+		declare(stmt.name);
+		
+		if(stmt.superclass != null) {
+			scopes.push(new Scope(true));
+			scopes.peek().functions.put("super", null);
+		}
+		
+		scopes.push(new Scope(true));
+		scopes.peek().functions.put("this", null);
+		
+		List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+		boolean changed = false;
+		
+		for(Stmt.Function method : stmt.methods) {
+			Stmt.Function optimized = function(method);
+			methods.add(optimized);
+			changed |= optimized != method;
+		}
+		
+		scopes.pop();
+		if(stmt.superclass != null)
+			scopes.pop();
+		
+		if(!changed)
+			return stmt;
+		
+		return new Stmt.Class(stmt.name, stmt.superclass, methods);
+		
+	}
+	
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		
+		declare(stmt.name);
+		
+		Stmt.Function optimized = function(stmt);
+		
+		if(inlinable(optimized)) {
+			if(scopes.isEmpty())
+				globals.put(stmt.name.lexeme, optimized);
+			else
+				scopes.peek().functions.put(stmt.name.lexeme, optimized);
+		}
+		
+		return optimized;
+		
+	}
+	
+	/**
+	 * Optimizes a function's body in its own scope, like </br>
+	 * the resolver resolves it
+	 */
+	private Stmt.Function function(Stmt.Function stmt) {
+		
+		scopes.push(new Scope(!stmt.sharesScope));
+		for(Token parameter : stmt.parameters)
+			scopes.peek().functions.put(parameter.lexeme, null);
+		
+		Stmt.Function optimized = (Stmt.Function) super.visitFunctionStmt(stmt);
+		
+		scopes.pop();
+		
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		
+		declare(stmt.name);
+		return super.visitVarStmt(stmt);
+		
+	}
+	
+	@Override
+	public Expr visitLambdaExpr(Expr.Lambda expr) {
+		
+		scopes.push(new Scope(!expr.sharesScope));
+		for(Token parameter : expr.parameters)
+			scopes.peek().functions.put(parameter.lexeme, null);
+		
+		Expr optimized = super.visitLambdaExpr(expr);
+		
+		scopes.pop();
+		
+		return optimized;
+		
+	}
+	
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		
+		Stmt.Function function = inlining ? null : callee(expr.callee);
+		
+		if(function == null || function.parameters.size() != expr.arguments.size())
+			return super.visitCallExpr(expr);
+		
+		Expr body = ((Stmt.Return) function.body.get(0)).value;
+		
+		int size = COUNTER.count(body);
+		if(size > budget)
+			return super.visitCallExpr(expr);
+		
+		List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+		for(Expr argument : expr.arguments)
+			arguments.add(optimize(argument));
+		
+		boolean callsOut = calls(body);
+		Map<String, Expr> parameters = new HashMap<>();
+		
+		for(int i = 0; i < arguments.size(); i++) {
+			
+			Expr argument = arguments.get(i);
+			
+			boolean safe = argument instanceof Expr.Literal
+					|| (argument instanceof Expr.Variable && interpreter.distance(argument) != null && !callsOut);
+			
+			// The arguments are optimized already
+			if(!safe)
+				return arguments.equals(expr.arguments) ? expr : new Expr.Call(expr.callee, expr.paren, arguments);
+			
+			parameters.put(function.parameters.get(i).lexeme, argument);
+			
+		}
+		
+		Expr copy = copy(body, closure(expr.callee), parameters, function.sharesScope ? 0 : 1);
+		
+		budget -= size;
+		inlined++;
+		
+		// Literal arguments may fold the body now
+		inlining = true;
+		Expr optimized = optimize(copy);
+		inlining = false;
+		
+		return optimized;
+		
+	}
+	
+	/**
+	 * @return the function a callee can only mean, if it's one </br>
+	 *         that can be inlined
+	 */
+	private Stmt.Function callee(Expr callee) {
+		
+		if(!(callee instanceof Expr.Variable))
+			return null;
+		
+		String name = ((Expr.Variable) callee).name.lexeme;
+		
+		if(interpreter.distance(callee) == null)
+			return globals.get(name);
+		
+		int scope = scope(name);
+		return (scope < 0) ? null : scopes.get(scope).functions.get(name);
+		
+	}
+	
+	/**
+	 * @return how many environments out the closure of a </br>
+	 *         function that can be inlined is, null if it's </br>
+	 *         the globals
+	 */
+	private Integer closure(Expr callee) {
+		
+		if(interpreter.distance(callee) == null)
+			return null;
+		
+		// Locals in the frame don't say where they are, count the environments to where it's declared
+		int distance = 0;
+		for(int i = scope(((Expr.Variable) callee).name.lexeme) + 1; i < scopes.size(); i++)
+			if(scopes.get(i).environment)
+				distance++;
+		
+		return distance;
+		
+	}
+	
+	/**
+	 * @return the innermost scope declaring the name, like </br>
+	 *         the resolver found it, -1 if none of them do
+	 */
+	private int scope(String name) {
+		
+		for(int i = scopes.size() - 1; i >= 0; i--)
+			if(scopes.get(i).functions.containsKey(name))
+				return i;
+		
+		return -1;
+		
+	}
+	
+	private void declare(Token name) {
+		
+		if(!scopes.isEmpty())
+			scopes.peek().functions.put(name.lexeme, null);
+		
+	}
+	
+	/**
+	 * @return whether the function can be inlined wherever it's called
+	 */
+	private boolean inlinable(Stmt.Function function) {
+		
+		if(unstable.contains(function.name.lexeme) || function.body.size() != 1)
+			return false;
+		
+		if(!(function.body.get(0) instanceof Stmt.Return))
+			return false;
+		
+		Expr value = ((Stmt.Return) function.body.get(0)).value;
+		
+		return value != null && COUNTER.count(value) <= MAX_BODY_NODES && supported(value, function.name.lexeme);
+		
+	}
+	
+	/**
+	 * @return whether every node of the expression can be </br>
+	 *         copied to where the function is called
+	 */
+	private boolean supported(Expr expr, String function) {
+		
+		if(expr instanceof Expr.Literal)
+			return true;
+		
+		if(expr instanceof Expr.Variable) {
+			String name = ((Expr.Variable) expr).name.lexeme;
+			// getVar() looks the parameters up by name
+			return !name.equals(function) && !name.equals("getVar");
+		}
+		
+		if(expr instanceof Expr.Binary)
+			return supported(((Expr.Binary) expr).left, function) && supported(((Expr.Binary) expr).right, function);
+		
+		if(expr instanceof Expr.Logical)
+			return supported(((Expr.Logical) expr).left, function) && supported(((Expr.Logical) expr).right, function);
+		
+		if(expr instanceof Expr.Unary)
+			return supported(((Expr.Unary) expr).right, function);
+		
+		if(expr instanceof Expr.Grouping)
+			return supported(((Expr.Grouping) expr).expression, function);
+		
+		if(expr instanceof Expr.Get)
+			return supported(((Expr.Get) expr).object, function);
+		
+		if(expr instanceof Expr.Set)
+			return supported(((Expr.Set) expr).object, function) && supported(((Expr.Set) expr).value, function);
+		
+		if(expr instanceof Expr.Call) {
+			
+			Expr.Call call = (Expr.Call) expr;
+			
+			if(!supported(call.callee, function))
+				return false;
+			
+			for(Expr argument : call.arguments)
+				if(!supported(argument, function))
+					return false;
+			
+			return true;
+			
+		}
+		
+		// Lambdas, assignments, this and super
+		return false;
+		
+	}
+	
+	/**
+	 * @return whether the expression calls anything, which </br>
+	 *         could assign to the variables passed to it
+	 */
+	private boolean calls(Expr expr) {
+		
+		if(expr instanceof Expr.Call)
+			return true;
+		
+		if(expr instanceof Expr.Binary)
+			return calls(((Expr.Binary) expr).left) || calls(((Expr.Binary) expr).right);
+		
+		if(expr instanceof Expr.Logical)
+			return calls(((Expr.Logical) expr).left) || calls(((Expr.Logical) expr).right);
+		
+		if(expr instanceof Expr.Unary)
+			return calls(((Expr.Unary) expr).right);
+		
+		if(expr instanceof Expr.Grouping)
+			return calls(((Expr.Grouping) expr).expression);
+		
+		if(expr instanceof Expr.Get)
+			return calls(((Expr.Get) expr).object);
+		
+		if(expr instanceof Expr.Set)
+			return calls(((Expr.Set) expr).object) || calls(((Expr.Set) expr).value);
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Copies a function's returned expression to where it's </br>
+	 * called, with the arguments in place of the parameters
+	 *
+	 * @param callee
+	 *            how far the function's closure is from the </br>
+	 *            call, null if it's the globals
+	 * @param parameters
+	 *            the arguments by parameter
+	 * @param scope
+	 *            1 if the function has an environment of its own, </br>
+	 *            0 if it {@link Stmt.Function#sharesScope shares its closure's}
+	 */
+	private Expr copy(Expr expr, Integer callee, Map<String, Expr> parameters, int scope) {
+		
+		if(expr instanceof Expr.Literal)
+			return expr;
+		
+		if(expr instanceof Expr.Variable) {
+			
+			Integer distance = interpreter.distance(expr);
+			
+			// Globals are looked up by name wherever they're used
+			if(distance == null)
+				return expr;
+			
+			// The body declares nothing, so its frame and environment only hold the parameters
+			if(distance < 0 || distance < scope)
+				return parameters.get(((Expr.Variable) expr).name.lexeme);
+			
+			// The function's scope is gone, its closure is where the callee is
+			Expr.Variable variable = new Expr.Variable(((Expr.Variable) expr).name);
+			interpreter.resolve(variable, callee + distance - scope);
+			return variable;
+			
+		}
+		
+		if(expr instanceof Expr.Binary) {
+			Expr.Binary binary = (Expr.Binary) expr;
+			return new Expr.Binary(copy(binary.left, callee, parameters, scope), binary.operator,
+					copy(binary.right, callee, parameters, scope));
+		}
+		
+		if(expr instanceof Expr.Logical) {
+			Expr.Logical logical = (Expr.Logical) expr;
+			return new Expr.Logical(copy(logical.left, callee, parameters, scope), logical.operator,
+					copy(logical.right, callee, parameters, scope));
+		}
+		
+		if(expr instanceof Expr.Unary) {
+			Expr.Unary unary = (Expr.Unary) expr;
+			return new Expr.Unary(unary.operator, copy(unary.right, callee, parameters, scope));
+		}
+		
+		if(expr instanceof Expr.Grouping)
+			return new Expr.Grouping(copy(((Expr.Grouping) expr).expression, callee, parameters, scope));
+		
+		if(expr instanceof Expr.Get) {
+			Expr.Get get = (Expr.Get) expr;
+			return new Expr.Get(copy(get.object, callee, parameters, scope), get.name);
+		}
+		
+		if(expr instanceof Expr.Set) {
+			Expr.Set set = (Expr.Set) expr;
+			return new Expr.Set(copy(set.object, callee, parameters, scope), set.name,
+					copy(set.value, callee, parameters, scope));
+		}
+		
+		Expr.Call call = (Expr.Call) expr;
+		
+		List<Expr> arguments = new ArrayList<>(call.arguments.size());
+		for(Expr argument : call.arguments)
+			arguments.add(copy(argument, callee, parameters, scope));
+		
+		return new Expr.Call(copy(call.callee, callee, parameters, scope), call.paren, arguments);
+		
+	}
+	
+	/**
+	 * Counts the program's nodes, and finds the names that </br>
+	 * are assigned to or declared more than once at the top
+	 */
+	private static final class Survey extends NodeCounter {
+		
+		final java.util.Set<String> unstable = new HashSet<>();
+		private final java.util.Set<String> topLevel = new HashSet<>();
+		private final java.util.Set<Stmt> modules = java.util.Collections.newSetFromMap(new IdentityHashMap<>());
+		private int depth = 0;
+		
+		private void declare(Token name) {
+			
+			if(depth == 0 && !topLevel.add(name.lexeme))
+				unstable.add(name.lexeme);
+			
+		}
+		
+		@Override
+		public Integer visitBlockStmt(Stmt.Block stmt) {
+			
+			depth++;
+			int count = super.visitBlockStmt(stmt);
+			depth--;
+			
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitClassStmt(Stmt.Class stmt) {
+			
+			declare(stmt.name);
+			
+			depth++;
+			int count = super.visitClassStmt(stmt);
+			depth--;
+			
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitFunctionStmt(Stmt.Function stmt) {
+			
+			declare(stmt.name);
+			
+			depth++;
+			int count = super.visitFunctionStmt(stmt);
+			depth--;
+			
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitImportStmt(Stmt.Import stmt) {
+			
+			// Importing a module again doesn't declare its names again
+			return modules.add(stmt) ? super.visitImportStmt(stmt) : 1;
+		}
+		
+		@Override
+		public Integer visitIncludeStmt(Stmt.Include stmt) {
+			
+			return modules.add(stmt) ? super.visitIncludeStmt(stmt) : 1;
+		}
+		
+		@Override
+		public Integer visitLambdaExpr(Expr.Lambda expr) {
+			
+			depth++;
+			int count = super.visitLambdaExpr(expr);
+			depth--;
+			
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitVarStmt(Stmt.Var stmt) {
+			
+			declare(stmt.name);
+			return super.visitVarStmt(stmt);
+			
+		}
+		
+		@Override
+		public Integer visitAssignExpr(Expr.Assign expr) {
+			
+			unstable.add(expr.name.lexeme);
+			return super.visitAssignExpr(expr);
+			
+		}
+		
+	}
+	
+}
@@ -1,8 +1,14 @@
 package com.craftinginterpreters.lox;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -38,22 +44,72 @@ import com.craftinginterpreters.lox.Stmt.While;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
+	private final LoxContext context;
+	final Environment builtins;
 	final Environment globals;
 	private Environment environment;
+	// The slots of the running function's locals that no closure captures
+	Object[] frame;
+	final FramePool frames;
+	// Compiles hot loops along the way they go, null unless --trace
+	final Tracer tracer;
+	// The variables the trace running now keeps in registers, see TraceCompiler
+	TraceCompiler.Registers registers;
+	// Runs functions compiled to bytecode, made by the first one
+	private Vm vm;
 	private int stackSize;
+	// How many environments out each local is, or ~slot if it's in the frame
 	private final Map<Expr, Integer> locals;
-	private final java.util.Scanner in;
-
-	public Interpreter() {
-
-		globals = new Environment();
+	static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+	final BufferedReader in;
+	final OutputChannel output;
+	private final java.util.Set<Closeable> resources;
+	TestListener testListener;
+	Integer exitCode;
+
+	// Modules imported at the top level, or by the snapshot this interpreter was forked from
+	final java.util.Set<String> preloaded;
+	// Resolutions made since the fork, forgotten again on reset
+	private List<Expr> resolvedSinceFork;
+	// Resolutions of the snapshot this interpreter was forked from
+	private Map<Expr, Integer> sharedLocals;
+	// This interpreter's own copies of the snapshot's instance fields and environments
+	private final Map<Object, Object> copies;
+	// How interpret() runs the statements it's given
+	Engine engine;
+
+	/**
+	 * @param locals
+	 *            the resolution side table, shared when the same </br>
+	 *            resolved statements run in many interpreters
+	 * @param globalValues
+	 *            where the script's globals are stored, the </br>
+	 *            natives live in {@link #builtins} around them
+	 */
+	Interpreter(LoxContext context, OutputChannel output, BufferedReader in,
+			Map<Expr, Integer> locals, Map<String, Object> globalValues) {
+
+		this.context = context;
+		builtins = new Environment();
+		globals = new Environment(builtins, globalValues);
 		environment = globals;
-		locals = new HashMap<>();
+		frame = null;
+		frames = new FramePool();
+		tracer = Tracer.enabled() ? new Tracer(this) : null;
+		this.locals = locals;
 		stackSize = 0;
-		in = new java.util.Scanner(System.in);;
+		this.in = in;
+		this.output = output;
+		resources = new LinkedHashSet<>();
+		preloaded = new java.util.HashSet<>();
+		resolvedSinceFork = null;
+		sharedLocals = null;
+		copies = new IdentityHashMap<>();
+		engine = Engine.configured();
 		
 		// Define clock() function
-		globals.define("clock", new LoxCallable() {
+		builtins.define("clock", new LoxCallable() {
 
 			@Override
 			public Object call(Interpreter interpreter, List<Object> arguments) {
@@ -67,13 +123,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 		});
 		
+		// Define nanoTime(), a high resolution clock for timing code
+		builtins.define("nanoTime", new LoxCallable() {
+
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				return (double) System.nanoTime();
+			}
+
+			@Override
+			public int arity() {
+				return 0;
+			}
+
+		});
+		
+		// Define bench(Function, Number)
+		builtins.define("bench", new Benchmark());
+		
 		// Define input(String)
-		globals.define("input", new LoxCallable() {
+		builtins.define("input", new LoxCallable() {
 			
 			@Override
 			public Object call(Interpreter interpreter, List<Object> arguments) {
-				System.out.print(arguments.get(0));
-				return in.nextLine();
+				output.print(stringify(arguments.get(0)));
+				output.flush();
+				return readLine();
 			}
 			
 			@Override
@@ -83,12 +158,74 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 			
 		});
 		
+		// Define readLine(), returns nil at the end of the input
+		builtins.define("readLine", new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				output.flush();
+				return readLine();
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
+		// Define readAll(), returns whatever is left of the input
+		builtins.define("readAll", new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				
+				output.flush();
+				
+				StringBuilder text = new StringBuilder();
+				char[] buffer = new char[INPUT_BUFFER_SIZE];
+				
+				try {
+					int read;
+					while((read = in.read(buffer)) != -1)
+						text.append(buffer, 0, read);
+				} catch(IOException ioe) {
+					throw new InterpreterRuntimeError("Unable to read input: " + ioe.getMessage());
+				}
+				
+				return text.toString();
+				
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
+		// Define lines(), an iterator over the remaining lines of the input
+		builtins.define("lines", new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				output.flush();
+				return LineIterator.create(in);
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
 		// Define println(Object)
-		globals.define("println", new LoxCallable() {
+		builtins.define("println", new LoxCallable() {
 			
 			@Override
 			public Object call(Interpreter interpreter, List<Object> arguments) {
-				System.out.println(stringify(arguments.get(0)));
+				output.println(stringify(arguments.get(0)));
 				return null;
 			}
 			
@@ -100,7 +237,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		});
 		
 		// Define getVar(String)
-		globals.define("getVar", new LoxCallable() {
+		builtins.define("getVar", new LoxCallable() {
 
 			@Override
 			public Object call(Interpreter interpreter, List<Object> arguments) {
@@ -124,7 +261,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		});
 		
 		// Define getProperty(LoxInstance, String)
-		globals.define("getProperty", new LoxCallable() {
+		builtins.define("getProperty", new LoxCallable() {
 
 			@Override
 			public Object call(Interpreter interpreter, List<Object> arguments) {
@@ -137,14 +274,69 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 				
 				Token fieldToken = new Token("", "", TokenType.IDENTIFIER, (String) field, null, 0);
 				
-				return ((LoxInstance) instance).get(fieldToken);
+				return property((LoxInstance) instance, fieldToken);
+
+			}
+
+			@Override
+			public int arity() {
+				return 2;
+			}
+		});
+		
+		// Define testStarted(TestCase), called by TestCase.run
+		builtins.define("testStarted", new LoxCallable() {
+
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				
+				if(testListener != null && arguments.get(0) instanceof LoxInstance) {
+					LoxInstance test = (LoxInstance) arguments.get(0);
+					testListener.testStarted(test.klass().name, stringify(testMethod(test)));
+				}
+				
+				return null;
+				
+			}
+
+			@Override
+			public int arity() {
+				return 1;
+			}
 
+		});
+		
+		// Define testFinished(TestCase, RuntimeError), the error is nil if the test passed
+		builtins.define("testFinished", new LoxCallable() {
+
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				
+				if(testListener == null || !(arguments.get(0) instanceof LoxInstance))
+					return null;
+				
+				LoxInstance test = (LoxInstance) arguments.get(0);
+				Object error = arguments.get(1);
+				String failure = null;
+				
+				if(error instanceof LoxInstance) {
+					Token messageToken = new Token("", "", TokenType.IDENTIFIER, "message", null, 0);
+					Object message = ((LoxCallable) property((LoxInstance) error, messageToken)).call(interpreter, new ArrayList<>());
+					failure = stringify(message);
+				} else if(error != null)
+					failure = stringify(error);
+				
+				testListener.testFinished(test.klass().name, stringify(testMethod(test)), failure);
+				
+				return null;
+				
 			}
 
 			@Override
 			public int arity() {
 				return 2;
 			}
+
 		});
 		
 		// Set up for building the 'RuntimeError' class
@@ -183,42 +375,210 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		methods.put("getType", new LoxFunction(function, environment, isInitializer));
 		
 		// Define 'RuntimeError' for try/catch
-		globals.define("RuntimeError", new LoxClass("RuntimeError", null, methods));
+		builtins.define("RuntimeError", new LoxClass("RuntimeError", null, methods));
 		
 	}
 
-	void interpret(List<Stmt> statements) {
+	/**
+	 * @return the value of the last statement if it's an </br>
+	 *         expression statement, so embedders can use </br>
+	 *         scripts as expressions
+	 */
+	Object interpret(List<Stmt> statements) {
+
+		Object result = null;
 
 		try {
-			for (Stmt statement : statements)
-				execute(statement);
+			ClosureCompiler compiler = engine.compiler(this);
+			if (compiler != null)
+				return interpretCompiled(compiler, statements);
+			
+			for (Stmt statement : statements) {
+				if (statement instanceof Expression)
+					result = evaluate(((Expression) statement).expression);
+				else {
+					execute(statement);
+					result = null;
+				}
+			}
+			return result;
 		} catch (InterpreterRuntimeError error) {
-			Lox.runtimeError(error);
+			output.flush();
+			context.diagnostics.runtimeError(error);
 		} catch (UserRuntimeError error) {
-			Lox.userError(error);
+			output.flush();
+			context.diagnostics.userError(error);
 		} catch (ExitCode exit) {
 
+			output.flush();
+
 			if (!(exit.exitCode instanceof Double)) {
-				Lox.runtimeError(exit.keyword, "Invalid exit code '" + exit.exitCode + "'");
-				return;
+				context.diagnostics.runtimeError(exit.keyword, "Invalid exit code '" + exit.exitCode + "'");
+				return null;
 			}
 
 			double exitCode = (double) exit.exitCode;
 
 			if (exitCode != (int) exitCode) {
-				Lox.runtimeError(exit.keyword, "Exit code must be an integer");
-				return;
+				context.diagnostics.runtimeError(exit.keyword, "Exit code must be an integer");
+				return null;
 			}
 
-			System.exit((int) exitCode);
+			// Whoever is running the script decides what exiting means
+			this.exitCode = (int) exitCode;
 
 		}
+
+		return null;
+	}
+
+	/**
+	 * Runs the statements compiled by a {@link ClosureCompiler}, </br>
+	 * with the same result as running them as they are
+	 */
+	private Object interpretCompiled(ClosureCompiler compiler, List<Stmt> statements) {
+		
+		Object result = null;
+		
+		for (Stmt statement : statements) {
+			if (statement instanceof Expression)
+				result = compiler.compile(((Expression) statement).expression).evaluate(this, environment);
+			else {
+				compiler.compile(statement).execute(this, environment);
+				result = null;
+			}
+		}
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Makes compiled code's environment the current one, for </br>
+	 * the natives that look at it
+	 *
+	 * @return the environment that was current before
+	 */
+	Environment enter(Environment environment) {
+		
+		Environment previous = this.environment;
+		this.environment = environment;
+		return previous;
+		
+	}
+	
+	/**
+	 * Keeps track of a resource opened by the script (such as </br>
+	 * a file), so it can be closed if the script doesn't
+	 */
+	void register(Closeable resource) {
+		
+		synchronized(resources) {
+			resources.add(resource);
+		}
+		
+	}
+	
+	/**
+	 * Forgets a resource that was closed, from any thread </br>
+	 * (line iterators are closed by a cleaner once dropped)
+	 */
+	void release(Closeable resource) {
+		
+		synchronized(resources) {
+			resources.remove(resource);
+		}
+		
+	}
+	
+	/**
+	 * Flushes the output and closes every resource the </br>
+	 * script left open
+	 */
+	void shutdown() {
+		
+		output.flush();
+		
+		List<Closeable> open;
+		
+		synchronized(resources) {
+			open = new ArrayList<>(resources);
+			resources.clear();
+		}
+		
+		for(Closeable resource : open) {
+			try {
+				resource.close();
+			} catch(IOException ioe) {
+				// Shutting down anyway
+			}
+		}
+		
+	}
+
+	/**
+	 * Starts this fresh interpreter off from a snapshot. Its </br>
+	 * globals and resolutions are shared, not copied, and the </br>
+	 * snapshot's native modules are defined again for this </br>
+	 * interpreter
+	 */
+	void restore(InterpreterSnapshot snapshot) {
+
+		globals.share(snapshot.globals);
+		sharedLocals = snapshot.locals;
+		preloaded.addAll(snapshot.modules);
+
+		for(String name : snapshot.modules) {
+			NativeModule module = NativeModule.find(name);
+			if(module != null)
+				module.define(this, builtins);
+		}
+
+		resolvedSinceFork = new ArrayList<>();
+
+	}
+
+	/**
+	 * @return every resolution this interpreter knows of
+	 */
+	Map<Expr, Integer> resolutions() {
+
+		Map<Expr, Integer> resolutions = (sharedLocals == null) ? new HashMap<>() : new HashMap<>(sharedLocals);
+		resolutions.putAll(locals);
+
+		return resolutions;
+
+	}
+
+	/**
+	 * Puts a forked interpreter back the way it was forked, </br>
+	 * dropping the globals, resolutions and copies made by </br>
+	 * whatever ran since
+	 */
+	void reset() {
+
+		shutdown();
+
+		globals.reset();
+		for(Expr expr : resolvedSinceFork)
+			locals.remove(expr);
+		resolvedSinceFork.clear();
+		copies.clear();
+
+		environment = globals;
+		frame = null;
+		stackSize = 0;
+		exitCode = null;
+		testListener = null;
+		if (tracer != null)
+			tracer.reset();
+
 	}
 
 	@Override
 	public Void visitBlockStmt(Block stmt) {
 
-		executeBlock(stmt.statements, new Environment(environment));
+		executeBlock(stmt.statements, stmt.sharesScope ? environment : new Environment(environment));
 		return null;
 	}
 	
@@ -285,7 +645,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	public Void visitFunctionStmt(Function stmt) {
 		
 		LoxFunction function = new LoxFunction(stmt, environment, false);
-		environment.define(stmt.name.lexeme, function);
+		
+		if (stmt.slot < 0)
+			environment.define(stmt.name.lexeme, function);
+		else
+			frame[stmt.slot] = function;
 		
 		return null;
 
@@ -294,7 +658,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitIfStmt(If stmt) {
 
-		if (isTruthy(evaluate(stmt.condition)))
+		boolean taken = isTruthy(evaluate(stmt.condition));
+
+		if (tracer != null && tracer.recording != null)
+			tracer.recording.branch(stmt, taken);
+
+		if (taken)
 			execute(stmt.thenBranch);
 		else if (stmt.elseBranch != null)
 			execute(stmt.elseBranch);
@@ -305,12 +674,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitImportStmt(Import stmt) {
 		
-		executeBlock(stmt.body, environment);
+		if(runsImport(stmt, environment))
+			executeBlock(stmt.body, environment);
 		
 		return null;
 		
 	}
 	
+	/**
+	 * Defines a native module's members, if it is one
+	 *
+	 * @return whether the module's body still has to run
+	 */
+	boolean runsImport(Import stmt, Environment environment) {
+		
+		// Whatever the snapshot's modules define is already in the shared globals
+		if(environment == globals) {
+			if(sharedLocals != null && preloaded.contains(stmt.file))
+				return false;
+			preloaded.add(stmt.file);
+		}
+		
+		NativeModule module = NativeModule.find(stmt.file);
+		if(module != null) {
+			module.define(this, environment);
+			return false;
+		}
+		
+		return true;
+		
+	}
+	
 	@Override
 	public Void visitIncludeStmt(Include stmt) {
 		
@@ -324,7 +718,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	public Void visitPrintStmt(Print stmt) {
 
 		Object value = evaluate(stmt.expression);
-		System.out.print(stringify(value));
+		output.print(stringify(value));
 		return null;
 	}
 
@@ -343,22 +737,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitThrowStmt(Throw stmt) {
 		
-		Object thrown = evaluate(stmt.thrown);
+		throw thrown(stmt.keyword, evaluate(stmt.thrown));
+	}
+	
+	/**
+	 * @return the error to throw for a thrown object
+	 */
+	RuntimeError thrown(Token keyword, Object thrown) {
 		
 		// If the object doesn't inherit the 'RuntimeError' class,
 		// it can't be thrown
-		Token runtimeError = new Token(stmt.keyword.directory, stmt.keyword.file, TokenType.IDENTIFIER, "RuntimeError", null, stmt.keyword.line);
+		Token runtimeError = new Token(keyword.directory, keyword.file, TokenType.IDENTIFIER, "RuntimeError", null, keyword.line);
 		if(!(thrown instanceof LoxInstance && ((LoxInstance) thrown).klass().inherits(runtimeError)))
-			throw new InterpreterRuntimeError(stmt.keyword,
+			return new InterpreterRuntimeError(keyword,
 					"Only objects extending 'RuntimeError' can be thrown", false);
 		
 		// As long as the object extends 'RuntimeError',
 		// it will have a message() function
-		Token messageToken = new Token(stmt.keyword.directory, stmt.keyword.file, TokenType.IDENTIFIER, "message", null, 0);
-		Object message = ((LoxCallable) ((LoxInstance) thrown).get(messageToken)).call(this, new ArrayList<>());
+		Token messageToken = new Token(keyword.directory, keyword.file, TokenType.IDENTIFIER, "message", null, 0);
+		Object message = ((LoxCallable) property((LoxInstance) thrown, messageToken)).call(this, new ArrayList<>());
 		
 		
-		throw new UserRuntimeError((LoxInstance) thrown, stringify(message), stmt.keyword);
+		return new UserRuntimeError((LoxInstance) thrown, stringify(message), keyword);
 		
 	}
 	
@@ -379,75 +779,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 					environment = new Environment(enclosing);
 					
 					// Define the error to make it accessible
-					if(error instanceof UserRuntimeError)
-						environment.define(catchStmt.identifier.lexeme, ((UserRuntimeError) error).instance);
-					else { // Define a user-usable version of the InterpreterRuntimeError
-						
-						// Set up for building the 'InterpreterRuntimeError' class
-						
-						Map<String, LoxFunction> methods = new HashMap<>(); // Stores the functions of the class
-						
-						// Define the 'message' method
-						List<Stmt> body = new ArrayList<>(); // Stores the statement for the upcoming "message" function
-						Token name = new Token("", "", TokenType.IDENTIFIER, "message", null, 0); // Token for the name
-						
-						List<Token> parameters = new ArrayList<>(); // No parameters
-						
-						body.add(new Stmt.Return(
-								new Token("", "", TokenType.RETURN, "return", null, 0),
-								new Literal(error.getMessage()))); // Simply return the defined message
-						
-						Function function = new Function(name, parameters, body); // Create the function to be stored
-						
-						boolean isInitializer = false; // This is not an initializer
-						
-						methods.put("message", new LoxFunction(function, environment, isInitializer));
-						
-						// Define the 'message' method
-						body = new ArrayList<>(); // Stores the statement for the upcoming "message" function
-						name = new Token("", "", TokenType.IDENTIFIER, "getType", null, 0); // Token for the name
-						
-						parameters = new ArrayList<>(); // No parameters
-						
-						body.add(new Stmt.Return(
-								new Token("", "", TokenType.RETURN, "return", null, 0),
-								new Literal("InterpreterRuntimeError"))); // Simply return the defined message
-						
-						function = new Function(name, parameters, body); // Create the function to be stored
-						
-						isInitializer = false; // This is not an initializer
-						
-						methods.put("getType", new LoxFunction(function, environment, isInitializer));
-						
-						Token runtimeError = new Token(catchStmt.identifier.directory, catchStmt.identifier.file, TokenType.IDENTIFIER, "RuntimeError", null, catchStmt.identifier.line);
-						
-						LoxClass interpreterRuntimeError =  new LoxClass("InterpreterRuntimeError", (LoxClass) globals.get(runtimeError), methods);
-						
-						// ^ Create an anonymous class that extends RuntimeError
-						
-						LoxInstance errorInstance = new LoxInstance(interpreterRuntimeError);
-						
-						/*
-						Token name = new Token(catchStmt.identifier.file, TokenType.IDENTIFIER, "message", null, catchStmt.identifier.line);
-						
-						List<Token> parameters = new ArrayList<>();
-						
-						List<Stmt> body = new ArrayList<>();
-						
-						body.add(new Stmt.Return(
-								new Token(catchStmt.identifier.file, TokenType.RETURN, "return", null, catchStmt.identifier.line),
-								new Literal(error.getMessage())));
-						
-						Function function = new Function(name, parameters, body);
-						
-						boolean isInitializer = false;
-						
-						errorInstance.set(runtimeError, new LoxFunction(function, environment, isInitializer));
-						*/
-						
-						environment.define(catchStmt.identifier.lexeme, errorInstance);
-						
-					}
+					environment.define(catchStmt.identifier.lexeme, caught(error, catchStmt, environment));
 					
 					execute(catchStmt);
 					
@@ -465,6 +797,83 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		
 	}
 
+	/**
+	 * @return what a catch clause gets to see of an error, </br>
+	 *         defined in the clause's environment
+	 */
+	LoxInstance caught(RuntimeError error, Catch catchStmt, Environment environment) {
+		
+		if(error instanceof UserRuntimeError)
+			return ((UserRuntimeError) error).instance;
+		
+		// Define a user-usable version of the InterpreterRuntimeError
+		
+		// Set up for building the 'InterpreterRuntimeError' class
+		
+		Map<String, LoxFunction> methods = new HashMap<>(); // Stores the functions of the class
+		
+		// Define the 'message' method
+		List<Stmt> body = new ArrayList<>(); // Stores the statement for the upcoming "message" function
+		Token name = new Token("", "", TokenType.IDENTIFIER, "message", null, 0); // Token for the name
+		
+		List<Token> parameters = new ArrayList<>(); // No parameters
+		
+		body.add(new Stmt.Return(
+				new Token("", "", TokenType.RETURN, "return", null, 0),
+				new Literal(error.getMessage()))); // Simply return the defined message
+		
+		Function function = new Function(name, parameters, body); // Create the function to be stored
+		
+		boolean isInitializer = false; // This is not an initializer
+		
+		methods.put("message", new LoxFunction(function, environment, isInitializer));
+		
+		// Define the 'message' method
+		body = new ArrayList<>(); // Stores the statement for the upcoming "message" function
+		name = new Token("", "", TokenType.IDENTIFIER, "getType", null, 0); // Token for the name
+		
+		parameters = new ArrayList<>(); // No parameters
+		
+		body.add(new Stmt.Return(
+				new Token("", "", TokenType.RETURN, "return", null, 0),
+				new Literal("InterpreterRuntimeError"))); // Simply return the defined message
+		
+		function = new Function(name, parameters, body); // Create the function to be stored
+		
+		isInitializer = false; // This is not an initializer
+		
+		methods.put("getType", new LoxFunction(function, environment, isInitializer));
+		
+		Token runtimeError = new Token(catchStmt.identifier.directory, catchStmt.identifier.file, TokenType.IDENTIFIER, "RuntimeError", null, catchStmt.identifier.line);
+		
+		LoxClass interpreterRuntimeError =  new LoxClass("InterpreterRuntimeError", (LoxClass) globals.get(runtimeError), methods);
+		
+		// ^ Create an anonymous class that extends RuntimeError
+		
+		LoxInstance errorInstance = new LoxInstance(interpreterRuntimeError);
+		
+		/*
+		Token name = new Token(catchStmt.identifier.file, TokenType.IDENTIFIER, "message", null, catchStmt.identifier.line);
+		
+		List<Token> parameters = new ArrayList<>();
+		
+		List<Stmt> body = new ArrayList<>();
+		
+		body.add(new Stmt.Return(
+				new Token(catchStmt.identifier.file, TokenType.RETURN, "return", null, catchStmt.identifier.line),
+				new Literal(error.getMessage())));
+		
+		Function function = new Function(name, parameters, body);
+		
+		boolean isInitializer = false;
+		
+		errorInstance.set(runtimeError, new LoxFunction(function, environment, isInitializer));
+		*/
+		
+		return errorInstance;
+		
+	}
+	
 	@Override
 	public Void visitVarStmt(Var stmt) {
 
@@ -473,7 +882,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		if (stmt.initializer != null)
 			value = evaluate(stmt.initializer);
 
-		environment.define(stmt.name.lexeme, value);
+		if (stmt.slot < 0)
+			environment.define(stmt.name.lexeme, value);
+		else
+			frame[stmt.slot] = value;
+
 		return null;
 
 	}
@@ -483,30 +896,71 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		
 		int stackNum = incrementStack(stmt.keyword);
 		
-		while (isTruthy(evaluate(stmt.condition))) {
-			incrementStack(stmt.keyword);
-			execute(stmt.body);
-		}
+		if (tracer != null)
+			traceLoop(stmt);
+		else
+			while (isTruthy(evaluate(stmt.condition)))
+				execute(stmt.body);
 		
 		decrementStack(stackNum);
 
 		return null;
 
 	}
+	
+	/**
+	 * Runs a loop on its trace once it's hot, see {@link Tracer}
+	 */
+	private void traceLoop(While stmt) {
+		
+		Tracer.Loop loop = tracer.loop(stmt);
+		
+		while (true) {
+			
+			if (loop.trace != null) {
+				if (loop.trace.run(this, environment))
+					return;
+				// An iteration left the trace, and was finished here
+				tracer.exited(stmt, loop);
+				continue;
+			}
+			
+			if (!isTruthy(evaluate(stmt.condition)))
+				return;
+			
+			// Loops inside the one being recorded are part of its recording
+			if (tracer.recording == null && loop.hot()) {
+				
+				tracer.recording = loop.recording;
+				try {
+					execute(stmt.body);
+				} finally {
+					tracer.recording = null;
+				}
+				
+				tracer.compile(stmt, loop);
+				
+			} else
+				execute(stmt.body);
+			
+		}
+		
+	}
 
 	@Override
 	public Object visitAssignExpr(Assign expr) {
 
 		Object value = evaluate(expr.value);
 
-		Integer distance = locals.get(expr);
+		Integer distance = distance(expr);
 
-		if (distance != null)
-			environment.assignAt(distance, expr.name, value);
-		else
+		if (distance == null)
 			globals.assign(expr.name, value);
+		else if (distance < 0)
+			frame[~distance] = value;
+		else
+			writableScope(distance).assignAt(0, expr.name, value);
 
-		environment.assign(expr.name, value);
 		return value;
 
 	}
@@ -517,6 +971,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		Object left = evaluate(expr.left);
 		Object right = evaluate(expr.right);
 
+		if (tracer != null && tracer.recording != null)
+			tracer.recording.operands(expr, left, right);
+
+		// Type inference proved both are numbers, nothing to check
+		if (expr.left.type == LoxType.NUMBER && expr.right.type == LoxType.NUMBER)
+			switch (expr.operator.type) {
+			case GREATER:
+				return (double) left > (double) right;
+			case GREATER_EQUAL:
+				return (double) left >= (double) right;
+			case LESS:
+				return (double) left < (double) right;
+			case LESS_EQUAL:
+				return (double) left <= (double) right;
+			case MINUS:
+				return (double) left - (double) right;
+			case STAR:
+				return (double) left * (double) right;
+			case SLASH:
+				return (double) left / (double) right;
+			case PLUS:
+				return (double) left + (double) right;
+
+			default:
+			}
+
 		switch (expr.operator.type) {
 		case EQUAL_EQUAL:
 			return isEqual(left, right);
@@ -577,7 +1057,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 			throw new InterpreterRuntimeError(expr.paren,
 					"Expected " + function.arity() + " arguments but got " + arguments.size());
 		
-		Object result = function.call(this, arguments);
+		Object result;
+		
+		try {
+			result = function.call(this, arguments);
+		} catch(InterpreterRuntimeError error) {
+			
+			// Natives don't know where they were called from
+			if(error.token == null)
+				throw new InterpreterRuntimeError(expr.paren, error.getMessage(), error.catchable);
+			
+			throw error;
+			
+		}
 		
 		decrementStack(stackNum);
 
@@ -591,7 +1083,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		Object object = evaluate(expr.object);
 
 		if (object instanceof LoxInstance)
-			return ((LoxInstance) object).get(expr.name);
+			return property((LoxInstance) object, expr.name);
 
 		throw new InterpreterRuntimeError(expr.name, "Only instances can have properties");
 
@@ -642,7 +1134,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 			throw new InterpreterRuntimeError(expr.name, "Only instances have fields");
 
 		Object value = evaluate(expr.value);
-		((LoxInstance) object).set(expr.name, value);
+		setProperty((LoxInstance) object, expr.name, value);
 		return value;
 
 	}
@@ -650,7 +1142,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	@Override
 	public Object visitSuperExpr(Super expr) {
 
-		int distance = locals.get(expr);
+		int distance = distance(expr);
 		LoxClass superclass = (LoxClass) environment.getSuperAt(distance);
 
 		// "this" is always one level nearer than "super"'s environment
@@ -680,7 +1172,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		case BANG:
 			return !isTruthy(right);
 		case MINUS:
-			checkNumberOperand(expr.operator, right);
+			if (expr.right.type != LoxType.NUMBER)
+				checkNumberOperand(expr.operator, right);
 			return -(double) right;
 
 		default:
@@ -699,18 +1192,105 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	void resolve(Expr expr, int depth) {
 
-		locals.put(expr, depth);
+		if(locals.put(expr, depth) == null && resolvedSinceFork != null)
+			resolvedSinceFork.add(expr);
 
 	}
 
+	/**
+	 * Resolves a local kept in a slot of its function's frame
+	 */
+	void resolveSlot(Expr expr, int slot) {
+
+		resolve(expr, ~slot);
+	}
+
 	private Object lookUpVariable(Token name, Expr expr) {
 
+		Integer distance = distance(expr);
+
+		if (distance == null)
+			return globals.get(name);
+		else if (distance < 0)
+			return frame[~distance];
+		else
+			return scope(distance).get(name);
+
+	}
+
+	/**
+	 * @return how many environments out the variable is, ~slot </br>
+	 *         if it's in the frame, null if it's a global
+	 */
+	Integer distance(Expr expr) {
+
 		Integer distance = locals.get(expr);
 
-		if (distance != null)
-			return environment.getAt(distance, name);
+		if (distance == null && sharedLocals != null)
+			distance = sharedLocals.get(expr);
+
+		return distance;
+
+	}
+
+	/**
+	 * @return the environment the given number of scopes out, </br>
+	 *         or this interpreter's copy of it if it has one
+	 */
+	private Environment scope(int distance) {
+
+		return scope(environment, distance);
+	}
+
+	Environment scope(Environment environment, int distance) {
+
+		Environment scope = environment.ancestor(distance);
+
+		if (!scope.frozen)
+			return scope;
+
+		Environment copy = (Environment) copies.get(scope);
+		return (copy == null) ? scope : copy;
+
+	}
+
+	private Environment writableScope(int distance) {
+
+		return writableScope(environment, distance);
+	}
+
+	Environment writableScope(Environment environment, int distance) {
+
+		Environment scope = environment.ancestor(distance);
+
+		if (!scope.frozen)
+			return scope;
+
+		return (Environment) copies.computeIfAbsent(scope, frozen -> ((Environment) frozen).copy());
+
+	}
+
+	@SuppressWarnings("unchecked")
+	Object property(LoxInstance instance, Token name) {
+
+		if (instance.frozen) {
+			Map<String, Object> fields = (Map<String, Object>) copies.get(instance);
+			if (fields != null)
+				return instance.get(name, fields);
+		}
+
+		return instance.get(name);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	void setProperty(LoxInstance instance, Token name, Object value) {
+
+		if (instance.frozen)
+			((Map<String, Object>) copies.computeIfAbsent(instance, frozen -> ((LoxInstance) frozen).copyFields()))
+					.put(name.lexeme, value);
 		else
-			return globals.get(name);
+			instance.set(name, value);
 
 	}
 
@@ -719,14 +1299,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		return expr.accept(this);
 	}
 
-	private void checkNumberOperand(Token operator, Object operand) {
+	void checkNumberOperand(Token operator, Object operand) {
 
 		if (operand instanceof Double)
 			return;
 		throw new InterpreterRuntimeError(operator, "Operand must be a number");
 	}
 
-	private void checkNumberOperand(Token operator, Object left, Object right) {
+	void checkNumberOperand(Token operator, Object left, Object right) {
 
 		if (left instanceof Double && right instanceof Double)
 			return;
@@ -755,7 +1335,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	}
 	
-	private int incrementStack(Token incrementer) {
+	Vm vm() {
+		
+		if(vm == null)
+			vm = new Vm(this);
+		
+		return vm;
+		
+	}
+	
+	int incrementStack(Token incrementer) {
 		
 		if(stackSize >= 1024)
 			throw new InterpreterRuntimeError(incrementer, "Stack overflow", false);
@@ -764,12 +1353,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		
 	}
 	
-	private void decrementStack(int stackNum) {
+	/**
+	 * @return the path of a file the script names, see {@link LoxContext#file(String)}
+	 */
+	Path file(String path) {
+		
+		return context.file(path);
+	}
+	
+	void decrementStack(int stackNum) {
 		
 		stackSize = stackNum;
 	}
 	
-	private boolean isTruthy(Object object) {
+	private Object testMethod(LoxInstance test) {
+		
+		try {
+			return property(test, new Token("", "", TokenType.IDENTIFIER, "method", null, 0));
+		} catch(InterpreterRuntimeError error) {
+			return "<unknown>";
+		}
+		
+	}
+	
+	private String readLine() {
+		
+		try {
+			return in.readLine();
+		} catch(IOException ioe) {
+			throw new InterpreterRuntimeError("Unable to read input: " + ioe.getMessage());
+		}
+		
+	}
+	
+	boolean isTruthy(Object object) {
 
 		if (object == null)
 			return false;
@@ -782,7 +1399,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		
 	}
 
-	private boolean isEqual(Object a, Object b) {
+	boolean isEqual(Object a, Object b) {
 
 		// nil is only equal to nil
 		if (a == null && b == null)
@@ -810,7 +1427,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	}
 	
-	private boolean errorMatches(Catch stmt, RuntimeError error) {
+	boolean errorMatches(Catch stmt, RuntimeError error) {
 		
 		for(Token errorType : stmt.errors) {
 			
@@ -832,7 +1449,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		
 	}
 
-	private String stringify(Object object) {
+	String stringify(Object object) {
 
 		if (object == null)
 			return "nil";
@@ -0,0 +1,270 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Saves an {@link InterpreterSnapshot} to a single file and </br>
+ * maps it back in, in the spirit of a Smalltalk image: the </br>
+ * globals, classes, functions with their closures, the </br>
+ * resolver's side table and the parsed modules
+ * </p>
+ *
+ * <p>
+ * Natives belong to the interpreter running them, so only </br>
+ * their names are saved and a loaded image uses the natives </br>
+ * of the interpreter it's loaded into. Natives holding on to </br>
+ * something outside the interpreter, like an open file, </br>
+ * can't be saved at all
+ * </p>
+ *
+ * <p>
+ * Loading an image runs no Lox code, but it can create any </br>
+ * of the interpreter's objects, so only load images you </br>
+ * would run the code of
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class InterpreterImage {
+	
+	private static final byte[] MAGIC = "LOXIMG".getBytes(StandardCharsets.US_ASCII);
+	
+	// Bump whenever one of the saved classes changes shape
+	static final int VERSION = 1;
+	
+	private InterpreterImage() {}
+	
+	static void write(Path file, InterpreterSnapshot snapshot, Interpreter source, ModuleCache cache)
+			throws IOException {
+		
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		
+		try(OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+			
+			DataOutputStream header = new DataOutputStream(stream);
+			header.write(MAGIC);
+			header.writeInt(VERSION);
+			
+			ImageOutput out = new ImageOutput(stream, source);
+			out.writeObject(new HashMap<>(snapshot.globals));
+			out.writeObject(new HashMap<>(snapshot.locals));
+			out.writeObject(new HashSet<>(snapshot.modules));
+			out.writeObject(new HashMap<>(cache.entries()));
+			out.flush();
+			
+		} catch(IOException ioe) {
+			Files.deleteIfExists(temporary);
+			throw ioe;
+		}
+		
+		// Never leave half an image behind for the next run to load
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+		
+	}
+	
+	/**
+	 * Maps the image and reads it into the context's </br>
+	 * interpreter, which must not have run anything yet
+	 *
+	 * @return the snapshot the image was saved from
+	 */
+	@SuppressWarnings("unchecked")
+	static InterpreterSnapshot read(Path file, LoxContext context) throws IOException {
+		
+		ByteBuffer image;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if(image.remaining() < MAGIC.length + Integer.BYTES)
+			throw new IOException("not a Lox image");
+		
+		byte[] magic = new byte[MAGIC.length];
+		image.get(magic);
+		if(!Arrays.equals(magic, MAGIC))
+			throw new IOException("not a Lox image");
+		
+		int version = image.getInt();
+		if(version != VERSION)
+			throw new IOException("image version " + version + " can't be read by this interpreter, which reads version "
+					+ VERSION + ", create it again");
+		
+		try(ImageInput in = new ImageInput(new BufferInputStream(image), context.interpreter)) {
+			
+			Map<String, Object> globals = (Map<String, Object>) in.readObject();
+			Map<Expr, Integer> locals = (Map<Expr, Integer>) in.readObject();
+			Set<String> modules = (Set<String>) in.readObject();
+			Map<String, ModuleCache.Entry> bodies = (Map<String, ModuleCache.Entry>) in.readObject();
+			
+			context.modules.putAll(bodies);
+			
+			return new InterpreterSnapshot(globals, locals, modules, context.interpreter, context.modules);
+			
+		} catch(ClassNotFoundException | ClassCastException e) {
+			throw new IOException("image is damaged, create it again", e);
+		}
+		
+	}
+	
+	/**
+	 * Stands in for the globals of the interpreter the image </br>
+	 * was saved from, which closures of top level functions </br>
+	 * point to
+	 */
+	private enum Placeholder {
+		GLOBALS
+	}
+	
+	/**
+	 * Stands in for a native, by name
+	 */
+	private static final class NativeReference implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		final String name;
+		
+		NativeReference(String name) {
+			this.name = name;
+		}
+		
+	}
+	
+	private static final class ImageOutput extends ObjectOutputStream {
+		
+		private final Interpreter source;
+		private final Map<Object, String> natives;
+		
+		ImageOutput(OutputStream out, Interpreter source) throws IOException {
+			
+			super(out);
+			enableReplaceObject(true);
+			
+			this.source = source;
+			this.natives = new IdentityHashMap<>();
+			
+			for(Map.Entry<String, Object> builtin : source.builtins.flatten().entrySet())
+				if(builtin.getValue() instanceof LoxCallable)
+					natives.put(builtin.getValue(), builtin.getKey());
+			
+		}
+		
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			
+			if(obj == source.globals)
+				return Placeholder.GLOBALS;
+			
+			String name = natives.get(obj);
+			if(name != null)
+				return new NativeReference(name);
+			
+			if(obj instanceof LoxCallable && !(obj instanceof LoxFunction) && !(obj instanceof LoxClass))
+				throw new NotSerializableException(obj + " can't be saved in an image");
+			
+			return obj;
+			
+		}
+		
+	}
+	
+	private static final class ImageInput extends ObjectInputStream {
+		
+		private final Interpreter target;
+		private final Map<String, Object> natives;
+		
+		ImageInput(InputStream in, Interpreter target) throws IOException {
+			
+			super(in);
+			enableResolveObject(true);
+			
+			this.target = target;
+			this.natives = target.builtins.flatten();
+			
+		}
+		
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			
+			if(obj == Placeholder.GLOBALS)
+				return target.globals;
+			
+			if(obj instanceof NativeReference) {
+				
+				String name = ((NativeReference) obj).name;
+				if(!natives.containsKey(name))
+					throw new InvalidObjectException("the image uses the native '" + name + "', which isn't defined");
+				
+				return natives.get(name);
+				
+			}
+			
+			return obj;
+			
+		}
+		
+	}
+	
+	/**
+	 * Reads straight out of the mapped image
+	 */
+	private static final class BufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			
+			if(len == 0)
+				return 0;
+			if(!buffer.hasRemaining())
+				return -1;
+			
+			int read = Math.min(len, buffer.remaining());
+			buffer.get(b, off, read);
+			
+			return read;
+			
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,252 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A fixed number of interpreters, initialized up front, </br>
+ * for running one script per request
+ * </p>
+ *
+ * <p>
+ * Every interpreter is forked from one {@link InterpreterSnapshot} </br>
+ * of the preloaded modules. A borrowed interpreter copies what it </br>
+ * writes of the shared state, and giving it back drops those </br>
+ * copies again, so requests can't see each other's changes and </br>
+ * never pay for the natives or the library again
+ * </p>
+ *
+ * <pre>
+ * try(InterpreterPool.Lease lease = pool.borrow(out, err)) {
+ *     lease.run("request.lox", source);
+ * }
+ * </pre>
+ *
+ * @author dragonfire
+ *
+ */
+public class InterpreterPool {
+	
+	private static final Writer DISCARD = new Writer() {
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) {}
+		
+		@Override
+		public void flush() {}
+		
+		@Override
+		public void close() {}
+		
+	};
+	
+	private final int size;
+	private final BlockingQueue<Lease> idle;
+	
+	private final AtomicInteger active;
+	private final LongAdder borrows;
+	private final LongAdder borrowNanos;
+	private final AtomicLong maxBorrowNanos;
+	
+	/**
+	 * @param modules
+	 *            what to import into every interpreter up </br>
+	 *            front, like <b>"collections/List"</b>
+	 * @throws IllegalArgumentException
+	 *             if one of the modules doesn't load
+	 */
+	public InterpreterPool(int size, List<String> modules) {
+		this(size, InterpreterSnapshot.create(modules));
+	}
+	
+	/**
+	 * A pool of interpreters forked from the snapshot
+	 */
+	public InterpreterPool(int size, InterpreterSnapshot snapshot) {
+		
+		if(size < 1)
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		
+		this.size = size;
+		this.idle = new ArrayBlockingQueue<>(size);
+		
+		this.active = new AtomicInteger();
+		this.borrows = new LongAdder();
+		this.borrowNanos = new LongAdder();
+		this.maxBorrowNanos = new AtomicLong();
+		
+		for(int i = 0; i < size; i++)
+			idle.add(new Lease(snapshot.fork(DISCARD, DISCARD)));
+		
+	}
+	
+	/**
+	 * Waits for an interpreter to become free
+	 *
+	 * @param out
+	 *            where the script's output goes
+	 * @param err
+	 *            where its errors are reported
+	 */
+	public Lease borrow(Writer out, Writer err) throws InterruptedException {
+		
+		long start = System.nanoTime();
+		return lend(idle.take(), start, out, err);
+		
+	}
+	
+	/**
+	 * @return a free interpreter, or null if none became free in time
+	 */
+	public Lease borrow(Writer out, Writer err, long timeout, TimeUnit unit) throws InterruptedException {
+		
+		long start = System.nanoTime();
+		
+		Lease lease = idle.poll(timeout, unit);
+		if(lease == null)
+			return null;
+		
+		return lend(lease, start, out, err);
+		
+	}
+	
+	public Metrics metrics() {
+		
+		long count = borrows.sum();
+		
+		return new Metrics(size, active.get(), idle.size(), count,
+				(count == 0) ? 0 : borrowNanos.sum() / count, maxBorrowNanos.get());
+		
+	}
+	
+	private Lease lend(Lease lease, long start, Writer out, Writer err) {
+		
+		long waited = System.nanoTime() - start;
+		
+		borrows.increment();
+		borrowNanos.add(waited);
+		maxBorrowNanos.accumulateAndGet(waited, Math::max);
+		active.incrementAndGet();
+		
+		lease.open(out, err);
+		
+		return lease;
+		
+	}
+	
+	private void release(Lease lease) {
+		
+		lease.context.interpreter.reset();
+		lease.context.diagnostics.reset();
+		
+		// Don't keep the request's writers alive while idle
+		lease.context.interpreter.output.redirect(DISCARD);
+		lease.context.diagnostics.redirect(new PrintWriter(DISCARD));
+		
+		active.decrementAndGet();
+		idle.add(lease);
+		
+	}
+	
+	/**
+	 * One borrowed interpreter, given back by closing it
+	 */
+	public final class Lease implements AutoCloseable {
+		
+		private final LoxContext context;
+		private boolean open;
+		
+		private Lease(LoxContext context) {
+			
+			this.context = context;
+		}
+		
+		private void open(Writer out, Writer err) {
+			
+			context.interpreter.output.redirect(out);
+			context.diagnostics.redirect(new PrintWriter(err, true));
+			open = true;
+			
+		}
+		
+		/**
+		 * Scans, parses, resolves and runs a script
+		 *
+		 * @return the value of the last statement if it's an </br>
+		 *         expression statement
+		 */
+		public Object run(String file, String source) {
+			
+			return context.eval(file, source);
+		}
+		
+		/**
+		 * @return whether anything the lease ran had an error
+		 */
+		public boolean failed() {
+			
+			return context.failed();
+		}
+		
+		/**
+		 * @return the code passed to <b>exit</b>, or null if the script didn't exit
+		 */
+		public Integer exitCode() {
+			
+			return context.exitCode();
+		}
+		
+		@Override
+		public void close() {
+			
+			if(!open)
+				return;
+			
+			open = false;
+			release(this);
+			
+		}
+		
+	}
+	
+	/**
+	 * A snapshot of the pool, borrow latencies are in nanoseconds
+	 */
+	public static final class Metrics {
+		
+		public final int size;
+		public final int active;
+		public final int idle;
+		public final long borrows;
+		public final long meanBorrowNanos;
+		public final long maxBorrowNanos;
+		
+		Metrics(int size, int active, int idle, long borrows, long meanBorrowNanos, long maxBorrowNanos) {
+			
+			this.size = size;
+			this.active = active;
+			this.idle = idle;
+			this.borrows = borrows;
+			this.meanBorrowNanos = meanBorrowNanos;
+			this.maxBorrowNanos = maxBorrowNanos;
+			
+		}
+		
+		@Override
+		public String toString() {
+			
+			return "size=" + size + " active=" + active + " idle=" + idle + " borrows=" + borrows
+					+ " meanBorrow=" + meanBorrowNanos + "ns maxBorrow=" + maxBorrowNanos + "ns";
+		}
+		
+	}
+	
+}
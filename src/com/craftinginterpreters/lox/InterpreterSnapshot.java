@@ -0,0 +1,243 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * The state of an interpreter after it ran its setup code, </br>
+ * which any number of independent interpreters can be </br>
+ * forked from without running that code again
+ * </p>
+ *
+ * <p>
+ * A fork shares the snapshot's globals, classes, functions and </br>
+ * resolved statements instead of copying them. Everything they </br>
+ * reach is frozen when the snapshot is taken: a fork that </br>
+ * assigns a global, sets a field of a shared instance or </br>
+ * assigns a variable a shared closure captured gets its own </br>
+ * copy of just that on the first write, so forks never see </br>
+ * each other's changes
+ * </p>
+ *
+ * <pre>
+ * InterpreterSnapshot app = InterpreterSnapshot.create(Arrays.asList("app/Routes"));
+ * LoxContext request = app.fork(out, err);
+ * request.eval("request.lox", source);
+ * </pre>
+ *
+ * <p>
+ * A snapshot can also be saved to an image file with </br>
+ * {@link #save(Path)} and loaded by another process, which </br>
+ * then starts from it without running the setup code at all
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+public final class InterpreterSnapshot {
+	
+	// Forks run a script or two, not a whole program
+	static final int OUTPUT_BUFFER_SIZE = 1 << 12;
+	
+	final Map<String, Object> globals;
+	final Map<Expr, Integer> locals;
+	final Set<String> modules;
+	
+	// Owns the natives and the globals the snapshot's closures point to
+	private final Interpreter source;
+	private final ModuleCache cache;
+	
+	InterpreterSnapshot(Map<String, Object> globals, Map<Expr, Integer> locals, Set<String> modules,
+			Interpreter source, ModuleCache cache) {
+		
+		this.globals = Collections.unmodifiableMap(globals);
+		this.locals = locals;
+		this.modules = Collections.unmodifiableSet(modules);
+		this.source = source;
+		this.cache = cache;
+		
+	}
+	
+	/**
+	 * Takes a snapshot of a context that has run its setup </br>
+	 * code. The context keeps working, but from now on its </br>
+	 * own writes to the shared state are copied too
+	 */
+	static InterpreterSnapshot of(LoxContext context) {
+		
+		Interpreter interpreter = context.interpreter;
+		Map<String, Object> globals = interpreter.globals.flatten();
+		
+		// Native modules hold on to the interpreter that imported them, forks get their own
+		for(String module : interpreter.preloaded)
+			if(NativeModule.find(module) != null)
+				globals.remove(module);
+		
+		Set<Object> frozen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(Object value : globals.values())
+			freeze(value, interpreter.globals, frozen);
+		
+		return new InterpreterSnapshot(globals, interpreter.resolutions(), new HashSet<>(interpreter.preloaded),
+				interpreter, context.modules);
+		
+	}
+	
+	/**
+	 * Runs the setup code in a new interpreter and takes </br>
+	 * a snapshot of it
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the code has an error
+	 */
+	public static InterpreterSnapshot create(String file, String source) {
+		
+		StringWriter errors = new StringWriter();
+		
+		LoxContext context = host(errors);
+		context.eval(file, source);
+		
+		if(context.failed())
+			throw new IllegalArgumentException("Unable to set up the snapshot:\n" + errors.toString().trim());
+		
+		return of(context);
+		
+	}
+	
+	/**
+	 * Imports the modules in a new interpreter and takes </br>
+	 * a snapshot of it
+	 *
+	 * @param modules
+	 *            import locations, like <b>"collections/List"</b>
+	 */
+	public static InterpreterSnapshot create(List<String> modules) {
+		
+		StringBuilder source = new StringBuilder();
+		for(String module : modules)
+			source.append("import \"").append(module).append("\";\n");
+		
+		return create("", source.toString());
+		
+	}
+	
+	/**
+	 * Loads a snapshot saved with {@link #save(Path)}. Natives </br>
+	 * it refers to are those of a new interpreter, writing to </br>
+	 * stdout
+	 */
+	public static InterpreterSnapshot load(Path image) throws IOException {
+		
+		return load(image, host(new StringWriter()));
+	}
+	
+	/**
+	 * Loads a snapshot into a context that hasn't run </br>
+	 * anything yet, which then continues from it
+	 */
+	static InterpreterSnapshot load(Path image, LoxContext context) throws IOException {
+		
+		InterpreterSnapshot snapshot = InterpreterImage.read(image, context);
+		context.interpreter.restore(snapshot);
+		
+		return snapshot;
+		
+	}
+	
+	/**
+	 * Saves the snapshot to an image file
+	 *
+	 * @throws java.io.NotSerializableException
+	 *             if it holds a native value that only makes </br>
+	 *             sense in this process, like an open file
+	 */
+	public void save(Path image) throws IOException {
+		
+		InterpreterImage.write(image, this, source, cache);
+	}
+	
+	/**
+	 * @param out
+	 *            where the fork's output goes
+	 * @param err
+	 *            where its errors are reported
+	 * @return a new, independent context starting from the snapshot
+	 */
+	public LoxContext fork(Writer out, Writer err) {
+		
+		LoxContext fork = new LoxContext(
+				new OutputChannel(out, OutputChannel.FlushPolicy.FULL, OUTPUT_BUFFER_SIZE),
+				new BufferedReader(new InputStreamReader(System.in)),
+				new Diagnostics(new PrintWriter(err, true)), cache, new HashMap<>(), new HashMap<>());
+		
+		fork.interpreter.restore(this);
+		
+		return fork;
+		
+	}
+	
+	private static LoxContext host(Writer errors) {
+		
+		return new LoxContext(
+				OutputChannel.stdout(OutputChannel.FlushPolicy.FULL),
+				new BufferedReader(new InputStreamReader(System.in)),
+				new Diagnostics(new PrintWriter(errors, true)), new ModuleCache(), new HashMap<>(), new HashMap<>());
+		
+	}
+	
+	/**
+	 * Marks everything reachable from a value as shared, </br>
+	 * stopping at the globals, which forks never write to
+	 */
+	private static void freeze(Object value, Environment globals, Set<Object> frozen) {
+		
+		if(value == null || !frozen.add(value))
+			return;
+		
+		if(value instanceof LoxInstance) {
+			
+			LoxInstance instance = (LoxInstance) value;
+			instance.frozen = true;
+			
+			freeze(instance.klass(), globals, frozen);
+			for(Object field : instance.fieldValues())
+				freeze(field, globals, frozen);
+			
+		} else if(value instanceof LoxClass) {
+			
+			LoxClass klass = (LoxClass) value;
+			
+			freeze(klass.superclass, globals, frozen);
+			for(LoxFunction method : klass.methods())
+				freeze(method, globals, frozen);
+			
+		} else if(value instanceof LoxFunction) {
+			
+			for(Environment scope = ((LoxFunction) value).closure(); scope != null && scope != globals; scope = scope.enclosing) {
+				
+				if(!frozen.add(scope))
+					break;
+				
+				scope.frozen = true;
+				for(Object variable : scope.variables())
+					freeze(variable, globals, frozen);
+				
+			}
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,289 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * The native <b>io</b> module, imported with <code>import "io";</code>
+ * </p>
+ *
+ * <p>
+ * Defines the global <b>io</b>:
+ * </p>
+ * <ul>
+ * <li>io.open(path, mode) - opens a file, mode is "r", "w" or "a"</li>
+ * <li>io.readFile(path) - reads a whole file into a string</li>
+ * <li>io.writeFile(path, text), io.appendFile(path, text)</li>
+ * <li>io.lines(path) - a lazy iterator over the lines of a file, closing it </br>
+ * once they run out or on close()</li>
+ * <li>io.exists(path)</li>
+ * </ul>
+ *
+ * <p>
+ * Relative paths start from the directory of the script's </br>
+ * {@link LoxContext}, see {@link LoxContext#file(String)}
+ * </p>
+ *
+ * <p>
+ * Opened files have readLine(), readAll(), lines(), write(text), </br>
+ * writeLine(text), flush() and close(). Files bigger than </br>
+ * {@link #MAP_THRESHOLD} are read through a memory mapping, </br>
+ * and writes are buffered until the file is flushed or closed
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class IoModule implements NativeModule {
+	
+	static final String NAME = "io";
+	static final long MAP_THRESHOLD = 1 << 20;
+	static final int BUFFER_SIZE = 1 << 16;
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final LoxClass IO = new LoxClass("io", null, new HashMap<>());
+	private static final LoxClass FILE = new LoxClass("File", null, new HashMap<>());
+	
+	@Override
+	public void define(Interpreter interpreter, Environment environment) {
+		
+		LoxInstance io = new LoxInstance(IO);
+		
+		new NativeFunction("open", 2, (in, arguments) -> {
+			
+			Path path = path(in, arguments.get(0));
+			Object mode = arguments.get(1);
+			
+			try {
+				
+				if("r".equals(mode))
+					return openForReading(interpreter, path);
+				if("w".equals(mode))
+					return openForWriting(interpreter, path, StandardOpenOption.TRUNCATE_EXISTING);
+				if("a".equals(mode))
+					return openForWriting(interpreter, path, StandardOpenOption.APPEND);
+				
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to open '" + path + "': " + describe(ioe));
+			}
+			
+			throw new InterpreterRuntimeError("Invalid file mode '" + in.stringify(mode) + "', expected \"r\", \"w\" or \"a\"");
+			
+		}).attach(io);
+		
+		new NativeFunction("readFile", 1, (in, arguments) -> {
+			
+			Path path = path(in, arguments.get(0));
+			
+			try(Reader reader = reader(path)) {
+				return readAll(reader);
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to read '" + path + "': " + describe(ioe));
+			}
+			
+		}).attach(io);
+		
+		new NativeFunction("writeFile", 2, (in, arguments) -> {
+			writeFile(path(in, arguments.get(0)), in.stringify(arguments.get(1)), StandardOpenOption.TRUNCATE_EXISTING);
+			return null;
+		}).attach(io);
+		
+		new NativeFunction("appendFile", 2, (in, arguments) -> {
+			writeFile(path(in, arguments.get(0)), in.stringify(arguments.get(1)), StandardOpenOption.APPEND);
+			return null;
+		}).attach(io);
+		
+		new NativeFunction("lines", 1, (in, arguments) -> {
+			
+			Path path = path(in, arguments.get(0));
+			
+			try {
+				BufferedReader reader = new BufferedReader(reader(path), BUFFER_SIZE);
+				interpreter.register(reader);
+				return LineIterator.owning(interpreter, reader);
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to read '" + path + "': " + describe(ioe));
+			}
+			
+		}).attach(io);
+		
+		new NativeFunction("exists", 1, (in, arguments) -> Files.exists(path(in, arguments.get(0)))).attach(io);
+		
+		environment.define(NAME, io);
+		
+	}
+	
+	private static LoxInstance openForReading(Interpreter interpreter, Path path) throws IOException {
+		
+		BufferedReader reader = new BufferedReader(reader(path), BUFFER_SIZE);
+		interpreter.register(reader);
+		
+		LoxInstance file = new LoxInstance(FILE);
+		
+		new NativeFunction("readLine", 0, (in, arguments) -> {
+			
+			try {
+				return reader.readLine();
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to read '" + path + "': " + describe(ioe));
+			}
+			
+		}).attach(file);
+		
+		new NativeFunction("readAll", 0, (in, arguments) -> {
+			
+			try {
+				return readAll(reader);
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to read '" + path + "': " + describe(ioe));
+			}
+			
+		}).attach(file);
+		
+		new NativeFunction("lines", 0, (in, arguments) -> LineIterator.create(reader)).attach(file);
+		
+		attachClose(interpreter, file, reader, path);
+		
+		return file;
+		
+	}
+	
+	private static LoxInstance openForWriting(Interpreter interpreter, Path path, StandardOpenOption mode) throws IOException {
+		
+		BufferedWriter writer = writer(path, mode);
+		interpreter.register(writer);
+		
+		LoxInstance file = new LoxInstance(FILE);
+		
+		new NativeFunction("write", 1, (in, arguments) -> {
+			write(writer, path, in.stringify(arguments.get(0)));
+			return null;
+		}).attach(file);
+		
+		new NativeFunction("writeLine", 1, (in, arguments) -> {
+			write(writer, path, in.stringify(arguments.get(0)) + "\n");
+			return null;
+		}).attach(file);
+		
+		new NativeFunction("flush", 0, (in, arguments) -> {
+			
+			try {
+				writer.flush();
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to write '" + path + "': " + describe(ioe));
+			}
+			
+			return null;
+			
+		}).attach(file);
+		
+		attachClose(interpreter, file, writer, path);
+		
+		return file;
+		
+	}
+	
+	private static void attachClose(Interpreter interpreter, LoxInstance file, Closeable resource, Path path) {
+		
+		new NativeFunction("close", 0, (in, arguments) -> {
+			
+			interpreter.release(resource);
+			
+			try {
+				resource.close();
+			} catch(IOException ioe) {
+				throw new InterpreterRuntimeError("Unable to close '" + path + "': " + describe(ioe));
+			}
+			
+			return null;
+			
+		}).attach(file);
+		
+	}
+	
+	/**
+	 * Large files are decoded straight out of a memory </br>
+	 * mapping, small ones aren't worth setting one up for
+	 */
+	private static Reader reader(Path path) throws IOException {
+		
+		if(Files.size(path) >= MAP_THRESHOLD)
+			return new MappedFileReader(path, CHARSET);
+		
+		return Files.newBufferedReader(path, CHARSET);
+		
+	}
+	
+	private static BufferedWriter writer(Path path, StandardOpenOption mode) throws IOException {
+		
+		return new BufferedWriter(new OutputStreamWriter(
+				Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode), CHARSET),
+				BUFFER_SIZE);
+		
+	}
+	
+	private static String readAll(Reader reader) throws IOException {
+		
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[BUFFER_SIZE];
+		
+		int read;
+		while((read = reader.read(buffer)) != -1)
+			text.append(buffer, 0, read);
+		
+		return text.toString();
+		
+	}
+	
+	private static void write(BufferedWriter writer, Path path, String text) {
+		
+		try {
+			writer.write(text);
+		} catch(IOException ioe) {
+			throw new InterpreterRuntimeError("Unable to write '" + path + "': " + describe(ioe));
+		}
+		
+	}
+	
+	private static void writeFile(Path path, String text, StandardOpenOption mode) {
+		
+		try(BufferedWriter writer = writer(path, mode)) {
+			writer.write(text);
+		} catch(IOException ioe) {
+			throw new InterpreterRuntimeError("Unable to write '" + path + "': " + describe(ioe));
+		}
+		
+	}
+	
+	private static String describe(IOException ioe) {
+		
+		if(ioe instanceof NoSuchFileException)
+			return "No such file";
+		
+		return ioe.getMessage();
+		
+	}
+	
+	private static Path path(Interpreter interpreter, Object path) {
+		
+		if(!(path instanceof String))
+			throw new InterpreterRuntimeError("File path must be a string");
+		
+		return interpreter.file((String) path);
+		
+	}
+	
+}
@@ -0,0 +1,213 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.HashMap;
+import java.util.List;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * Builds Lox iterators over the lines of a reader </br>
+ * </br>
+ * The iterator follows the same protocol as </br>
+ * <b>ListIterator</b> in collections/List: </br>
+ * <b>hasNext()</b> and <b>next()</b>, with <b>next()</b> </br>
+ * returning <b>nil</b> once the reader is exhausted </br>
+ * </br>
+ * An iterator that owns its reader, like the one of </br>
+ * <b>io.lines</b>, closes it once the lines run out, when </br>
+ * <b>close()</b> is called, or when the script drops it
+ * 
+ * @author dragonfire
+ *
+ */
+class LineIterator {
+	
+	private static final LoxClass LINE_ITERATOR = new LoxClass("LineIterator", null, new HashMap<>());
+	
+	// Closes the readers of the iterators scripts drop before the end
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	private final BufferedReader reader;
+	private String nextLine;
+	private boolean fetched;
+	private boolean closed;
+	
+	// Closes the reader, null if someone else owns it
+	private Cleaner.Cleanable closer;
+	
+	private LineIterator(BufferedReader reader) {
+		this.reader = reader;
+		this.nextLine = null;
+		this.fetched = false;
+		this.closed = false;
+		this.closer = null;
+	}
+	
+	/**
+	 * @return an iterator over a reader someone else closes
+	 */
+	static LoxInstance create(BufferedReader reader) {
+		
+		return instance(new LineIterator(reader));
+	}
+	
+	/**
+	 * @return an iterator that closes the reader and releases </br>
+	 *         it from the interpreter once it's done with it
+	 */
+	static LoxInstance owning(Interpreter interpreter, BufferedReader reader) {
+		
+		LineIterator iterator = new LineIterator(reader);
+		LoxInstance instance = instance(iterator);
+		
+		iterator.closer = CLEANER.register(instance, new Closer(interpreter, reader));
+		
+		instance.set(field("close"), new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				iterator.close();
+				return null;
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
+		return instance;
+		
+	}
+	
+	private static LoxInstance instance(LineIterator iterator) {
+		
+		LoxInstance instance = new LoxInstance(LINE_ITERATOR);
+		
+		instance.set(field("hasNext"), new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				return iterator.hasNext();
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
+		instance.set(field("next"), new LoxCallable() {
+			
+			@Override
+			public Object call(Interpreter interpreter, List<Object> arguments) {
+				return iterator.next();
+			}
+			
+			@Override
+			public int arity() {
+				return 0;
+			}
+			
+		});
+		
+		return instance;
+		
+	}
+	
+	private boolean hasNext() {
+		
+		fetch();
+		return nextLine != null;
+		
+	}
+	
+	private String next() {
+		
+		fetch();
+		
+		String line = nextLine;
+		fetched = false;
+		nextLine = null;
+		
+		return line;
+		
+	}
+	
+	private void fetch() {
+		
+		if(fetched)
+			return;
+		
+		// A closed iterator has no lines left
+		if(closed) {
+			nextLine = null;
+			fetched = true;
+			return;
+		}
+		
+		try {
+			nextLine = reader.readLine();
+		} catch(IOException ioe) {
+			throw new InterpreterRuntimeError("Unable to read line: " + ioe.getMessage());
+		}
+		
+		fetched = true;
+		
+		if(nextLine == null)
+			close();
+		
+	}
+	
+	private void close() {
+		
+		if(closer == null)
+			return;
+		
+		closed = true;
+		closer.clean();
+		
+	}
+	
+	private static Token field(String name) {
+		return new Token("", "", TokenType.IDENTIFIER, name, null, 0);
+	}
+	
+	/**
+	 * Closes an owned reader, run once by whichever comes first: </br>
+	 * the end of the lines, <b>close()</b> or the cleaner. It </br>
+	 * mustn't hold on to the iterator, or it would never be dropped
+	 */
+	private static class Closer implements Runnable {
+		
+		private final Interpreter interpreter;
+		private final BufferedReader reader;
+		
+		Closer(Interpreter interpreter, BufferedReader reader) {
+			
+			this.interpreter = interpreter;
+			this.reader = reader;
+			
+		}
+		
+		@Override
+		public void run() {
+			
+			interpreter.release(reader);
+			
+			try {
+				reader.close();
+			} catch(IOException ioe) {
+				// Nothing is left to read from it anyway
+			}
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,721 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * An {@link Optimizer} that moves expressions whose value </br>
+ * can't change out of <b>while</b> loops, and the loops </br>
+ * <b>for</b> turns into, into locals declared right before
+ * </p>
+ *
+ * <p>
+ * An expression is the same every iteration if all it reads </br>
+ * is literals, <b>this</b> and locals in the frame of the </br>
+ * function nothing in the loop assigns or declares again. </br>
+ * Locals in the frame are never captured, so nothing else can </br>
+ * change them. A property is read the same too, as long as </br>
+ * nothing in the loop sets a property or could run Lox code: </br>
+ * a call, <b>==</b> of an instance or turning one into a string
+ * </p>
+ *
+ * <p>
+ * The hoisted expressions run once before the loop instead </br>
+ * of every time it goes around, even if it wouldn't have </br>
+ * gone around at all, so they have to be ones that can't </br>
+ * fail, like arithmetic type inference proved is always on </br>
+ * numbers. The exception is the condition: it's tested at </br>
+ * least once, so what it evaluates before anything that </br>
+ * could fail or run code may fail before the loop as well
+ * </p>
+ *
+ * <p>
+ * Only functions with a frame get their loops optimized, the </br>
+ * hoisted values go in new slots of it. Runs after {@link TypeInference}
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class LoopHoister extends Optimizer {
+	
+	private static final Operands OPERANDS = new Operands();
+	
+	private final Interpreter interpreter;
+	
+	// The frame size of the function being visited, 0 outside of one or if it has no frame
+	private int frameSize;
+	// What replaces each hoisted expression while its loop is copied
+	private Map<Expr, Expr> replacements;
+	
+	private int hoisted;
+	
+	LoopHoister(LoxContext context) {
+		
+		super(context);
+		
+		this.interpreter = context.interpreter;
+		this.frameSize = 0;
+		this.replacements = null;
+		this.hoisted = 0;
+		
+	}
+	
+	/**
+	 * @return how many expressions were moved out of loops so far
+	 */
+	int hoisted() {
+		
+		return hoisted;
+	}
+	
+	@Override
+	Expr optimize(Expr expr) {
+		
+		if(replacements != null && replacements.containsKey(expr))
+			return replacements.get(expr);
+		
+		return super.optimize(expr);
+		
+	}
+	
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		
+		if(replacements != null)
+			return super.visitFunctionStmt(stmt);
+		
+		int enclosing = frameSize;
+		frameSize = stmt.frameSize;
+		
+		Stmt.Function function = (Stmt.Function) super.visitFunctionStmt(stmt);
+		
+		// A copy, the body had loops hoisted out of
+		if(function != stmt)
+			function.frameSize = frameSize;
+		
+		frameSize = enclosing;
+		
+		return function;
+		
+	}
+	
+	@Override
+	public Expr visitLambdaExpr(Expr.Lambda expr) {
+		
+		if(replacements != null)
+			return super.visitLambdaExpr(expr);
+		
+		int enclosing = frameSize;
+		frameSize = expr.frameSize;
+		
+		Expr lambda = super.visitLambdaExpr(expr);
+		
+		if(lambda != expr)
+			((Expr.Lambda) lambda).frameSize = frameSize;
+		
+		frameSize = enclosing;
+		
+		return lambda;
+		
+	}
+	
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		
+		// Loops inside go first, what they hoisted may be hoisted again
+		Stmt.While loop = (Stmt.While) super.visitWhileStmt(stmt);
+		
+		if(replacements != null || frameSize == 0)
+			return loop;
+		
+		List<Expr> invariants = new Loop(loop).invariants();
+		
+		if(invariants.isEmpty())
+			return loop;
+		
+		List<Stmt> statements = new ArrayList<>(invariants.size() + 1);
+		replacements = new IdentityHashMap<>();
+		
+		for(Expr invariant : invariants) {
+			
+			int slot = frameSize++;
+			Token name = new Token(loop.keyword.directory, loop.keyword.file, TokenType.IDENTIFIER, "$" + slot, null,
+					loop.keyword.line);
+			
+			Stmt.Var declaration = new Stmt.Var(name, invariant);
+			declaration.slot = slot;
+			statements.add(declaration);
+			
+			Expr.Variable variable = new Expr.Variable(name);
+			interpreter.resolveSlot(variable, slot);
+			replacements.put(invariant, variable);
+			
+		}
+		
+		statements.add(super.visitWhileStmt(loop));
+		replacements = null;
+		
+		hoisted += invariants.size();
+		
+		// Declared in the frame, the block doesn't need a scope
+		Stmt.Block block = new Stmt.Block(statements);
+		block.sharesScope = true;
+		return block;
+		
+	}
+	
+	/**
+	 * Finds the invariant expressions of one loop, not looking </br>
+	 * into the functions it declares, they have frames of their own
+	 */
+	private final class Loop implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+		
+		private final Stmt.While loop;
+		
+		// The slots the loop assigns or declares
+		private final java.util.Set<Integer> written;
+		// Whether it sets properties or could run Lox code
+		private boolean effects;
+		
+		private final List<Expr> invariants;
+		// Whether searching for invariants, instead of what the loop writes
+		private boolean searching;
+		// Whether nothing the condition evaluated so far could fail or run code
+		private boolean clean;
+		
+		Loop(Stmt.While loop) {
+			
+			this.loop = loop;
+			this.written = new HashSet<>();
+			this.effects = false;
+			this.invariants = new ArrayList<>();
+			this.searching = false;
+			this.clean = true;
+			
+		}
+		
+		/**
+		 * @return the biggest invariant expressions worth hoisting, </br>
+		 *         in the order the loop evaluates them
+		 */
+		List<Expr> invariants() {
+			
+			expression(loop.condition);
+			loop.body.accept(this);
+			
+			searching = true;
+			
+			collect(loop.condition, true);
+			loop.body.accept(this);
+			
+			return invariants;
+			
+		}
+		
+		private void expression(Expr expr) {
+			
+			if(searching)
+				collect(expr, false);
+			else
+				expr.accept(this);
+			
+		}
+		
+		/**
+		 * @param first
+		 *            whether the condition's first test always </br>
+		 *            evaluates it, before anything but what's clean
+		 */
+		private void collect(Expr expr, boolean first) {
+			
+			if(worthHoisting(expr) && invariant(expr) && (safe(expr) || (first && clean))) {
+				invariants.add(expr);
+				return;
+			}
+			
+			List<Expr> operands = expr.accept(OPERANDS);
+			
+			for(int i = 0; i < operands.size(); i++)
+				// The right side of and/or might not run
+				collect(operands.get(i), first && !(expr instanceof Expr.Logical && i > 0));
+			
+			clean &= operationSafe(expr);
+			
+		}
+		
+		private boolean worthHoisting(Expr expr) {
+			
+			while(expr instanceof Expr.Grouping)
+				expr = ((Expr.Grouping) expr).expression;
+			
+			return expr instanceof Expr.Binary
+					|| expr instanceof Expr.Unary
+					|| expr instanceof Expr.Logical
+					|| expr instanceof Expr.Get;
+			
+		}
+		
+		private boolean invariant(Expr expr) {
+			
+			if(expr instanceof Expr.Literal || expr instanceof Expr.This)
+				return true;
+			
+			if(expr instanceof Expr.Variable) {
+				Integer distance = interpreter.distance(expr);
+				return distance != null && distance < 0 && !written.contains(~distance);
+			}
+			
+			if(expr instanceof Expr.Get && effects)
+				return false;
+			
+			if(!(expr instanceof Expr.Grouping
+					|| expr instanceof Expr.Unary
+					|| expr instanceof Expr.Binary
+					|| expr instanceof Expr.Logical
+					|| expr instanceof Expr.Get))
+				return false;
+			
+			for(Expr operand : expr.accept(OPERANDS))
+				if(!invariant(operand))
+					return false;
+			
+			return true;
+			
+		}
+		
+		/**
+		 * @return whether evaluating it can't fail or run Lox code
+		 */
+		private boolean safe(Expr expr) {
+			
+			if(!operationSafe(expr))
+				return false;
+			
+			for(Expr operand : expr.accept(OPERANDS))
+				if(!safe(operand))
+					return false;
+			
+			return true;
+			
+		}
+		
+		/**
+		 * @return whether the expression itself can't fail or run </br>
+		 *         Lox code, once its operands are evaluated
+		 */
+		private boolean operationSafe(Expr expr) {
+			
+			if(expr instanceof Expr.Literal
+					|| expr instanceof Expr.Grouping
+					|| expr instanceof Expr.Logical
+					|| expr instanceof Expr.This
+					|| expr instanceof Expr.Lambda)
+				return true;
+			
+			// Only globals can be undefined
+			if(expr instanceof Expr.Variable)
+				return interpreter.distance(expr) != null;
+			
+			if(expr instanceof Expr.Unary) {
+				Expr.Unary unary = (Expr.Unary) expr;
+				return unary.operator.type == TokenType.BANG || unary.right.type == LoxType.NUMBER;
+			}
+			
+			if(expr instanceof Expr.Binary) {
+				
+				Expr.Binary binary = (Expr.Binary) expr;
+				LoxType left = binary.left.type, right = binary.right.type;
+				
+				switch(binary.operator.type) {
+				case EQUAL_EQUAL:
+				case BANG_EQUAL:
+					// An instance could have an equals method
+					return known(left);
+				case PLUS:
+					// An instance could have a toString method
+					return known(left) && known(right)
+							&& (left == LoxType.STRING || right == LoxType.STRING
+									|| (left == LoxType.NUMBER && right == LoxType.NUMBER));
+				default:
+					return ClosureCompiler.numbers(binary);
+				}
+				
+			}
+			
+			return false;
+			
+		}
+		
+		private boolean known(LoxType type) {
+			
+			return type != null && type != LoxType.ANY;
+		}
+		
+		private void write(int slot) {
+			
+			if(slot >= 0)
+				written.add(slot);
+		}
+		
+		@Override
+		public Void visitBlockStmt(Stmt.Block stmt) {
+			
+			for(Stmt statement : stmt.statements)
+				statement.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitCatchStmt(Stmt.Catch stmt) {
+			
+			stmt.body.accept(this);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitClassStmt(Stmt.Class stmt) {
+			
+			if(stmt.superclass != null)
+				expression(stmt.superclass);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitExitStmt(Stmt.Exit stmt) {
+			
+			if(stmt.exitCode != null)
+				expression(stmt.exitCode);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitExpressionStmt(Stmt.Expression stmt) {
+			
+			expression(stmt.expression);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitFunctionStmt(Stmt.Function stmt) {
+			
+			write(stmt.slot);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitIfStmt(Stmt.If stmt) {
+			
+			expression(stmt.condition);
+			stmt.thenBranch.accept(this);
+			
+			if(stmt.elseBranch != null)
+				stmt.elseBranch.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitImportStmt(Stmt.Import stmt) {
+			
+			// The module runs, but in its own scope
+			effects = true;
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitIncludeStmt(Stmt.Include stmt) {
+			
+			effects = true;
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitPrintStmt(Stmt.Print stmt) {
+			
+			if(!known(stmt.expression.type))
+				effects = true;
+			
+			expression(stmt.expression);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitReturnStmt(Stmt.Return stmt) {
+			
+			if(stmt.value != null)
+				expression(stmt.value);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitThrowStmt(Stmt.Throw stmt) {
+			
+			expression(stmt.thrown);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitTryStmt(Stmt.Try stmt) {
+			
+			stmt.body.accept(this);
+			
+			for(Stmt.Catch catchStmt : stmt.catches)
+				catchStmt.accept(this);
+			
+			if(stmt.finallyStmt != null)
+				stmt.finallyStmt.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitVarStmt(Stmt.Var stmt) {
+			
+			if(stmt.initializer != null)
+				expression(stmt.initializer);
+			
+			if(!searching)
+				write(stmt.slot);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitWhileStmt(Stmt.While stmt) {
+			
+			expression(stmt.condition);
+			stmt.body.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitAssignExpr(Expr.Assign expr) {
+			
+			expr.value.accept(this);
+			
+			Integer distance = interpreter.distance(expr);
+			if(distance != null && distance < 0)
+				write(~distance);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitBinaryExpr(Expr.Binary expr) {
+			
+			if(!operationSafe(expr))
+				switch(expr.operator.type) {
+				case EQUAL_EQUAL:
+				case BANG_EQUAL:
+				case PLUS:
+					effects = true;
+					break;
+				default:
+				}
+			
+			expr.left.accept(this);
+			expr.right.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitCallExpr(Expr.Call expr) {
+			
+			effects = true;
+			
+			expr.callee.accept(this);
+			for(Expr argument : expr.arguments)
+				argument.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitGetExpr(Expr.Get expr) {
+			
+			expr.object.accept(this);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitGroupingExpr(Expr.Grouping expr) {
+			
+			expr.expression.accept(this);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitLambdaExpr(Expr.Lambda expr) {
+			
+			return null;
+		}
+		
+		@Override
+		public Void visitLiteralExpr(Expr.Literal expr) {
+			
+			return null;
+		}
+		
+		@Override
+		public Void visitLogicalExpr(Expr.Logical expr) {
+			
+			expr.left.accept(this);
+			expr.right.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitSetExpr(Expr.Set expr) {
+			
+			effects = true;
+			
+			expr.object.accept(this);
+			expr.value.accept(this);
+			
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitSuperExpr(Expr.Super expr) {
+			
+			return null;
+		}
+		
+		@Override
+		public Void visitThisExpr(Expr.This expr) {
+			
+			return null;
+		}
+		
+		@Override
+		public Void visitUnaryExpr(Expr.Unary expr) {
+			
+			expr.right.accept(this);
+			return null;
+			
+		}
+		
+		@Override
+		public Void visitVariableExpr(Expr.Variable expr) {
+			
+			return null;
+		}
+		
+	}
+	
+	/**
+	 * The expressions an expression evaluates first, in order, </br>
+	 * not counting the body of a lambda
+	 */
+	private static final class Operands implements Expr.Visitor<List<Expr>> {
+		
+		@Override
+		public List<Expr> visitAssignExpr(Expr.Assign expr) {
+			return Collections.singletonList(expr.value);
+		}
+		
+		@Override
+		public List<Expr> visitBinaryExpr(Expr.Binary expr) {
+			return Arrays.asList(expr.left, expr.right);
+		}
+		
+		@Override
+		public List<Expr> visitCallExpr(Expr.Call expr) {
+			
+			List<Expr> operands = new ArrayList<>(expr.arguments.size() + 1);
+			operands.add(expr.callee);
+			operands.addAll(expr.arguments);
+			
+			return operands;
+			
+		}
+		
+		@Override
+		public List<Expr> visitGetExpr(Expr.Get expr) {
+			return Collections.singletonList(expr.object);
+		}
+		
+		@Override
+		public List<Expr> visitGroupingExpr(Expr.Grouping expr) {
+			return Collections.singletonList(expr.expression);
+		}
+		
+		@Override
+		public List<Expr> visitLambdaExpr(Expr.Lambda expr) {
+			return Collections.emptyList();
+		}
+		
+		@Override
+		public List<Expr> visitLiteralExpr(Expr.Literal expr) {
+			return Collections.emptyList();
+		}
+		
+		@Override
+		public List<Expr> visitLogicalExpr(Expr.Logical expr) {
+			return Arrays.asList(expr.left, expr.right);
+		}
+		
+		@Override
+		public List<Expr> visitSetExpr(Expr.Set expr) {
+			return Arrays.asList(expr.object, expr.value);
+		}
+		
+		@Override
+		public List<Expr> visitSuperExpr(Expr.Super expr) {
+			return Collections.emptyList();
+		}
+		
+		@Override
+		public List<Expr> visitThisExpr(Expr.This expr) {
+			return Collections.emptyList();
+		}
+		
+		@Override
+		public List<Expr> visitUnaryExpr(Expr.Unary expr) {
+			return Collections.singletonList(expr.right);
+		}
+		
+		@Override
+		public List<Expr> visitVariableExpr(Expr.Variable expr) {
+			return Collections.emptyList();
+		}
+		
+	}
+	
+}
@@ -3,145 +3,311 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
-import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
-import com.craftinginterpreters.lox.RuntimeError.UserRuntimeError;
-
 public class Lox {
 	
-	private static Interpreter interpreter = new Interpreter();
-	
-	private static boolean hadError = false;
-	private static boolean hadRuntimeError = false;
-	
 	public static void main(String[] args) {
 		
+		// The interpreter reads these when it's made, so they have to be set first
+		args = configure(args);
+		
+		LoxContext context = new LoxContext();
+		Interpreter interpreter = context.interpreter;
+		
+		// Whatever is still buffered must reach stdout, even if the JVM goes down abruptly
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> interpreter.shutdown()));
+		
 		try {
 		
 		// Run according to args provided
-		if(args.length > 1)
-			System.out.println("Usage: jlox [script]");
+		if(args.length > 0 && args[0].equals("--test"))
+			runTests(context, args);
+		else if(args.length > 0 && args[0].equals("--create-image"))
+			createImage(context, args);
+		else if(args.length > 0 && args[0].equals("--image"))
+			runImage(context, args);
+		else if(args.length > 0 && args[0].equals("--daemon"))
+			runDaemon(context, args);
+		else if(args.length > 0 && args[0].equals("--create-startup-archive"))
+			createStartupArchive(context, args);
+		else if(args.length > 1)
+			System.out.println("Usage: jlox [--engine <name>] [--trace] [script] | jlox --image <image> [script] | jlox --create-image <image> <script>"
+					+ " | jlox --daemon [socket] | jlox --create-startup-archive [training script]"
+					+ " | jlox --test <dir> [--junit <file>] [--all-engines]");
 		else if(args.length == 1)
-			runFile(args[0]);
+			runFile(context, args[0]);
 		else
-			runPrompt();
+			runPrompt(context);
 		
 		} catch(IOException ioe) {
-			error(args[0], 0, "File doesn't exist");
+			context.diagnostics.error(args[args.length - 1], 0, "File doesn't exist");
+		}
+		
+	}
+	
+	/**
+	 * Turns the options in front of the rest into the properties </br>
+	 * they stand for: <b>--engine &lt;name&gt;</b> for <b>lox.engine</b> </br>
+	 * and <b>--trace</b> for <b>lox.trace</b>
+	 *
+	 * @return the arguments after them
+	 */
+	private static String[] configure(String[] args) {
+		
+		int first = 0;
+		while(first < args.length) {
+			if(args[first].equals("--trace")) {
+				System.setProperty("lox.trace", "true");
+				first++;
+			} else if(args[first].equals("--engine")) {
+				if(first + 1 == args.length) {
+					System.out.println("Usage: jlox --engine <name> ...");
+					System.exit(64);
+				}
+				System.setProperty("lox.engine", args[first + 1]);
+				first += 2;
+			} else
+				break;
+		}
+		
+		// A misspelled engine is a usage mistake, not a crash
+		try {
+			Engine.configured();
+		} catch(IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.exit(64);
 		}
 		
+		return Arrays.copyOfRange(args, first, args.length);
+		
 	}
 	
-	private static void runFile(String path) throws IOException {
+	private static void runFile(LoxContext context, String path) throws IOException {
+		
+		int status = runScript(context, path);
+		if(status != 0)
+			System.exit(status);
+		
+	}
+	
+	/**
+	 * Runs a script to the end
+	 *
+	 * @return the status the process should exit with
+	 */
+	static int runScript(LoxContext context, String path) throws IOException {
+		
+		Interpreter interpreter = context.interpreter;
 		
 		// Read the file into memory
 		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(path, new String(bytes, Charset.defaultCharset()));
+		
+		// Nobody is watching line by line, so only flush when the buffer fills up
+		interpreter.output.setFlushPolicy(OutputChannel.FlushPolicy.FULL);
+		context.run(path, new String(bytes, Charset.defaultCharset()));
+		interpreter.shutdown();
+		
+		if(interpreter.exitCode != null)
+			return interpreter.exitCode;
 		
 		// Indicate an error in the exit code
-		if(hadError)
-			System.exit(65);
-		if(hadRuntimeError)
-			System.exit(70);
+		if(context.diagnostics.hadError)
+			return 65;
+		if(context.diagnostics.hadRuntimeError)
+			return 70;
+		
+		return 0;
 		
 	}
 	
-	private static void runPrompt() throws IOException {
+	private static void runPrompt(LoxContext context) throws IOException {
 		
-		BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+		Interpreter interpreter = context.interpreter;
+		
+		// Share the interpreter's reader so the prompt and readLine() don't steal each other's input
+		BufferedReader input = interpreter.in;
+		
+		interpreter.output.setFlushPolicy(OutputChannel.FlushPolicy.LINE);
 		
 		while(true) {
+			interpreter.output.flush();
 			System.out.print("> ");
-			run("", input.readLine());
+			
+			String line = input.readLine();
+			if(line == null)
+				break;
+			
+			// A mistake on one line shouldn't stop the next from running
+			context.diagnostics.reset();
+			context.run("", line);
+			
+			if(interpreter.exitCode != null) {
+				interpreter.shutdown();
+				System.exit(interpreter.exitCode);
+			}
 		}
 		
 	}
 	
-	private static void run(String file, String source) {
-		
-		// Split the source into tokens
-		Scanner scanner = new Scanner(file, source);
-		List<Token> tokens = scanner.scanTokens();
-		
-		Parser parser = new Parser(tokens);
-		List<Stmt> statements = parser.parse();
-		
-		// Stop if there was a syntax error
-		if(hadError)
-			return;
-		
-		Resolver resolver = new Resolver(interpreter);
-		resolver.resolve(statements);
+	/**
+	 * Runs the script, then saves everything it defined to </br>
+	 * an image that <b>--image</b> starts from
+	 */
+	private static void createImage(LoxContext context, String[] args) throws IOException {
 		
-		// Stop if there was a resolver error
-		if(hadError)
-			return;
+		if(args.length != 3) {
+			System.out.println("Usage: jlox --create-image <image> <script>");
+			System.exit(64);
+		}
 		
-		Suggester suggester = new Suggester();
-		suggester.suggest(statements);
+		int status = runScript(context, args[2]);
+		if(status != 0)
+			System.exit(status);
 		
-		interpreter.interpret(statements);
+		try {
+			InterpreterSnapshot.of(context).save(Paths.get(args[1]));
+		} catch(IOException ioe) {
+			context.diagnostics.error(args[1], 0, "Unable to save the image, " + ioe.getMessage());
+			System.exit(74);
+		}
 		
 	}
 	
 	/**
-	 * Report an error
-	 * 
-	 * @param line
-	 *            the line upon which the error occurs
-	 * @param message
-	 *            a message that goes along with the error
+	 * Starts from an image instead of a fresh interpreter, </br>
+	 * without running any of the code it was made from
 	 */
-	static void error(String file, int line, String message) {
-		report(file, line, "", "Error", message);
-		hadError = true;
-	}
-	
-	static void error(Token token, String message) {
-		if(token.type == TokenType.EOF)
-			report(token.file, token.line, "Error", " at end", message);
+	private static void runImage(LoxContext context, String[] args) throws IOException {
+		
+		if(args.length != 2 && args.length != 3) {
+			System.out.println("Usage: jlox --image <image> [script]");
+			System.exit(64);
+		}
+		
+		try {
+			InterpreterSnapshot.load(Paths.get(args[1]), context);
+		} catch(NoSuchFileException nsfe) {
+			context.diagnostics.error(args[1], 0, "File doesn't exist");
+			System.exit(66);
+		} catch(IOException ioe) {
+			context.diagnostics.error(args[1], 0, "Unable to load the image, " + ioe.getMessage());
+			System.exit(65);
+		}
+		
+		if(args.length == 3)
+			runFile(context, args[2]);
 		else
-			report(token.file, token.line, "Error", " at '" + token.lexeme + "'", message);
-		hadError = true;
-	}
-	
-	static void runtimeError(InterpreterRuntimeError error) {
-		runtimeError(error.token, error.getMessage());
-		hadRuntimeError = true;
-	}
-	
-	static void runtimeError(Token token, String message) {
-		report(token.file, token.line, "RuntimeError", " at '" + token.lexeme + "'", message);
-		hadRuntimeError = true;
-	}
-	
-	static void userError(UserRuntimeError error) {
-		report(error.throwToken.file, error.throwToken.line, error.instance.klass().name, "", error.getMessage());
+			runPrompt(context);
+		
 	}
 	
-	static void warning(String file, int line, String message) {
-		report(file, line, "Warning", "", message);
+	private static void runDaemon(LoxContext context, String[] args) {
+		
+		if(args.length > 2) {
+			System.out.println("Usage: jlox --daemon [socket]");
+			System.exit(64);
+		}
+		
+		Path socket = (args.length == 2) ? Paths.get(args[1]) : LoxDaemon.defaultSocket();
+		
+		try {
+			new LoxDaemon(socket).serve();
+		} catch(IOException ioe) {
+			context.diagnostics.error(socket.toString(), 0, "Unable to start the daemon, " + ioe.getMessage());
+			System.exit(71);
+		}
+		
 	}
 	
-	static void warning(Token token, String message) {
-		if(token.type == TokenType.EOF)
-			report(token.file, token.line, "Warning", " at end", message);
-		else
-			report(token.file, token.line, "Warning", " at '" + token.lexeme + "'", message);
+	/**
+	 * Creates the class-data sharing archive the <b>lox</b> </br>
+	 * launcher starts the JVM with, at <b>$LOX_ARCHIVE</b> </br>
+	 * or ~/.lox/startup.jsa
+	 */
+	private static void createStartupArchive(LoxContext context, String[] args) {
+		
+		if(args.length > 2) {
+			System.out.println("Usage: jlox --create-startup-archive [training script]");
+			System.exit(64);
+		}
+		
+		// The library's own tests load and run all of it
+		String training = (args.length == 2) ? args[1] : getLibLoc() + "LibraryTests.lox";
+		Path archive = StartupArchive.defaultLocation();
+		
+		try {
+			
+			int status = StartupArchive.create(archive, training);
+			if(status != 0)
+				System.err.println("The training script exited with " + status + ", the archive may be missing classes");
+			
+			System.out.println("Created the startup archive " + archive);
+			
+		} catch(IllegalStateException | IOException e) {
+			context.diagnostics.error(archive.toString(), 0, "Unable to create the startup archive, " + e.getMessage());
+			System.exit(74);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			System.exit(130);
+		}
+		
 	}
 	
-	private static void report(String file, int line, String type, String where, String message) {
-		if(!file.equals("")) file += ": ";
-		System.err.println("[" + file + "line " + line + "] " + type + where + ": " + message);
+	private static void runTests(LoxContext context, String[] args) {
+		
+		Path junitReport = null;
+		List<Engine> engines = Arrays.asList(Engine.configured());
+		
+		int i = 2;
+		while(i < args.length) {
+			
+			if(args[i].equals("--junit") && i + 1 < args.length) {
+				junitReport = Paths.get(args[i + 1]);
+				i += 2;
+			} else if(args[i].equals("--all-engines")) {
+				engines = Arrays.asList(Engine.values());
+				i++;
+			} else
+				break;
+			
+		}
+		
+		if(args.length < 2 || i != args.length) {
+			System.out.println("Usage: jlox --test <dir> [--junit <file>] [--all-engines]");
+			System.exit(64);
+		}
+		
+		int status;
+		
+		try {
+			status = new TestRunner(Paths.get(args[1]), junitReport, engines).run();
+		} catch(NoSuchFileException nsfe) {
+			context.diagnostics.error(nsfe.getFile(), 0, "File doesn't exist");
+			status = 66;
+		} catch(IOException ioe) {
+			// The run itself failed, not a suite
+			context.diagnostics.error(args[1], 0, ioe.getMessage());
+			status = 74;
+		}
+		
+		System.exit(status);
+		
 	}
 	
 	static String getLibLoc() {
 		
+		// An explicit location wins, for when the classes aren't run out of bin/
+		String lib = System.getProperty("lox.lib");
+		if(lib != null)
+			return lib.endsWith(File.separator) ? lib : lib + File.separator;
+		
 		// Get the binary location
 		String loc = System.getProperty("java.class.path");
 		
@@ -1,9 +1,12 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
 
-public class LoxClass implements LoxCallable {
+public class LoxClass implements LoxCallable, Serializable {
+	
+	private static final long serialVersionUID = 1L;
 	
 	final String name;
 	final LoxClass superclass;
@@ -19,16 +22,35 @@ public class LoxClass implements LoxCallable {
 	
 	LoxFunction findMethod(LoxInstance instance, String name) {
 		
+		LoxFunction method = method(name);
+		if(method != null)
+			return method.bind(instance);
+		
+		return null;
+		
+	}
+	
+	/**
+	 * @return the method this class or a superclass </br>
+	 *         declares, not bound to any instance yet
+	 */
+	LoxFunction method(String name) {
+		
 		if(methods.containsKey(name))
-			return methods.get(name).bind(instance);
+			return methods.get(name);
 		
 		if(superclass != null)
-			return superclass.findMethod(instance, name);
+			return superclass.method(name);
 		
 		return null;
 		
 	}
 	
+	java.util.Collection<LoxFunction> methods() {
+		
+		return methods.values();
+	}
+	
 	boolean inherits(Token klass) {
 		
 		if(klass.lexeme.equals(name))
@@ -0,0 +1,199 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Runs a script in a running {@link LoxDaemon} instead of a </br>
+ * new interpreter: sends it the script, the arguments and </br>
+ * stdin, writes out what comes back and exits with the </br>
+ * script's exit code
+ * </p>
+ *
+ * <p>
+ * Everything but running a script, or running one without </br>
+ * a daemon to send it to, is left to {@link Lox}, so the </br>
+ * client can stand in for it anywhere. So is a socket that </br>
+ * isn't private to the user, see {@link LoxDaemon#checkPrivate(Path)}. </br>
+ * The <b>lox</b> launcher starts the client with C1 only, which </br>
+ * would make a long script or session crawl, so when it's </br>
+ * started that way {@link Lox} gets a JVM of its own
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+public class LoxClient {
+	
+	// How the launcher starts the client, since C2 would never pay off for relaying
+	static final String RELAY_ONLY = "-XX:TieredStopAtLevel=1";
+	
+	public static void main(String[] args) throws IOException {
+		
+		if(args.length != 1 || args[0].startsWith("--")) {
+			runLocally(args);
+			return;
+		}
+		
+		Path socket = LoxDaemon.defaultSocket();
+		
+		// Someone else's socket could be anyone listening for the script and its input
+		try {
+			LoxDaemon.checkPrivate(socket);
+		} catch(NoSuchFileException nsfe) {
+			runLocally(args);
+			return;
+		} catch(IOException ioe) {
+			System.err.println("Not using the Lox daemon: " + ioe.getMessage());
+			runLocally(args);
+			return;
+		}
+		
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+		} catch(IOException ioe) {
+			// No daemon is listening
+			runLocally(args);
+			return;
+		}
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream request = new DataOutputStream(header);
+		
+		request.writeInt(LoxDaemon.VERSION);
+		request.writeUTF(System.getProperty("user.dir"));
+		request.writeInt(args.length);
+		for(String arg : args)
+			request.writeUTF(arg);
+		
+		write(channel, header.toByteArray(), header.size());
+		
+		Thread stdin = new Thread(() -> relayInput(channel), "lox-client-stdin");
+		stdin.setDaemon(true);
+		stdin.start();
+		
+		System.exit(relayOutput(channel));
+		
+	}
+	
+	/**
+	 * Runs Lox in this JVM, or in a new one without </br>
+	 * {@link #RELAY_ONLY} if this one was started with it, </br>
+	 * and exits with its exit code
+	 */
+	private static void runLocally(String[] args) throws IOException {
+		
+		List<String> options = ManagementFactory.getRuntimeMXBean().getInputArguments();
+		
+		if(!options.contains(RELAY_ONLY)) {
+			Lox.main(args);
+			return;
+		}
+		
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		for(String option : options)
+			if(!option.equals(RELAY_ONLY))
+				command.add(option);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Lox.class.getName());
+		command.addAll(Arrays.asList(args));
+		
+		Process lox = new ProcessBuilder(command).inheritIO().start();
+		
+		try {
+			System.exit(lox.waitFor());
+		} catch(InterruptedException ie) {
+			lox.destroy();
+			Thread.currentThread().interrupt();
+			System.exit(130);
+		}
+		
+	}
+	
+	/**
+	 * Sends stdin until it runs out, then tells the daemon so
+	 */
+	private static void relayInput(SocketChannel channel) {
+		
+		byte[] buffer = new byte[1 << 13];
+		
+		try {
+			int read;
+			while((read = System.in.read(buffer)) != -1)
+				write(channel, buffer, read);
+			channel.shutdownOutput();
+		} catch(IOException ioe) {
+			// The script finished without reading all of it
+		}
+		
+	}
+	
+	/**
+	 * @return the script's exit code
+	 */
+	private static int relayOutput(SocketChannel channel) {
+		
+		DataInputStream response = new DataInputStream(new BufferedInputStream(new LoxDaemon.ChannelInput(channel), 1 << 16));
+		byte[] buffer = new byte[1 << 13];
+		
+		try {
+			
+			while(true) {
+				
+				byte type = response.readByte();
+				int length = response.readInt();
+				
+				if(type == LoxDaemon.EXIT) {
+					System.out.flush();
+					System.err.flush();
+					return response.readInt();
+				}
+				
+				PrintStream out = (type == LoxDaemon.STDERR) ? System.err : System.out;
+				
+				while(length > 0) {
+					int read = response.read(buffer, 0, Math.min(length, buffer.length));
+					if(read == -1)
+						throw new EOFException();
+					out.write(buffer, 0, read);
+					length -= read;
+				}
+				
+			}
+			
+		} catch(IOException ioe) {
+			System.out.flush();
+			System.err.println("Lost the connection to the Lox daemon");
+			return 75;
+		}
+		
+	}
+	
+	private static void write(SocketChannel channel, byte[] bytes, int length) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		
+	}
+	
+}
@@ -0,0 +1,217 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Everything one run of Lox code needs: where its </br>
+ * errors go, the interpreter it runs in and the </br>
+ * cache of files it imports
+ * </p>
+ *
+ * <p>
+ * The scanner, parser, resolver, suggester and </br>
+ * interpreter of a run all report through the same </br>
+ * context, and nothing is shared between contexts </br>
+ * except (optionally) the {@link ModuleCache}, so any </br>
+ * number of them can run at the same time in one JVM
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+public class LoxContext {
+	
+	final Diagnostics diagnostics;
+	final ModuleCache modules;
+	final Interpreter interpreter;
+	// Where relative file paths start from, null for the process's own working directory
+	Path directory;
+	
+	public LoxContext() {
+		this(OutputChannel.stdout(OutputChannel.FlushPolicy.LINE), Diagnostics.stderr(), new ModuleCache());
+	}
+	
+	LoxContext(OutputChannel output, Diagnostics diagnostics, ModuleCache modules) {
+		this(output, new BufferedReader(new InputStreamReader(System.in), Interpreter.INPUT_BUFFER_SIZE),
+				diagnostics, modules, new HashMap<>(), new HashMap<>());
+	}
+	
+	/**
+	 * @param locals
+	 *            the resolution side table of the interpreter
+	 * @param globals
+	 *            where the interpreter keeps its global variables
+	 */
+	LoxContext(OutputChannel output, BufferedReader input, Diagnostics diagnostics, ModuleCache modules,
+			Map<Expr, Integer> locals, Map<String, Object> globals) {
+		
+		this.diagnostics = diagnostics;
+		this.modules = modules;
+		this.interpreter = new Interpreter(this, output, input, locals, globals);
+		
+	}
+	
+	/**
+	 * Scans and parses source code
+	 *
+	 * @return the statements, with a null in place of </br>
+	 *         every statement that had a syntax error
+	 */
+	List<Stmt> parse(String file, String source) {
+		
+		// Split the source into tokens
+		Scanner scanner = new Scanner(this, file, source);
+		List<Token> tokens = scanner.scanTokens();
+		
+		Parser parser = new Parser(this, tokens);
+		return parser.parse();
+		
+	}
+	
+	/**
+	 * Binds the variables of parsed statements to the </br>
+	 * context's interpreter
+	 *
+	 * @return false if there was a resolver error
+	 */
+	boolean resolve(List<Stmt> statements) {
+		
+		int errors = diagnostics.errorCount();
+		
+		Resolver resolver = new Resolver(this);
+		resolver.resolve(statements);
+		
+		return diagnostics.errorCount() == errors;
+		
+	}
+	
+	/**
+	 * Folds the constants of resolved statements, unless </br>
+	 * <b>-Dlox.optimizer=off</b>. With <b>report</b> it reports </br>
+	 * how many nodes it removed. <b>-Dlox.inline=true</b> inlines </br>
+	 * small functions too, see {@link Inliner}. Then it works out </br>
+	 * which expressions are always numbers, see {@link TypeInference}, </br>
+	 * and moves what can't change out of loops, see {@link LoopHoister}
+	 *
+	 * @return the statements to run instead
+	 */
+	List<Stmt> optimize(List<Stmt> statements) {
+		
+		String mode = System.getProperty("lox.optimizer", "on");
+		
+		if(mode.equals("off"))
+			return statements;
+		if(!mode.equals("on") && !mode.equals("report"))
+			throw new IllegalArgumentException("Unknown optimizer mode '" + mode + "', expected on, off or report");
+		
+		Optimizer optimizer = Boolean.getBoolean("lox.inline") ? new Inliner(this, statements) : new Optimizer(this);
+		List<Stmt> optimized = optimizer.optimize(statements);
+		
+		TypeInference inference = new TypeInference(this);
+		inference.infer(optimized);
+		
+		// Hoisting needs the types, and its locals need types of their own
+		LoopHoister hoister = new LoopHoister(this);
+		List<Stmt> hoisted = hoister.optimize(optimized);
+		
+		if(hoisted != optimized) {
+			optimized = hoisted;
+			inference = new TypeInference(this);
+			inference.infer(optimized);
+		}
+		
+		if(mode.equals("report")) {
+			diagnostics.note("Optimizer removed " + optimizer.removed() + " nodes");
+			if(optimizer instanceof Inliner)
+				diagnostics.note("Optimizer inlined " + ((Inliner) optimizer).inlined() + " calls");
+			diagnostics.note("Optimizer hoisted " + hoister.hoisted() + " expressions out of loops");
+			diagnostics.note("Type inference found " + inference.numbers() + " expressions that are always numbers");
+		}
+		
+		return optimized;
+		
+	}
+	
+	/**
+	 * Scans, parses, resolves and runs a script, reporting </br>
+	 * any errors to the context's diagnostics
+	 *
+	 * @return the value of the last statement if it's an </br>
+	 *         expression statement
+	 */
+	public Object eval(String file, String source) {
+		
+		List<Stmt> statements = parse(file, source);
+		
+		if(diagnostics.hadError || !resolve(statements))
+			return null;
+		
+		Object result = interpreter.interpret(optimize(statements));
+		interpreter.output.flush();
+		
+		return result;
+		
+	}
+	
+	/**
+	 * @return whether anything the context ran had an error
+	 */
+	public boolean failed() {
+		
+		return diagnostics.hadError || diagnostics.hadRuntimeError;
+	}
+	
+	/**
+	 * @return the code passed to <b>exit</b>, or null if nothing exited
+	 */
+	public Integer exitCode() {
+		
+		return interpreter.exitCode;
+	}
+	
+	/**
+	 * @return the path of a file the code names, relative </br>
+	 *         to the context's directory if it has one
+	 */
+	Path file(String path) {
+		
+		return (directory == null) ? Paths.get(path) : directory.resolve(path);
+	}
+	
+	/**
+	 * Flushes the output and closes whatever the scripts left open
+	 */
+	public void shutdown() {
+		
+		interpreter.shutdown();
+	}
+	
+	void run(String file, String source) {
+		
+		List<Stmt> statements = parse(file, source);
+		
+		// Stop if there was a syntax error
+		if(diagnostics.hadError)
+			return;
+		
+		resolve(statements);
+		
+		// Stop if there was a resolver error
+		if(diagnostics.hadError)
+			return;
+		
+		Suggester suggester = new Suggester(this);
+		suggester.suggest(statements);
+		
+		interpreter.interpret(optimize(statements));
+		
+	}
+	
+}
@@ -0,0 +1,354 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * <p>
+ * Runs scripts sent by {@link LoxClient} over a Unix domain </br>
+ * socket, so short scripts don't pay for starting a JVM and </br>
+ * loading the interpreter every time. The daemon stays warm: </br>
+ * its interpreter code is already compiled by the JIT, and </br>
+ * every script shares one {@link ModuleCache}, so a library </br>
+ * is only parsed again once its file changes
+ * </p>
+ *
+ * <p>
+ * Every script runs in its own {@link LoxContext}, on its own </br>
+ * thread, so scripts can't see each other's globals. The </br>
+ * context's directory is the client's working directory, so </br>
+ * relative paths mean the same as they would without a daemon
+ * </p>
+ *
+ * <p>
+ * Whoever can connect can run code as the daemon's user, so </br>
+ * the socket lives in a directory only the user can get into, </br>
+ * is only accessible to the user itself, and connections from </br>
+ * other users are turned away
+ * </p>
+ *
+ * <p>
+ * The client sends a request header, then its stdin until </br>
+ * it runs out:
+ * </p>
+ * <pre>
+ * int version, UTF working directory, int argument count, UTF arguments...
+ * </pre>
+ * <p>
+ * The daemon answers with frames of a type byte, an int </br>
+ * length and that many bytes, <b>STDOUT</b> and <b>STDERR</b> </br>
+ * frames carrying output and one last <b>EXIT</b> frame </br>
+ * carrying the exit code as an int
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class LoxDaemon {
+	
+	static final int VERSION = 1;
+	
+	static final byte STDOUT = 1;
+	static final byte STDERR = 2;
+	static final byte EXIT = 3;
+	
+	static final String SOCKET_NAME = "lox.sock";
+	
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	
+	private final Path socket;
+	private final ModuleCache modules;
+	private final ExecutorService workers;
+	
+	LoxDaemon(Path socket) {
+		
+		this.socket = socket;
+		this.modules = new ModuleCache();
+		this.workers = Executors.newCachedThreadPool(runnable -> {
+			Thread worker = new Thread(runnable, "lox-daemon-worker");
+			worker.setDaemon(true);
+			return worker;
+		});
+		
+	}
+	
+	/**
+	 * @return <b>$LOX_SOCKET</b>, or lox.sock in <b>$XDG_RUNTIME_DIR</b>, </br>
+	 *         or in the user's .lox directory without one
+	 */
+	static Path defaultSocket() {
+		
+		String socket = System.getenv("LOX_SOCKET");
+		if(socket != null && !socket.isEmpty())
+			return Paths.get(socket);
+		
+		String runtime = System.getenv("XDG_RUNTIME_DIR");
+		if(runtime != null && !runtime.isEmpty())
+			return Paths.get(runtime, SOCKET_NAME);
+		
+		return Paths.get(System.getProperty("user.home"), ".lox", SOCKET_NAME);
+		
+	}
+	
+	/**
+	 * Makes sure nobody but the user running this can have put </br>
+	 * the socket there or replace it: both it and the directory </br>
+	 * it's in belong to the user, and nobody else can write to </br>
+	 * the directory
+	 *
+	 * @throws IOException
+	 *             saying what's wrong if either isn't private
+	 */
+	static void checkPrivate(Path socket) throws IOException {
+		
+		Path directory = socket.toAbsolutePath().getParent();
+		UserPrincipal user = currentUser();
+		
+		if(!Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).equals(user))
+			throw new IOException(directory + " doesn't belong to " + user.getName());
+		
+		if(POSIX) {
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+			if(permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+				throw new IOException(directory + " can be written to by other users");
+		}
+		
+		if(Files.exists(socket, LinkOption.NOFOLLOW_LINKS) && !Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS).equals(user))
+			throw new IOException(socket + " doesn't belong to " + user.getName());
+		
+	}
+	
+	private static UserPrincipal currentUser() throws IOException {
+		
+		return FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+	}
+	
+	/**
+	 * Accepts scripts until the process is stopped
+	 */
+	void serve() throws IOException {
+		
+		Path directory = socket.toAbsolutePath().getParent();
+		if(POSIX && Files.notExists(directory, LinkOption.NOFOLLOW_LINKS))
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		
+		checkPrivate(socket);
+		
+		// Left behind by a daemon that didn't get to clean up
+		Files.deleteIfExists(socket);
+		
+		try(ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			
+			server.bind(UnixDomainSocketAddress.of(socket));
+			if(POSIX)
+				Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+			
+			UserPrincipal owner = currentUser();
+			
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					Files.deleteIfExists(socket);
+				} catch(IOException ioe) {}
+			}));
+			
+			System.out.println("Lox daemon listening on " + socket);
+			
+			while(true) {
+				SocketChannel client = server.accept();
+				
+				if(!fromOwner(client, owner)) {
+					client.close();
+					continue;
+				}
+				
+				workers.execute(() -> serve(client));
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * @return whether the client runs as the same user as the daemon
+	 */
+	private static boolean fromOwner(SocketChannel client, UserPrincipal owner) {
+		
+		try {
+			UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+			return peer.user().getName().equals(owner.getName());
+		} catch(IOException | UnsupportedOperationException e) {
+			// Nothing to tell who it is, the socket's permissions have to do
+			return true;
+		}
+		
+	}
+	
+	private void serve(SocketChannel client) {
+		
+		try(SocketChannel channel = client) {
+			
+			// The header and stdin come down the same stream, stdin starts right after the header
+			InputStream stdin = new BufferedInputStream(new ChannelInput(channel));
+			DataInputStream request = new DataInputStream(stdin);
+			
+			Frames frames = new Frames(channel);
+			PrintWriter err = new PrintWriter(new OutputStreamWriter(frames.stream(STDERR), Charset.defaultCharset()), true);
+			
+			if(request.readInt() != VERSION) {
+				err.println("The client doesn't match this daemon's version, restart the daemon");
+				frames.exit(64);
+				return;
+			}
+			
+			Path directory = Paths.get(request.readUTF());
+			String[] args = new String[request.readInt()];
+			for(int i = 0; i < args.length; i++)
+				args[i] = request.readUTF();
+			
+			if(args.length != 1 || args[0].startsWith("--")) {
+				err.println("Usage: jlox [script]");
+				frames.exit(64);
+				return;
+			}
+			
+			LoxContext context = new LoxContext(
+					new OutputChannel(new OutputStreamWriter(frames.stream(STDOUT), Charset.defaultCharset()),
+							OutputChannel.FlushPolicy.FULL),
+					new BufferedReader(new InputStreamReader(stdin, Charset.defaultCharset()), Interpreter.INPUT_BUFFER_SIZE),
+					new Diagnostics(err), modules, new HashMap<>(), new HashMap<>());
+			
+			// The daemon's own working directory means nothing to the script
+			context.directory = directory;
+			
+			String script = context.file(args[0]).toString();
+			int status;
+			
+			try {
+				status = Lox.runScript(context, script);
+			} catch(NoSuchFileException nsfe) {
+				context.diagnostics.error(script, 0, "File doesn't exist");
+				status = 66;
+			} finally {
+				context.shutdown();
+			}
+			
+			frames.exit(status);
+			
+		} catch(IOException ioe) {
+			// The client went away, nobody is left to tell
+		}
+		
+	}
+	
+	/**
+	 * Reads the socket directly. The streams from {@link java.nio.channels.Channels} </br>
+	 * lock the channel while they block, which would stop stdout </br>
+	 * from being written while the script waits for stdin
+	 */
+	static class ChannelInput extends InputStream {
+		
+		private final SocketChannel channel;
+		
+		ChannelInput(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+			
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if(len == 0)
+				return 0;
+			
+			return channel.read(ByteBuffer.wrap(b, off, len));
+			
+		}
+		
+	}
+	
+	/**
+	 * Writes frames to the client, whole frames at a time so </br>
+	 * stdout and stderr never end up inside each other
+	 */
+	private static class Frames {
+		
+		private final SocketChannel channel;
+		
+		Frames(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		synchronized void write(byte type, byte[] b, int off, int len) throws IOException {
+			
+			ByteBuffer header = ByteBuffer.allocate(1 + Integer.BYTES);
+			header.put(type).putInt(len).flip();
+			
+			ByteBuffer body = ByteBuffer.wrap(b, off, len);
+			while(header.hasRemaining() || body.hasRemaining())
+				channel.write(new ByteBuffer[] { header, body });
+			
+		}
+		
+		void exit(int status) throws IOException {
+			
+			write(EXIT, ByteBuffer.allocate(Integer.BYTES).putInt(status).array(), 0, Integer.BYTES);
+		}
+		
+		OutputStream stream(byte type) {
+			
+			return new OutputStream() {
+				
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if(len > 0)
+						Frames.this.write(type, b, off, len);
+				}
+				
+			};
+			
+		}
+		
+	}
+	
+}
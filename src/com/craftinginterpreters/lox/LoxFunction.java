@@ -1,8 +1,11 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-public class LoxFunction implements LoxCallable {
+public class LoxFunction implements LoxCallable, Serializable {
+	
+	private static final long serialVersionUID = 1L;
 	
 	private final String name;
 	private final FunctionType type;
@@ -10,33 +13,63 @@ public class LoxFunction implements LoxCallable {
 	private final List<Stmt> body;
 	private final Environment closure;
 	private final boolean isInitializer;
+	// Keeps nothing in an environment, so calls run right in the closure
+	private final boolean sharesScope;
+	// The slots each call allocates for its locals, and where the parameters go (-1 for the environment)
+	private final int frameSize;
+	private final int[] parameterSlots;
+	
+	// The body compiled by the ClosureCompiler, if it was. Images don't keep it
+	private final transient ClosureCompiler.CompiledStmt code;
 	
 	LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+		this(declaration, closure, isInitializer, null);
+	}
+	
+	LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, ClosureCompiler.CompiledStmt code) {
 		this(	declaration.name.lexeme,
 				FunctionType.FUNCTION,
 				declaration.parameters,
 				declaration.body,
+				declaration.sharesScope,
+				declaration.frameSize,
+				declaration.parameterSlots,
 				closure,
-				isInitializer);
+				isInitializer,
+				code);
 	}
 	
 	LoxFunction(Expr.Lambda declaration, Environment closure, boolean isInitializer) {
+		this(declaration, closure, isInitializer, null);
+	}
+	
+	LoxFunction(Expr.Lambda declaration, Environment closure, boolean isInitializer, ClosureCompiler.CompiledStmt code) {
 		this(	"",
 				FunctionType.LAMBDA,
 				declaration.parameters,
 				declaration.body,
+				declaration.sharesScope,
+				declaration.frameSize,
+				declaration.parameterSlots,
 				closure,
-				isInitializer);
+				isInitializer,
+				code);
 	}
 	
-	LoxFunction(String name, FunctionType type, List<Token> parameters, List<Stmt> body, Environment closure, boolean isInitializer) {
+	private LoxFunction(String name, FunctionType type, List<Token> parameters, List<Stmt> body, boolean sharesScope,
+			int frameSize, int[] parameterSlots, Environment closure, boolean isInitializer,
+			ClosureCompiler.CompiledStmt code) {
 		
 		this.name = name;
 		this.type = type;
 		this.parameters = parameters;
 		this.body = body;
+		this.sharesScope = sharesScope;
+		this.frameSize = frameSize;
+		this.parameterSlots = parameterSlots;
 		this.closure = closure;
 		this.isInitializer = isInitializer;
+		this.code = code;
 		
 	}
 	
@@ -44,33 +77,68 @@ public class LoxFunction implements LoxCallable {
 		
 		Environment environment = new Environment(closure);
 		environment.define("this", instance);
-		return new LoxFunction(name, type, parameters, body, environment, isInitializer);
+		return new LoxFunction(name, type, parameters, body, sharesScope, frameSize, parameterSlots, environment,
+				isInitializer, code);
 		
 	}
 	
 	@Override
 	public Object call(Interpreter interpreter, List<Object> arguments) {
 		
-		Environment environment = new Environment(closure);
+		Environment environment = sharesScope ? closure : new Environment(closure);
+		Object[] frame = (frameSize == 0) ? null : interpreter.frames.acquire(frameSize);
+		
+		for(int i = 0; i < parameters.size(); i++) {
+			if(parameterSlots[i] < 0)
+				environment.define(parameters.get(i).lexeme, arguments.get(i));
+			else
+				frame[parameterSlots[i]] = arguments.get(i);
+		}
+		
+		Object[] caller = interpreter.frame;
+		interpreter.frame = frame;
 		
-		for(int i = 0; i < parameters.size(); i++)
-			environment.define(parameters.get(i).lexeme, arguments.get(i));
+		Object result = null;
 		
 		try {
-			interpreter.executeBlock(body, environment);
+			// Bytecode hands back what it returns instead of throwing it
+			if(code instanceof Vm.Program)
+				result = interpreter.vm().enter((Vm.Program) code, environment);
+			else if(code != null)
+				code.execute(interpreter, environment);
+			else
+				interpreter.executeBlock(body, environment);
 		} catch(Return returnValue) {
+			result = returnValue.value;
+		} finally {
 			
-			if(isInitializer)
-				return closure.getThisAt(0);
+			interpreter.frame = caller;
+			
+			if(frame != null)
+				interpreter.frames.release(frameSize);
 			
-			return returnValue.value;
 		}
 		
 		if(isInitializer)
 			return closure.getThisAt(0);
 		
-		return null;
+		return result;
+		
+	}
+	
+	ClosureCompiler.CompiledStmt code() {
+		
+		return code;
+	}
+	
+	Environment closure() {
+		
+		return closure;
+	}
+	
+	List<Stmt> body() {
 		
+		return body;
 	}
 	
 	@Override
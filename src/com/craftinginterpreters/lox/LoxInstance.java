@@ -1,15 +1,21 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
 
-public class LoxInstance {
+public class LoxInstance implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
 	
 	private LoxClass klass;
 	private final Map<String, Object> fields;
 	
+	// Part of a snapshot, interpreters write to their own copy of the fields
+	boolean frozen;
+	
 	LoxInstance(LoxClass klass) {
 		this.klass = klass;
 		this.fields = new HashMap<>();
@@ -21,6 +27,14 @@ public class LoxInstance {
 	}
 	
 	Object get(Token name) {
+		return get(name, fields);
+	}
+	
+	/**
+	 * Looks a property up in the given fields, methods </br>
+	 * are still bound to this instance
+	 */
+	Object get(Token name, Map<String, Object> fields) {
 		
 		if(fields.containsKey(name.lexeme))
 			return fields.get(name.lexeme);
@@ -33,6 +47,10 @@ public class LoxInstance {
 		
 	}
 	
+	boolean hasField(String name) {
+		return fields.containsKey(name);
+	}
+	
 	void set(Token name, Object value) {
 		fields.put(name.lexeme, value);
 	}
@@ -41,4 +59,12 @@ public class LoxInstance {
 		return klass;
 	}
 	
+	java.util.Collection<Object> fieldValues() {
+		return fields.values();
+	}
+	
+	Map<String, Object> copyFields() {
+		return new HashMap<>(fields);
+	}
+	
 }
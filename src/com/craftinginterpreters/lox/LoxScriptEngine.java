@@ -0,0 +1,236 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * <p>
+ * The <b>javax.script</b> engine for Lox
+ * </p>
+ *
+ * <p>
+ * {@link #compile(String)} scans, parses and resolves a script </br>
+ * once. The {@link CompiledScript} keeps the statements and </br>
+ * their resolution side table, so it can be evaluated any </br>
+ * number of times (and from many threads) without touching </br>
+ * the source again
+ * </p>
+ *
+ * <p>
+ * Every evaluation runs in a fresh {@link Interpreter} whose </br>
+ * globals are stored straight in the ENGINE_SCOPE bindings, </br>
+ * so the host sees whatever the script defines. Values in </br>
+ * the GLOBAL_SCOPE bindings can be read like natives. Numbers </br>
+ * from the host are turned into doubles, the only number Lox </br>
+ * knows. The value of a script is the value of its last </br>
+ * statement, if that is an expression statement
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable {
+	
+	// Evaluations are many and short, the interpreter's default buffer would dwarf them
+	static final int OUTPUT_BUFFER_SIZE = 1 << 12;
+	
+	private final LoxScriptEngineFactory factory;
+	private final ModuleCache modules;
+	
+	private Reader input;
+	private BufferedReader bufferedInput;
+	
+	LoxScriptEngine(LoxScriptEngineFactory factory) {
+		
+		this.factory = factory;
+		this.modules = new ModuleCache();
+		
+	}
+	
+	@Override
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		
+		return compile(script).eval(context);
+	}
+	
+	@Override
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		
+		return compile(reader).eval(context);
+	}
+	
+	@Override
+	public CompiledScript compile(String script) throws ScriptException {
+		
+		String file = fileName();
+		StringWriter errors = new StringWriter();
+		
+		Map<Expr, Integer> locals = new HashMap<>();
+		LoxContext compiler = new LoxContext(
+				new OutputChannel(context.getWriter(), OutputChannel.FlushPolicy.FULL, OUTPUT_BUFFER_SIZE),
+				input(context), new Diagnostics(new PrintWriter(errors, true)), modules, locals, new HashMap<>());
+		
+		List<Stmt> statements = compiler.parse(file, script);
+		
+		if(compiler.diagnostics.hadError)
+			throw error(errors.toString().trim());
+		
+		if(!compiler.resolve(statements))
+			throw error(errors.toString().trim());
+		
+		return new LoxCompiledScript(compiler.optimize(statements), locals);
+		
+	}
+	
+	@Override
+	public CompiledScript compile(Reader script) throws ScriptException {
+		
+		StringBuilder source = new StringBuilder();
+		char[] buffer = new char[1 << 13];
+		
+		try {
+			int read;
+			while((read = script.read(buffer)) != -1)
+				source.append(buffer, 0, read);
+		} catch(IOException ioe) {
+			throw new ScriptException(ioe);
+		}
+		
+		return compile(source.toString());
+		
+	}
+	
+	@Override
+	public Bindings createBindings() {
+		
+		return new SimpleBindings();
+	}
+	
+	@Override
+	public ScriptEngineFactory getFactory() {
+		
+		return factory;
+	}
+	
+	private String fileName() {
+		
+		Object file = get(ScriptEngine.FILENAME);
+		return (file == null) ? "" : file.toString();
+		
+	}
+	
+	private ScriptException error(String message) {
+		
+		String file = fileName();
+		return file.isEmpty() ? new ScriptException(message) : new ScriptException(message, file, -1);
+		
+	}
+	
+	/**
+	 * Keeps one buffer per input reader, so evaluations don't </br>
+	 * each allocate one or lose what another read ahead
+	 */
+	private synchronized BufferedReader input(ScriptContext context) {
+		
+		Reader reader = context.getReader();
+		
+		if(reader != input) {
+			input = reader;
+			bufferedInput = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+		}
+		
+		return bufferedInput;
+		
+	}
+	
+	/**
+	 * Numbers are doubles in Lox, whatever boxed type the host used
+	 */
+	private static Object toLox(Object value) {
+		
+		if(value instanceof Number && !(value instanceof Double))
+			return ((Number) value).doubleValue();
+		if(value instanceof Character)
+			return value.toString();
+		
+		return value;
+		
+	}
+	
+	private class LoxCompiledScript extends CompiledScript {
+		
+		private final List<Stmt> statements;
+		
+		// Only ever read once compiled, so every evaluation can share it
+		private final Map<Expr, Integer> locals;
+		
+		LoxCompiledScript(List<Stmt> statements, Map<Expr, Integer> locals) {
+			
+			this.statements = statements;
+			this.locals = locals;
+			
+		}
+		
+		@Override
+		public Object eval(ScriptContext context) throws ScriptException {
+			
+			Bindings globals = context.getBindings(ScriptContext.ENGINE_SCOPE);
+			Bindings hostGlobals = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+			
+			for(Map.Entry<String, Object> global : new HashMap<>(globals).entrySet())
+				if(toLox(global.getValue()) != global.getValue())
+					globals.put(global.getKey(), toLox(global.getValue()));
+			
+			StringWriter errors = new StringWriter();
+			LoxContext run = new LoxContext(
+					new OutputChannel(context.getWriter(), OutputChannel.FlushPolicy.FULL, OUTPUT_BUFFER_SIZE),
+					input(context), new Diagnostics(new PrintWriter(errors, true)), modules, locals, globals);
+			Interpreter interpreter = run.interpreter;
+			
+			if(hostGlobals != null)
+				for(Map.Entry<String, Object> global : hostGlobals.entrySet())
+					interpreter.builtins.define(global.getKey(), toLox(global.getValue()));
+			
+			Object result;
+			
+			try {
+				result = interpreter.interpret(statements);
+			} finally {
+				interpreter.shutdown();
+			}
+			
+			if(run.diagnostics.hadRuntimeError)
+				throw error(errors.toString().trim());
+			
+			if(interpreter.exitCode != null && interpreter.exitCode != 0)
+				throw error("Script exited with code " + interpreter.exitCode);
+			
+			return result;
+			
+		}
+		
+		@Override
+		public ScriptEngine getEngine() {
+			
+			return LoxScriptEngine.this;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,118 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes Lox available through <b>javax.script</b>, found by </br>
+ * {@link javax.script.ScriptEngineManager} under the name, </br>
+ * extension or mime type of Lox
+ *
+ * @author dragonfire
+ *
+ */
+public class LoxScriptEngineFactory implements ScriptEngineFactory {
+	
+	static final String LANGUAGE_VERSION = "1.0";
+	
+	private static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("lox", "Lox", "jlox"));
+	private static final List<String> EXTENSIONS = Collections.singletonList("lox");
+	private static final List<String> MIME_TYPES = Collections.singletonList("application/x-lox");
+	
+	@Override
+	public String getEngineName() {
+		return "jlox";
+	}
+	
+	@Override
+	public String getEngineVersion() {
+		return LANGUAGE_VERSION;
+	}
+	
+	@Override
+	public List<String> getExtensions() {
+		return EXTENSIONS;
+	}
+	
+	@Override
+	public List<String> getMimeTypes() {
+		return MIME_TYPES;
+	}
+	
+	@Override
+	public List<String> getNames() {
+		return NAMES;
+	}
+	
+	@Override
+	public String getLanguageName() {
+		return "Lox";
+	}
+	
+	@Override
+	public String getLanguageVersion() {
+		return LANGUAGE_VERSION;
+	}
+	
+	@Override
+	public Object getParameter(String key) {
+		
+		switch(key) {
+			case ScriptEngine.ENGINE:
+				return getEngineName();
+			case ScriptEngine.ENGINE_VERSION:
+				return getEngineVersion();
+			case ScriptEngine.LANGUAGE:
+				return getLanguageName();
+			case ScriptEngine.LANGUAGE_VERSION:
+				return getLanguageVersion();
+			case ScriptEngine.NAME:
+				return NAMES.get(0);
+			case "THREADING":
+				// Every evaluation gets its own interpreter, only the bindings are shared
+				return "MULTITHREADED";
+			default:
+				return null;
+		}
+		
+	}
+	
+	@Override
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		
+		return obj + "." + m + "(" + String.join(", ", args) + ")";
+	}
+	
+	@Override
+	public String getOutputStatement(String toDisplay) {
+		
+		return "print \"" + toDisplay.replace("\\", "\\\\").replace("\"", "\\\"") + "\";";
+	}
+	
+	@Override
+	public String getProgram(String... statements) {
+		
+		StringBuilder program = new StringBuilder();
+		
+		for(String statement : statements) {
+			program.append(statement);
+			if(!statement.trim().endsWith(";") && !statement.trim().endsWith("}"))
+				program.append(';');
+			program.append('\n');
+		}
+		
+		return program.toString();
+		
+	}
+	
+	@Override
+	public ScriptEngine getScriptEngine() {
+		
+		return new LoxScriptEngine(this);
+	}
+	
+}
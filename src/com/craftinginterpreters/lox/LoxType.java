@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * What the {@link TypeInference} found an expression always </br>
+ * evaluates to
+ *
+ * @author dragonfire
+ *
+ */
+enum LoxType {
+	NUMBER,
+	STRING,
+	BOOLEAN,
+	NIL,
+	// Anything, or more than one of the above
+	ANY;
+	
+	static LoxType of(Object value) {
+		
+		if(value instanceof Double)
+			return NUMBER;
+		if(value instanceof String)
+			return STRING;
+		if(value instanceof Boolean)
+			return BOOLEAN;
+		if(value == null)
+			return NIL;
+		
+		return ANY;
+		
+	}
+	
+	/**
+	 * @return the type of a value that's of either type, </br>
+	 *         where null is the type of no value at all
+	 */
+	static LoxType join(LoxType a, LoxType b) {
+		
+		if(a == null)
+			return b;
+		if(b == null || a == b)
+			return a;
+		
+		return ANY;
+		
+	}
+	
+}
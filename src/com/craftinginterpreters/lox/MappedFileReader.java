@@ -0,0 +1,135 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through memory-mapped windows of a </br>
+ * {@link FileChannel}, decoding straight out of the </br>
+ * mapping instead of copying through a heap buffer
+ *
+ * @author dragonfire
+ *
+ */
+class MappedFileReader extends Reader {
+	
+	static final long WINDOW_SIZE = 1L << 26;
+	
+	private final FileChannel channel;
+	private final long size;
+	private final CharsetDecoder decoder;
+	private final CharBuffer decoded;
+	
+	private ByteBuffer window;
+	private long windowStart;
+	private boolean finished;
+	
+	MappedFileReader(Path path, Charset charset) throws IOException {
+		
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.decoded = CharBuffer.allocate(1 << 16);
+		this.decoded.flip();
+		
+		this.window = null;
+		this.windowStart = 0;
+		this.finished = false;
+		
+	}
+	
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		
+		if(len == 0)
+			return 0;
+		
+		if(!decoded.hasRemaining() && !fill())
+			return -1;
+		
+		int count = Math.min(len, decoded.remaining());
+		decoded.get(cbuf, off, count);
+		
+		return count;
+		
+	}
+	
+	@Override
+	public void close() throws IOException {
+		
+		window = null;
+		channel.close();
+	}
+	
+	/**
+	 * Decodes more characters out of the mapping
+	 *
+	 * @return false once the whole file has been decoded
+	 */
+	private boolean fill() throws IOException {
+		
+		decoded.clear();
+		
+		while(decoded.position() == 0 && !finished) {
+			
+			if(window == null || !window.hasRemaining())
+				if(!mapNextWindow())
+					break;
+			
+			boolean lastWindow = windowStart + window.limit() >= size;
+			CoderResult result = decoder.decode(window, decoded, lastWindow);
+			
+			if(result.isUnderflow() && window.hasRemaining() && !lastWindow) {
+				
+				// A character is split across windows, remap starting at its first byte
+				windowStart += window.position();
+				window = map(windowStart);
+				
+			} else if(result.isUnderflow() && lastWindow && !window.hasRemaining()) {
+				
+				decoder.flush(decoded);
+				finished = true;
+				
+			}
+			
+		}
+		
+		decoded.flip();
+		
+		return decoded.hasRemaining();
+		
+	}
+	
+	private boolean mapNextWindow() throws IOException {
+		
+		long next = (window == null) ? 0 : windowStart + window.limit();
+		
+		if(next >= size) {
+			finished = true;
+			return false;
+		}
+		
+		windowStart = next;
+		window = map(windowStart);
+		
+		return true;
+		
+	}
+	
+	private ByteBuffer map(long start) throws IOException {
+		
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+	}
+	
+}
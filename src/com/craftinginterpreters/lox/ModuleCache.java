@@ -0,0 +1,91 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsed bodies of imported and included files </br>
+ * </br>
+ * Parsing doesn't depend on who asks, so one cache can </br>
+ * be shared by any number of {@link LoxContext}s, and a </br>
+ * library is only parsed again once its file changes
+ *
+ * @author dragonfire
+ *
+ */
+class ModuleCache {
+	
+	private final Map<String, Entry> entries;
+	
+	ModuleCache() {
+		entries = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * @return the cached body of the file parsed in the given </br>
+	 *         state, or null if it was never parsed or changed since
+	 */
+	List<Stmt> get(String file, Parser.State state) throws IOException {
+		
+		Entry entry = entries.get(key(file, state));
+		
+		if(entry == null || entry.modified != Files.getLastModifiedTime(Paths.get(file)).to(TimeUnit.NANOSECONDS))
+			return null;
+		
+		return entry.body;
+		
+	}
+	
+	void put(String file, Parser.State state, FileTime modified, List<Stmt> body) {
+		entries.put(key(file, state), new Entry(modified.to(TimeUnit.NANOSECONDS), body));
+	}
+	
+	/**
+	 * @return every cached body, to be saved in an image
+	 */
+	Map<String, Entry> entries() {
+		return Collections.unmodifiableMap(entries);
+	}
+	
+	/**
+	 * Adds the bodies saved in an image. They are checked </br>
+	 * against their files like any other
+	 */
+	void putAll(Map<String, Entry> saved) {
+		entries.putAll(saved);
+	}
+	
+	int size() {
+		return entries.size();
+	}
+	
+	private static String key(String file, Parser.State state) {
+		return state + ":" + file;
+	}
+	
+	static class Entry implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		// In nanoseconds, FileTime can't be serialized
+		final long modified;
+		final List<Stmt> body;
+		
+		Entry(long modified, List<Stmt> body) {
+			
+			this.modified = modified;
+			this.body = body;
+			
+		}
+		
+	}
+	
+}
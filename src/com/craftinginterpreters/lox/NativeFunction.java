@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java, for natives that </br>
+ * are handed out as values (module members, fields </br>
+ * of native objects) rather than defined once as globals
+ * 
+ * @author dragonfire
+ *
+ */
+class NativeFunction implements LoxCallable {
+	
+	interface Body {
+		Object call(Interpreter interpreter, List<Object> arguments);
+	}
+	
+	private final String name;
+	private final int arity;
+	private final Body body;
+	
+	NativeFunction(String name, int arity, Body body) {
+		
+		this.name = name;
+		this.arity = arity;
+		this.body = body;
+		
+	}
+	
+	@Override
+	public Object call(Interpreter interpreter, List<Object> arguments) {
+		
+		return body.call(interpreter, arguments);
+	}
+	
+	@Override
+	public int arity() {
+		
+		return arity;
+	}
+	
+	@Override
+	public String toString() {
+		
+		return "<native fn " + name + ">";
+	}
+	
+	/**
+	 * Attaches the function to the instance as a field, </br>
+	 * which makes it callable as a method
+	 */
+	void attach(LoxInstance instance) {
+		
+		instance.set(new Token("", "", TokenType.IDENTIFIER, name, null, 0), this);
+	}
+	
+}
@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A module implemented in Java that can be imported </br>
+ * the same way as the modules in lib/ </br>
+ * </br>
+ * <code>import "io";</code>
+ * 
+ * @author dragonfire
+ *
+ */
+interface NativeModule {
+	
+	/**
+	 * Defines the members of the module in the </br>
+	 * environment the import statement runs in
+	 */
+	void define(Interpreter interpreter, Environment environment);
+	
+	/**
+	 * @return the native module with the given import </br>
+	 *         location, or null if there is none
+	 */
+	static NativeModule find(String name) {
+		
+		switch(name) {
+		case IoModule.NAME:
+			return new IoModule();
+		default:
+			return null;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,770 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Folds what can be worked out before the code runs
+ * </p>
+ *
+ * <p>
+ * Current tasks:
+ * </p>
+ * <ul>
+ * <li>Arithmetic, comparisons and equality of literals</li>
+ * <li>Concatenating a string literal with another literal</li>
+ * <li><b>!</b> and <b>-</b> of a literal</li>
+ * <li><b>and</b>/<b>or</b> with a literal on the left</li>
+ * <li>Parentheses, which don't do anything once parsed</li>
+ * <li><b>if</b> statements with a literal condition</li>
+ * </ul>
+ *
+ * <p>
+ * Runs after the resolver and the suggester, so their </br>
+ * errors and warnings are about the code as written. Nodes </br>
+ * are never changed, only copied with the changes, because </br>
+ * parsed modules are shared between runs, and copies keep </br>
+ * what the resolver found out about the original. Operations that </br>
+ * would fail at runtime (like <b>1 - "a"</b>) are left for the </br>
+ * interpreter to report
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	
+	private static final Object NOT_CONSTANT = new Object();
+	static final NodeCounter COUNTER = new NodeCounter();
+	
+	private final Interpreter interpreter;
+	
+	// The same module is imported as the same node, keep it that way
+	private final Map<Stmt, Stmt> modules;
+	
+	private int removed;
+	
+	Optimizer(LoxContext context) {
+		
+		this.interpreter = context.interpreter;
+		this.modules = new IdentityHashMap<>();
+		this.removed = 0;
+		
+	}
+	
+	/**
+	 * @return the statements, or the same list if nothing </br>
+	 *         could be folded
+	 */
+	List<Stmt> optimize(List<Stmt> statements) {
+		
+		List<Stmt> optimized = new ArrayList<>(statements.size());
+		boolean changed = false;
+		
+		for(Stmt statement : statements) {
+			
+			Stmt result = optimize(statement);
+			
+			if(result != null)
+				optimized.add(result);
+			
+			changed |= result != statement;
+			
+		}
+		
+		return changed ? optimized : statements;
+		
+	}
+	
+	/**
+	 * @return how many nodes the optimizer removed so far
+	 */
+	int removed() {
+		
+		return removed;
+	}
+	
+	/**
+	 * @return the statement, or null if it doesn't do anything
+	 */
+	Stmt optimize(Stmt stmt) {
+		
+		return stmt.accept(this);
+	}
+	
+	Expr optimize(Expr expr) {
+		
+		return expr.accept(this);
+	}
+	
+	/**
+	 * Optimizes a statement that has to be there, like </br>
+	 * the body of a loop
+	 */
+	Stmt branch(Stmt stmt) {
+		
+		Stmt optimized = optimize(stmt);
+		
+		if(optimized == null)
+			return new Stmt.Block(new ArrayList<>());
+		
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		
+		List<Stmt> statements = optimize(stmt.statements);
+		
+		if(statements == stmt.statements)
+			return stmt;
+		
+		Stmt.Block block = new Stmt.Block(statements);
+		block.sharesScope = stmt.sharesScope;
+		return block;
+		
+	}
+	
+	@Override
+	public Stmt visitCatchStmt(Stmt.Catch stmt) {
+		
+		Stmt body = branch(stmt.body);
+		
+		if(body == stmt.body)
+			return stmt;
+		
+		return new Stmt.Catch(stmt.keyword, stmt.errors, stmt.identifier, body);
+		
+	}
+	
+	@Override
+	public Stmt visitClassStmt(Stmt.Class stmt) {
+		
+		List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+		boolean changed = false;
+		
+		for(Stmt.Function method : stmt.methods) {
+			Stmt.Function optimized = (Stmt.Function) optimize(method);
+			methods.add(optimized);
+			changed |= optimized != method;
+		}
+		
+		if(!changed)
+			return stmt;
+		
+		return new Stmt.Class(stmt.name, stmt.superclass, methods);
+		
+	}
+	
+	@Override
+	public Stmt visitExitStmt(Stmt.Exit stmt) {
+		
+		if(stmt.exitCode == null)
+			return stmt;
+		
+		Expr exitCode = optimize(stmt.exitCode);
+		
+		if(exitCode == stmt.exitCode)
+			return stmt;
+		
+		return new Stmt.Exit(stmt.keyword, exitCode);
+		
+	}
+	
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		
+		Expr expression = optimize(stmt.expression);
+		
+		if(expression == stmt.expression)
+			return stmt;
+		
+		return new Stmt.Expression(expression);
+		
+	}
+	
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		
+		List<Stmt> body = optimize(stmt.body);
+		
+		if(body == stmt.body)
+			return stmt;
+		
+		Stmt.Function function = new Stmt.Function(stmt.name, stmt.parameters, body);
+		function.sharesScope = stmt.sharesScope;
+		function.slot = stmt.slot;
+		function.frameSize = stmt.frameSize;
+		function.parameterSlots = stmt.parameterSlots;
+		return function;
+		
+	}
+	
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		
+		Expr condition = optimize(stmt.condition);
+		
+		if(condition instanceof Expr.Literal) {
+			
+			boolean taken = interpreter.isTruthy(((Expr.Literal) condition).value);
+			Stmt dead = taken ? stmt.elseBranch : stmt.thenBranch;
+			Stmt live = taken ? stmt.thenBranch : stmt.elseBranch;
+			
+			// The if and its condition go, and so does the branch that can't run
+			removed += 2 + COUNTER.count(dead);
+			
+			return (live == null) ? null : optimize(live);
+			
+		}
+		
+		Stmt thenBranch = branch(stmt.thenBranch);
+		Stmt elseBranch = (stmt.elseBranch == null) ? null : branch(stmt.elseBranch);
+		
+		if(condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+			return stmt;
+		
+		return new Stmt.If(stmt.keyword, condition, thenBranch, elseBranch);
+		
+	}
+	
+	@Override
+	public Stmt visitImportStmt(Stmt.Import stmt) {
+		
+		Stmt optimized = modules.get(stmt);
+		if(optimized != null)
+			return optimized;
+		
+		List<Stmt> body = optimize(stmt.body);
+		optimized = (body == stmt.body) ? stmt : new Stmt.Import(stmt.keyword, stmt.file, body);
+		
+		modules.put(stmt, optimized);
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitIncludeStmt(Stmt.Include stmt) {
+		
+		Stmt optimized = modules.get(stmt);
+		if(optimized != null)
+			return optimized;
+		
+		List<Stmt> body = optimize(stmt.body);
+		optimized = (body == stmt.body) ? stmt : new Stmt.Include(stmt.keyword, stmt.file, body);
+		
+		modules.put(stmt, optimized);
+		return optimized;
+		
+	}
+	
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		
+		Expr expression = optimize(stmt.expression);
+		
+		if(expression == stmt.expression)
+			return stmt;
+		
+		return new Stmt.Print(stmt.keyword, expression);
+		
+	}
+	
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		
+		if(stmt.value == null)
+			return stmt;
+		
+		Expr value = optimize(stmt.value);
+		
+		if(value == stmt.value)
+			return stmt;
+		
+		return new Stmt.Return(stmt.keyword, value);
+		
+	}
+	
+	@Override
+	public Stmt visitThrowStmt(Stmt.Throw stmt) {
+		
+		Expr thrown = optimize(stmt.thrown);
+		
+		if(thrown == stmt.thrown)
+			return stmt;
+		
+		return new Stmt.Throw(stmt.keyword, thrown);
+		
+	}
+	
+	@Override
+	public Stmt visitTryStmt(Stmt.Try stmt) {
+		
+		Stmt body = branch(stmt.body);
+		Stmt finallyStmt = (stmt.finallyStmt == null) ? null : branch(stmt.finallyStmt);
+		
+		List<Stmt.Catch> catches = new ArrayList<>(stmt.catches.size());
+		boolean changed = body != stmt.body || finallyStmt != stmt.finallyStmt;
+		
+		for(Stmt.Catch catchStmt : stmt.catches) {
+			Stmt.Catch optimized = (Stmt.Catch) optimize(catchStmt);
+			catches.add(optimized);
+			changed |= optimized != catchStmt;
+		}
+		
+		if(!changed)
+			return stmt;
+		
+		return new Stmt.Try(stmt.keyword, body, catches, finallyStmt);
+		
+	}
+	
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		
+		if(stmt.initializer == null)
+			return stmt;
+		
+		Expr initializer = optimize(stmt.initializer);
+		
+		if(initializer == stmt.initializer)
+			return stmt;
+		
+		Stmt.Var declaration = new Stmt.Var(stmt.name, initializer);
+		declaration.slot = stmt.slot;
+		return declaration;
+		
+	}
+	
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		
+		Expr condition = optimize(stmt.condition);
+		Stmt body = branch(stmt.body);
+		
+		if(condition == stmt.condition && body == stmt.body)
+			return stmt;
+		
+		return new Stmt.While(stmt.keyword, condition, body);
+		
+	}
+	
+	@Override
+	public Expr visitAssignExpr(Expr.Assign expr) {
+		
+		Expr value = optimize(expr.value);
+		
+		if(value == expr.value)
+			return expr;
+		
+		Expr.Assign assign = new Expr.Assign(expr.name, value);
+		
+		// The copy has to assign to the same variable
+		Integer distance = interpreter.distance(expr);
+		if(distance != null)
+			interpreter.resolve(assign, distance);
+		
+		return assign;
+		
+	}
+	
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		
+		Expr left = optimize(expr.left);
+		Expr right = optimize(expr.right);
+		
+		if(left instanceof Expr.Literal && right instanceof Expr.Literal) {
+			
+			Object value = fold(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+			
+			if(value != NOT_CONSTANT) {
+				removed += 2;
+				return new Expr.Literal(value);
+			}
+			
+		}
+		
+		if(left == expr.left && right == expr.right)
+			return expr;
+		
+		return new Expr.Binary(left, expr.operator, right);
+		
+	}
+	
+	/**
+	 * @return what the interpreter would make of the operands, </br>
+	 *         or {@link #NOT_CONSTANT} if it would fail
+	 */
+	private Object fold(Token operator, Object left, Object right) {
+		
+		boolean numbers = left instanceof Double && right instanceof Double;
+		
+		switch(operator.type) {
+		case EQUAL_EQUAL:
+			return interpreter.isEqual(left, right);
+		case BANG_EQUAL:
+			return !interpreter.isEqual(left, right);
+		case PLUS:
+			if(numbers)
+				return (double) left + (double) right;
+			if(left instanceof String || right instanceof String)
+				return interpreter.stringify(left) + interpreter.stringify(right);
+			return NOT_CONSTANT;
+		default:
+		}
+		
+		if(!numbers)
+			return NOT_CONSTANT;
+		
+		double a = (double) left, b = (double) right;
+		
+		switch(operator.type) {
+		case GREATER:
+			return a > b;
+		case GREATER_EQUAL:
+			return a >= b;
+		case LESS:
+			return a < b;
+		case LESS_EQUAL:
+			return a <= b;
+		case MINUS:
+			return a - b;
+		case STAR:
+			return a * b;
+		case SLASH:
+			return a / b;
+		default:
+			return NOT_CONSTANT;
+		}
+		
+	}
+	
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		
+		Expr callee = optimize(expr.callee);
+		
+		List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+		boolean changed = callee != expr.callee;
+		
+		for(Expr argument : expr.arguments) {
+			Expr optimized = optimize(argument);
+			arguments.add(optimized);
+			changed |= optimized != argument;
+		}
+		
+		if(!changed)
+			return expr;
+		
+		return new Expr.Call(callee, expr.paren, arguments);
+		
+	}
+	
+	@Override
+	public Expr visitGetExpr(Expr.Get expr) {
+		
+		Expr object = optimize(expr.object);
+		
+		if(object == expr.object)
+			return expr;
+		
+		return new Expr.Get(object, expr.name);
+		
+	}
+	
+	@Override
+	public Expr visitGroupingExpr(Expr.Grouping expr) {
+		
+		removed++;
+		return optimize(expr.expression);
+		
+	}
+	
+	@Override
+	public Expr visitLambdaExpr(Expr.Lambda expr) {
+		
+		List<Stmt> body = optimize(expr.body);
+		
+		if(body == expr.body)
+			return expr;
+		
+		Expr.Lambda lambda = new Expr.Lambda(expr.start, expr.parameters, body);
+		lambda.sharesScope = expr.sharesScope;
+		lambda.frameSize = expr.frameSize;
+		lambda.parameterSlots = expr.parameterSlots;
+		return lambda;
+		
+	}
+	
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		
+		return expr;
+	}
+	
+	@Override
+	public Expr visitLogicalExpr(Expr.Logical expr) {
+		
+		Expr left = optimize(expr.left);
+		
+		if(left instanceof Expr.Literal) {
+			
+			boolean isOr = expr.operator.type == TokenType.OR || expr.operator.type == TokenType.PIPE;
+			
+			// The left side decides, the right side never runs
+			if(interpreter.isTruthy(((Expr.Literal) left).value) == isOr) {
+				removed += 1 + COUNTER.count(expr.right);
+				return left;
+			}
+			
+			// The right side decides
+			removed += 2;
+			return optimize(expr.right);
+			
+		}
+		
+		Expr right = optimize(expr.right);
+		
+		if(left == expr.left && right == expr.right)
+			return expr;
+		
+		return new Expr.Logical(left, expr.operator, right);
+		
+	}
+	
+	@Override
+	public Expr visitSetExpr(Expr.Set expr) {
+		
+		Expr object = optimize(expr.object);
+		Expr value = optimize(expr.value);
+		
+		if(object == expr.object && value == expr.value)
+			return expr;
+		
+		return new Expr.Set(object, expr.name, value);
+		
+	}
+	
+	@Override
+	public Expr visitSuperExpr(Expr.Super expr) {
+		
+		return expr;
+	}
+	
+	@Override
+	public Expr visitThisExpr(Expr.This expr) {
+		
+		return expr;
+	}
+	
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		
+		Expr right = optimize(expr.right);
+		
+		if(right instanceof Expr.Literal) {
+			
+			Object value = ((Expr.Literal) right).value;
+			
+			if(expr.operator.type == TokenType.BANG) {
+				removed++;
+				return new Expr.Literal(!interpreter.isTruthy(value));
+			}
+			
+			if(expr.operator.type == TokenType.MINUS && value instanceof Double) {
+				removed++;
+				return new Expr.Literal(-(double) value);
+			}
+			
+		}
+		
+		if(right == expr.right)
+			return expr;
+		
+		return new Expr.Unary(expr.operator, right);
+		
+	}
+	
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		
+		return expr;
+	}
+	
+	/**
+	 * Counts the nodes of code, like the code that gets removed
+	 */
+	static class NodeCounter implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+		
+		int count(Stmt stmt) {
+			
+			return (stmt == null) ? 0 : stmt.accept(this);
+		}
+		
+		int count(Expr expr) {
+			
+			return (expr == null) ? 0 : expr.accept(this);
+		}
+		
+		int count(List<? extends Stmt> statements) {
+			
+			int count = 0;
+			for(Stmt statement : statements)
+				count += count(statement);
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitBlockStmt(Stmt.Block stmt) {
+			return 1 + count(stmt.statements);
+		}
+		
+		@Override
+		public Integer visitCatchStmt(Stmt.Catch stmt) {
+			return 1 + count(stmt.body);
+		}
+		
+		@Override
+		public Integer visitClassStmt(Stmt.Class stmt) {
+			return 1 + count(stmt.superclass) + count(stmt.methods);
+		}
+		
+		@Override
+		public Integer visitExitStmt(Stmt.Exit stmt) {
+			return 1 + count(stmt.exitCode);
+		}
+		
+		@Override
+		public Integer visitExpressionStmt(Stmt.Expression stmt) {
+			return 1 + count(stmt.expression);
+		}
+		
+		@Override
+		public Integer visitFunctionStmt(Stmt.Function stmt) {
+			return 1 + count(stmt.body);
+		}
+		
+		@Override
+		public Integer visitIfStmt(Stmt.If stmt) {
+			return 1 + count(stmt.condition) + count(stmt.thenBranch) + count(stmt.elseBranch);
+		}
+		
+		@Override
+		public Integer visitImportStmt(Stmt.Import stmt) {
+			return 1 + count(stmt.body);
+		}
+		
+		@Override
+		public Integer visitIncludeStmt(Stmt.Include stmt) {
+			return 1 + count(stmt.body);
+		}
+		
+		@Override
+		public Integer visitPrintStmt(Stmt.Print stmt) {
+			return 1 + count(stmt.expression);
+		}
+		
+		@Override
+		public Integer visitReturnStmt(Stmt.Return stmt) {
+			return 1 + count(stmt.value);
+		}
+		
+		@Override
+		public Integer visitThrowStmt(Stmt.Throw stmt) {
+			return 1 + count(stmt.thrown);
+		}
+		
+		@Override
+		public Integer visitTryStmt(Stmt.Try stmt) {
+			return 1 + count(stmt.body) + count(stmt.catches) + count(stmt.finallyStmt);
+		}
+		
+		@Override
+		public Integer visitVarStmt(Stmt.Var stmt) {
+			return 1 + count(stmt.initializer);
+		}
+		
+		@Override
+		public Integer visitWhileStmt(Stmt.While stmt) {
+			return 1 + count(stmt.condition) + count(stmt.body);
+		}
+		
+		@Override
+		public Integer visitAssignExpr(Expr.Assign expr) {
+			return 1 + count(expr.value);
+		}
+		
+		@Override
+		public Integer visitBinaryExpr(Expr.Binary expr) {
+			return 1 + count(expr.left) + count(expr.right);
+		}
+		
+		@Override
+		public Integer visitCallExpr(Expr.Call expr) {
+			
+			int count = 1 + count(expr.callee);
+			for(Expr argument : expr.arguments)
+				count += count(argument);
+			return count;
+			
+		}
+		
+		@Override
+		public Integer visitGetExpr(Expr.Get expr) {
+			return 1 + count(expr.object);
+		}
+		
+		@Override
+		public Integer visitGroupingExpr(Expr.Grouping expr) {
+			return 1 + count(expr.expression);
+		}
+		
+		@Override
+		public Integer visitLambdaExpr(Expr.Lambda expr) {
+			return 1 + count(expr.body);
+		}
+		
+		@Override
+		public Integer visitLiteralExpr(Expr.Literal expr) {
+			return 1;
+		}
+		
+		@Override
+		public Integer visitLogicalExpr(Expr.Logical expr) {
+			return 1 + count(expr.left) + count(expr.right);
+		}
+		
+		@Override
+		public Integer visitSetExpr(Expr.Set expr) {
+			return 1 + count(expr.object) + count(expr.value);
+		}
+		
+		@Override
+		public Integer visitSuperExpr(Expr.Super expr) {
+			return 1;
+		}
+		
+		@Override
+		public Integer visitThisExpr(Expr.This expr) {
+			return 1;
+		}
+		
+		@Override
+		public Integer visitUnaryExpr(Expr.Unary expr) {
+			return 1 + count(expr.right);
+		}
+		
+		@Override
+		public Integer visitVariableExpr(Expr.Variable expr) {
+			return 1;
+		}
+		
+	}
+	
+}
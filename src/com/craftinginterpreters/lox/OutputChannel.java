@@ -0,0 +1,151 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered destination for everything a script prints </br>
+ * through <b>print</b> and <b>println</b> </br>
+ * </br>
+ * Output is only handed to the underlying writer when </br>
+ * the flush policy says so, or when the buffer fills up
+ *
+ * @author dragonfire
+ *
+ */
+public class OutputChannel {
+	
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	
+	enum FlushPolicy {
+		LINE, // Flush whenever a newline is written (interactive use)
+		FULL  // Flush only when the buffer is full or on request (batch use)
+	}
+	
+	private Writer out;
+	private final char[] buffer;
+	private int count;
+	private FlushPolicy policy;
+	
+	OutputChannel(Writer out, FlushPolicy policy) {
+		this(out, policy, DEFAULT_BUFFER_SIZE);
+	}
+	
+	OutputChannel(Writer out, FlushPolicy policy, int bufferSize) {
+		
+		this.out = out;
+		this.buffer = new char[bufferSize];
+		this.count = 0;
+		this.policy = policy;
+		
+	}
+	
+	/**
+	 * Creates a channel writing to the process' standard output, </br>
+	 * bypassing the synchronized, autoflushing <b>System.out</b>
+	 */
+	static OutputChannel stdout(FlushPolicy policy) {
+		
+		return new OutputChannel(
+				new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()),
+				policy);
+		
+	}
+	
+	void setFlushPolicy(FlushPolicy policy) {
+		
+		this.policy = policy;
+		
+		if(policy == FlushPolicy.LINE)
+			flush();
+		
+	}
+	
+	FlushPolicy getFlushPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Sends everything from now on to another writer, </br>
+	 * after flushing what's buffered to the current one
+	 */
+	void redirect(Writer out) {
+		
+		flush();
+		this.out = out;
+		
+	}
+	
+	void print(String text) {
+		
+		int length = text.length();
+		
+		// Too big to be worth buffering, send it straight through
+		if(length >= buffer.length) {
+			flushBuffer();
+			write(text);
+		} else {
+			
+			if(count + length > buffer.length)
+				flushBuffer();
+			
+			text.getChars(0, length, buffer, count);
+			count += length;
+			
+		}
+		
+		if(policy == FlushPolicy.LINE && text.indexOf('\n') >= 0)
+			flush();
+		
+	}
+	
+	void println(String text) {
+		print(text + "\n");
+	}
+	
+	/**
+	 * Pushes everything buffered so far through to the </br>
+	 * underlying writer
+	 */
+	void flush() {
+		
+		flushBuffer();
+		
+		try {
+			out.flush();
+		} catch(IOException ioe) {
+			// Nowhere left to report it, the output is gone
+		}
+		
+	}
+	
+	private void flushBuffer() {
+		
+		if(count == 0)
+			return;
+		
+		try {
+			out.write(buffer, 0, count);
+		} catch(IOException ioe) {
+			// Nowhere left to report it, the output is gone
+		}
+		
+		count = 0;
+		
+	}
+	
+	private void write(String text) {
+		
+		try {
+			out.write(text);
+		} catch(IOException ioe) {
+			// Nowhere left to report it, the output is gone
+		}
+		
+	}
+	
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -17,17 +18,17 @@ public class Parser {
 	private final Map<String, Stmt.Include> includes = new HashMap<>();
 	private final Map<String, Stmt.Import> imports = new HashMap<>();
 	
+	private final LoxContext context;
 	private final List<Token> tokens;
 	private final State state;
 	private int current;
 	
-	Parser(List<Token> tokens) {
-		this.tokens = tokens;
-		this.current = 0;
-		this.state = State.NORMAL;
+	Parser(LoxContext context, List<Token> tokens) {
+		this(context, tokens, State.NORMAL);
 	}
 	
-	Parser(List<Token> tokens, State state) {
+	Parser(LoxContext context, List<Token> tokens, State state) {
+		this.context = context;
 		this.tokens = tokens;
 		this.current = 0;
 		this.state = state;
@@ -193,6 +194,12 @@ public class Parser {
 		
 		String loc = (String) consume(STRING, "Expected a string containing the location of the file to import").literal;
 		
+		// Native modules have no source, the interpreter defines their members
+		if(NativeModule.find(loc) != null) {
+			consume(SEMICOLON, "Expected ';' after import statement");
+			return new Stmt.Import(keyword, loc, new ArrayList<>());
+		}
+		
 		try {
 			
 			String file = keyword.directory + loc + ".lox";
@@ -206,14 +213,7 @@ public class Parser {
 			
 			imports.put(file, null);
 			
-			byte[] bytes = Files.readAllBytes(Paths.get(file));
-			String code = new String(bytes, Charset.defaultCharset());
-			
-			Scanner scanner = new Scanner(file, code);
-			List<Token> tokens = scanner.scanTokens();
-			
-			Parser parser = new Parser(tokens, State.IMPORT);
-			List<Stmt> body = parser.parse();
+			List<Stmt> body = load(file, State.IMPORT);
 			
 			consume(SEMICOLON, "Expected ';' after import statement");
 			
@@ -238,14 +238,7 @@ public class Parser {
 				
 				imports.put(file, null);
 				
-				byte[] bytes = Files.readAllBytes(Paths.get(file));
-				String code = new String(bytes, Charset.defaultCharset());
-				
-				Scanner scanner = new Scanner(file, code);
-				List<Token> tokens = scanner.scanTokens();
-				
-				Parser parser = new Parser(tokens, State.IMPORT);
-				List<Stmt> body = parser.parse();
+				List<Stmt> body = load(file, State.IMPORT);
 				
 				consume(SEMICOLON, "Expected ';' after import statement");
 				
@@ -270,6 +263,36 @@ public class Parser {
 		
 	}
 	
+	/**
+	 * Parses the body of an imported or included file, </br>
+	 * or reuses it if the context's module cache has it
+	 */
+	private List<Stmt> load(String file, State state) throws IOException {
+		
+		List<Stmt> body = context.modules.get(file, state);
+		if(body != null)
+			return body;
+		
+		FileTime modified = Files.getLastModifiedTime(Paths.get(file));
+		byte[] bytes = Files.readAllBytes(Paths.get(file));
+		String code = new String(bytes, Charset.defaultCharset());
+		
+		int errors = context.diagnostics.errorCount();
+		
+		Scanner scanner = new Scanner(context, file, code);
+		List<Token> tokens = scanner.scanTokens();
+		
+		Parser parser = new Parser(context, tokens, state);
+		body = parser.parse();
+		
+		// A body with errors in it has to be reported again by whoever loads it next
+		if(context.diagnostics.errorCount() == errors)
+			context.modules.put(file, state, modified, body);
+		
+		return body;
+		
+	}
+	
 	private Stmt includeStatement() {
 		
 		Token keyword = previous();
@@ -289,14 +312,7 @@ public class Parser {
 			
 			includes.put(file, null);
 			
-			byte[] bytes = Files.readAllBytes(Paths.get(file));
-			String code = new String(bytes, Charset.defaultCharset());
-			
-			Scanner scanner = new Scanner(file, code);
-			List<Token> tokens = scanner.scanTokens();
-			
-			Parser parser = new Parser(tokens, State.INCLUDE);
-			List<Stmt> body = parser.parse();
+			List<Stmt> body = load(file, State.INCLUDE);
 			
 			consume(SEMICOLON, "Expected ';' after include statement");
 			
@@ -321,14 +337,7 @@ public class Parser {
 				
 				includes.put(file, null);
 				
-				byte[] bytes = Files.readAllBytes(Paths.get(file));
-				String code = new String(bytes, Charset.defaultCharset());
-				
-				Scanner scanner = new Scanner(file, code);
-				List<Token> tokens = scanner.scanTokens();
-				
-				Parser parser = new Parser(tokens, State.INCLUDE);
-				List<Stmt> body = parser.parse();
+				List<Stmt> body = load(file, State.INCLUDE);
 				
 				consume(SEMICOLON, "Expected ';' after include statement");
 				
@@ -794,7 +803,7 @@ public class Parser {
 	
 	private ParseError error(Token token, String message) {
 		
-		Lox.error(token, message);
+		context.diagnostics.error(token, message);
 		return new ParseError();
 	}
 	
@@ -827,7 +836,7 @@ public class Parser {
 		
 	}
 	
-	private static enum State {
+	static enum State {
 		NORMAL,
 		IMPORT,
 		INCLUDE;
@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,7 +40,16 @@ import com.craftinginterpreters.lox.Stmt.While;
  * avoid problems created by closure </br>
  * </br>
  * Also ensures that <b>return</b> isn't used </br>
- * on the top level
+ * on the top level </br>
+ * </br>
+ * A function's locals get a slot in the frame each call </br>
+ * of it allocates, unless an inner function or lambda </br>
+ * captures them. Only captured locals are kept in an </br>
+ * environment, for the closures to share, and a scope </br>
+ * without any of those doesn't get an environment at all. </br>
+ * Whether a local is captured is only known once its scope </br>
+ * is done, so everything that depends on it is settled when </br>
+ * the outermost scope ends
  * 
  * @author dragonfire
  *
@@ -52,25 +62,132 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		SUBCLASS
 	}
 	
+	private final LoxContext context;
 	private final Interpreter interpreter;
-	private final Stack<Map<String, Boolean>> scopes;
+	private final Stack<Scope> scopes;
 	private FunctionType currentFunction;
 	private ClassType currentClass;
 	
-	Resolver(Interpreter interpreter) {
+	// The frame of the function being resolved, null outside of functions
+	private Frame frame;
+	// What to set once every local in the scopes is known to be captured or not
+	private final List<Runnable> unsettled;
+	
+	Resolver(LoxContext context) {
 		
-		this.interpreter = interpreter;
+		this.context = context;
+		this.interpreter = context.interpreter;
 		scopes = new Stack<>();
 		currentFunction = FunctionType.NONE;
 		currentClass = ClassType.NONE;
+		frame = null;
+		unsettled = new ArrayList<>();
+		
+	}
+	
+	/**
+	 * The slots of a function's frame
+	 */
+	private static final class Frame {
+		
+		final Frame enclosing;
+		
+		// The next free slot, slots of scopes that ended are used again
+		int next;
+		int size;
+		
+		// Something looks its variables up by name, like getVar(), so they all stay in environments
+		boolean dynamic;
+		
+		Frame(Frame enclosing) {
+			
+			this.enclosing = enclosing;
+			this.next = 0;
+			this.size = 0;
+			this.dynamic = false;
+			
+		}
+		
+	}
+	
+	private static final class Local {
+		
+		// Null if it always lives in an environment, like 'this'
+		final Frame frame;
+		final int slot;
+		
+		boolean defined;
+		boolean captured;
+		
+		Local(Frame frame) {
+			
+			this.frame = frame;
+			
+			if(frame == null)
+				slot = -1;
+			else {
+				slot = frame.next++;
+				frame.size = Math.max(frame.size, frame.next);
+			}
+			
+			defined = false;
+			captured = false;
+			
+		}
+		
+		boolean inEnvironment() {
+			
+			return frame == null || frame.dynamic || captured;
+		}
+		
+		/**
+		 * @return the slot it's kept in, -1 if it's in an environment
+		 */
+		int slot() {
+			
+			return inEnvironment() ? -1 : slot;
+		}
+		
+	}
+	
+	private static final class Scope {
+		
+		final Map<String, Local> locals;
+		// The first slot of the frame this scope declares into
+		final int start;
+		
+		Scope(int start) {
+			
+			this.locals = new HashMap<>();
+			this.start = start;
+			
+		}
+		
+		/**
+		 * @return whether running it needs an environment, only </br>
+		 *         if something in it is captured
+		 */
+		boolean needsEnvironment() {
+			
+			for(Local local : locals.values())
+				if(local.inEnvironment())
+					return true;
+			
+			return false;
+			
+		}
 		
 	}
 	
 	@Override
 	public Void visitBlockStmt(Block stmt) {
 		
-		beginScope();
+		Scope scope = beginScope();
+		
 		resolve(stmt.statements);
+		
+		// A block that keeps nothing in an environment can run in the enclosing one
+		settle(() -> stmt.sharesScope = !scope.needsEnvironment());
 		endScope();
 		
 		return null;
@@ -82,7 +199,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		
 		beginScope();
 		
-		declare(stmt.identifier);
+		declare(stmt.identifier, null);
 		define(stmt.identifier);
 		
 		resolve(stmt.body);
@@ -99,7 +216,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		ClassType enclosingType = currentClass;
 		currentClass = ClassType.CLASS;
 		
-		declare(stmt.name);
+		declare(stmt.name, null);
 		
 		if(stmt.superclass != null) {
 			currentClass = ClassType.SUBCLASS;
@@ -110,11 +227,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		
 		if(stmt.superclass != null) {
 			beginScope();
-			scopes.peek().put("super", true);
+			declare("super");
 		}
 		
 		beginScope();
-		scopes.peek().put("this", true);
+		declare("this");
 		
 		for(Function method : stmt.methods) {
 			FunctionType declaration = FunctionType.METHOD;
@@ -157,11 +274,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitFunctionStmt(Function stmt) {
 		
-		declare(stmt.name);
+		Local local = declare(stmt.name, frame);
 		define(stmt.name);
 		
 		resolveFunction(stmt, FunctionType.FUNCTION);
 		
+		if(local != null)
+			settle(() -> stmt.slot = local.slot());
+		
 		return null;
 	}
 	
@@ -180,6 +300,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitImportStmt(Import stmt) {
 		
+		// Modules define their names by name, and are shared wherever they're imported
+		if(frame != null)
+			frame.dynamic = true;
+		
 		resolve(stmt.body);
 		
 		return null;
@@ -189,6 +313,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitIncludeStmt(Include stmt) {
 		
+		if(frame != null)
+			frame.dynamic = true;
+		
 		resolve(stmt.body);
 		
 		return null;
@@ -209,13 +336,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		if(stmt.value != null) {
 			
 			if(currentFunction == FunctionType.INITIALIZER)
-				Lox.error(stmt.keyword, "Cannot return a value from an initializer");
+				context.diagnostics.error(stmt.keyword, "Cannot return a value from an initializer");
 			
 			resolve(stmt.value);
 		}
 		
 		if(currentFunction == FunctionType.NONE)
-			Lox.error(stmt.keyword, "Cannot return from top-level code");
+			context.diagnostics.error(stmt.keyword, "Cannot return from top-level code");
 		
 		return null;
 	}
@@ -247,11 +374,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitVarStmt(Var stmt) {
 		
-		declare(stmt.name);
+		Local local = declare(stmt.name, frame);
 		if(stmt.initializer != null)
 			resolve(stmt.initializer);
 		define(stmt.name);
 		
+		if(local != null)
+			settle(() -> stmt.slot = local.slot());
+		
 		return null;
 	}
 	
@@ -345,9 +475,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	public Void visitSuperExpr(Super expr) {
 		
 		if(currentClass == ClassType.NONE)
-			Lox.error(expr.keyword, "Cannot use 'super' outside of a class");
+			context.diagnostics.error(expr.keyword, "Cannot use 'super' outside of a class");
 		else if(currentClass != ClassType.SUBCLASS)
-			Lox.error(expr.keyword, "Cannot use 'super' in a class without a superclass");
+			context.diagnostics.error(expr.keyword, "Cannot use 'super' in a class without a superclass");
 		
 		resolveLocal(expr, expr.keyword);
 		
@@ -359,7 +489,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	public Void visitThisExpr(This expr) {
 		
 		if(currentClass == ClassType.NONE) {
-			Lox.error(expr.keyword, "Cannot use 'this' outside of a class");
+			context.diagnostics.error(expr.keyword, "Cannot use 'this' outside of a class");
 			return null;
 		}
 		
@@ -380,8 +510,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitVariableExpr(Variable expr) {
 		
-		if(!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE)
-			Lox.error(expr.name, "Cannot read local variable in its own initializer");
+		if(!scopes.isEmpty()) {
+			Local local = scopes.peek().locals.get(expr.name.lexeme);
+			if(local != null && !local.defined)
+				context.diagnostics.error(expr.name, "Cannot read local variable in its own initializer");
+		}
+		
+		// getVar() finds variables by name in the environment it's called from
+		if(expr.name.lexeme.equals("getVar"))
+			for(Frame enclosing = frame; enclosing != null; enclosing = enclosing.enclosing)
+				enclosing.dynamic = true;
 		
 		resolveLocal(expr, expr.name);
 		
@@ -407,32 +545,72 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	private void resolveLocal(Expr expr, Token name) {
 		
 		for(int i = scopes.size() - 1; i >= 0; i--) {
-			if(scopes.get(i).containsKey(name.lexeme)) {
-				interpreter.resolve(expr, (scopes.size() - 1) - i);
+			
+			Local local = scopes.get(i).locals.get(name.lexeme);
+			
+			if(local != null) {
+				
+				// Used by an inner function, so it has to outlive the call
+				if(local.frame != null && local.frame != frame)
+					local.captured = true;
+				
+				List<Scope> inner = new ArrayList<>(scopes.subList(i + 1, scopes.size()));
+				settle(() -> {
+					if(local.inEnvironment())
+						interpreter.resolve(expr, environments(inner));
+					else
+						interpreter.resolveSlot(expr, local.slot);
+				});
+				
 				return;
+				
 			}
+			
 		}
 		
 		// Not found, assume it's global
 		
 	}
 	
+	/**
+	 * @return how many of the scopes run in an environment of their own
+	 */
+	private static int environments(List<Scope> scopes) {
+		
+		int count = 0;
+		for(Scope scope : scopes)
+			if(scope.needsEnvironment())
+				count++;
+		
+		return count;
+		
+	}
+	
 	private void resolveFunction(Function function, FunctionType type) {
 		
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
 		
-		beginScope();
+		Frame frame = this.frame = new Frame(this.frame);
+		Scope scope = beginScope();
 		
-		for(Token param : function.parameters) {
-			declare(param);
-			define(param);
+		Local[] parameters = new Local[function.parameters.size()];
+		for(int i = 0; i < parameters.length; i++) {
+			parameters[i] = declare(function.parameters.get(i), frame);
+			define(function.parameters.get(i));
 		}
 		
 		resolve(function.body);
 		
+		settle(() -> {
+			// Without captured parameters or locals, a call can run in the closure
+			function.sharesScope = !scope.needsEnvironment();
+			function.frameSize = frame.dynamic ? 0 : frame.size;
+			function.parameterSlots = slots(parameters);
+		});
 		endScope();
 		
+		this.frame = frame.enclosing;
 		currentFunction = enclosingFunction;
 		
 	}
@@ -442,42 +620,105 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
 		
-		beginScope();
+		Frame frame = this.frame = new Frame(this.frame);
+		Scope scope = beginScope();
 		
-		for(Token param : function.parameters) {
-			declare(param);
-			define(param);
+		Local[] parameters = new Local[function.parameters.size()];
+		for(int i = 0; i < parameters.length; i++) {
+			parameters[i] = declare(function.parameters.get(i), frame);
+			define(function.parameters.get(i));
 		}
 		
 		resolve(function.body);
 		
+		settle(() -> {
+			// Without captured parameters or locals, a call can run in the closure
+			function.sharesScope = !scope.needsEnvironment();
+			function.frameSize = frame.dynamic ? 0 : frame.size;
+			function.parameterSlots = slots(parameters);
+		});
 		endScope();
 		
+		this.frame = frame.enclosing;
 		currentFunction = enclosingFunction;
 		
 	}
 	
-	private void beginScope() {
+	private static int[] slots(Local[] locals) {
+		
+		int[] slots = new int[locals.length];
+		for(int i = 0; i < slots.length; i++)
+			slots[i] = locals[i].slot();
+		
+		return slots;
+		
+	}
+	
+	private Scope beginScope() {
+		
+		Scope scope = new Scope((frame == null) ? 0 : frame.next);
+		scopes.push(scope);
+		
+		return scope;
 		
-		scopes.push(new HashMap<>());
 	}
 	
 	private void endScope() {
 		
-		scopes.pop();
+		Scope scope = scopes.pop();
+		
+		if(frame != null)
+			frame.next = scope.start;
+		
+		// Nothing can be captured anymore
+		if(scopes.isEmpty()) {
+			for(Runnable settlement : unsettled)
+				settlement.run();
+			unsettled.clear();
+		}
+		
 	}
 	
-	private void declare(Token name) {
+	/**
+	 * Sets something that depends on which locals are </br>
+	 * captured once that's known
+	 */
+	private void settle(Runnable settlement) {
+		
+		unsettled.add(settlement);
+	}
+	
+	/**
+	 * @param frame
+	 *            the frame to give it a slot in, null to keep it </br>
+	 *            in the environment
+	 * @return the local, null if it's a global
+	 */
+	private Local declare(Token name, Frame frame) {
 		
 		if(scopes.isEmpty())
-			return;
+			return null;
 		
-		Map<String, Boolean> scope = scopes.peek();
+		Map<String, Local> scope = scopes.peek().locals;
 		
 		if(scope.containsKey(name.lexeme))
-			Lox.error(name, "Variable with this name already declared in this scope");
+			context.diagnostics.error(name, "Variable with this name already declared in this scope");
+		
+		Local local = new Local(frame);
+		scope.put(name.lexeme, local);
 		
-		scope.put(name.lexeme, false);
+		return local;
+		
+	}
+	
+	/**
+	 * Declares a name the interpreter defines, like 'this'
+	 */
+	private void declare(String name) {
+		
+		Local local = new Local(null);
+		local.defined = true;
+		scopes.peek().locals.put(name, local);
 		
 	}
 	
@@ -486,9 +727,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		if(scopes.isEmpty())
 			return;
 		
-		Map<String, Boolean> scope = scopes.peek();
-		scope.put(name.lexeme, true);
-		
+		scopes.peek().locals.get(name.lexeme).defined = true;
 	}
 	
 }
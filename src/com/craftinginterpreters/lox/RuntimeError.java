@@ -14,6 +14,15 @@ public abstract class RuntimeError extends RuntimeException {
 		final Token token;
 		boolean catchable;
 		
+		/**
+		 * For errors raised inside native functions, which </br>
+		 * don't know where they were called from; the token </br>
+		 * of the call is filled in by the interpreter
+		 */
+		InterpreterRuntimeError(String message) {
+			this(null, message);
+		}
+		
 		InterpreterRuntimeError(Token token, String message) {
 			super(message);
 			this.token = token;
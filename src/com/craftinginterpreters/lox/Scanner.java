@@ -10,6 +10,7 @@ import java.util.Map;
 
 public class Scanner {
 	
+	private final LoxContext context;
 	private final String directory;
 	private final String file;
 	private final String source;
@@ -50,7 +51,7 @@ public class Scanner {
 	private int current;
 	private int line;
 	
-	Scanner(String file, String source) {
+	Scanner(LoxContext context, String file, String source) {
 		
 		String[] fileLoc;
 		
@@ -65,6 +66,7 @@ public class Scanner {
 		
 		String fileName = fileLoc[fileLoc.length-1];
 		
+		this.context = context;
 		this.directory = dirName;
 		this.file = fileName + ((fileName.endsWith(".lox")) ? "" : ".lox");
 		this.source = source;
@@ -180,7 +182,7 @@ public class Scanner {
 			else if(isAlpha(c))
 				identifier();
 			else
-				Lox.error(file, line, "Unexpected character.");
+				context.diagnostics.error(file, line, "Unexpected character.");
 			break;
 		}
 		
@@ -218,7 +220,7 @@ public class Scanner {
 		
 		// Unterminated string
 		if(isAtEnd()) {
-			Lox.error(file, startLine, "Unterminated string");
+			context.diagnostics.error(file, startLine, "Unterminated string");
 			return;
 		}
 		
@@ -262,7 +264,7 @@ public class Scanner {
 			source = source.replace(escapeSeq, escapes.get(escapeSeq));
 		
 		if(source.matches(".*\\\\[^\\\\].*"))
-			Lox.error(file, line, "Invalid escape sequence");
+			context.diagnostics.error(file, line, "Invalid escape sequence");
 		
 		source = source.replace("\\\\", "\\");
 		
@@ -0,0 +1,320 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * A {@link ClosureCompiler} whose additions, property loads </br>
+ * and calls specialize themselves on the values they see
+ * </p>
+ *
+ * <p>
+ * Each of those nodes starts out uninitialized, and the </br>
+ * first time it runs it picks the fast path for what it got: </br>
+ * adding two numbers, loading a method of one class or </br>
+ * calling the same function again. The fast path is guarded, </br>
+ * and the first value it doesn't fit turns the node generic </br>
+ * for good, so a node never goes back and forth
+ * </p>
+ *
+ * <p>
+ * Instances don't have a fixed layout, so a class is as </br>
+ * close to a shape as there is: a load of a method is cached </br>
+ * per class, a load of a field stays a lookup in the fields. </br>
+ * The state of a node is swapped in one write, so interpreters </br>
+ * sharing compiled functions can race on it, every state is </br>
+ * guarded anyway
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class SpecializingCompiler extends ClosureCompiler {
+	
+	SpecializingCompiler(Interpreter resolutions) {
+		
+		super(resolutions);
+	}
+	
+	@Override
+	public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+		
+		// Nothing to specialize on when it's always numbers
+		if(expr.operator.type != TokenType.PLUS || numbers(expr))
+			return super.visitBinaryExpr(expr);
+		
+		return new Add(expr.operator, compile(expr.left), compile(expr.right));
+		
+	}
+	
+	@Override
+	public CompiledExpr visitGetExpr(Expr.Get expr) {
+		
+		return new Get(expr.name, compile(expr.object));
+	}
+	
+	@Override
+	public CompiledExpr visitCallExpr(Expr.Call expr) {
+		
+		CompiledExpr[] arguments = new CompiledExpr[expr.arguments.size()];
+		for(int i = 0; i < arguments.length; i++)
+			arguments[i] = compile(expr.arguments.get(i));
+		
+		return new Call(expr.paren, compile(expr.callee), arguments);
+		
+	}
+	
+	private enum Addition {
+		UNINITIALIZED, NUMBERS, STRINGS, GENERIC
+	}
+	
+	private static final class Add implements CompiledExpr {
+		
+		private final Token operator;
+		private final CompiledExpr left;
+		private final CompiledExpr right;
+		
+		private Addition state = Addition.UNINITIALIZED;
+		
+		Add(Token operator, CompiledExpr left, CompiledExpr right) {
+			
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+			
+		}
+		
+		@Override
+		public Object evaluate(Interpreter interpreter, Environment environment) {
+			
+			Object a = left.evaluate(interpreter, environment);
+			Object b = right.evaluate(interpreter, environment);
+			
+			switch(state) {
+			case NUMBERS:
+				if(a instanceof Double && b instanceof Double)
+					return (double) a + (double) b;
+				break;
+			case STRINGS:
+				if(a instanceof String && b instanceof String)
+					return ((String) a).concat((String) b);
+				break;
+			case GENERIC:
+				return add(interpreter, operator, a, b);
+			case UNINITIALIZED:
+				if(a instanceof Double && b instanceof Double)
+					state = Addition.NUMBERS;
+				else if(a instanceof String && b instanceof String)
+					state = Addition.STRINGS;
+				else
+					state = Addition.GENERIC;
+				return add(interpreter, operator, a, b);
+			}
+			
+			state = Addition.GENERIC;
+			return add(interpreter, operator, a, b);
+			
+		}
+		
+	}
+	
+	/**
+	 * What a property load has seen: a field, or the method </br>
+	 * of one class
+	 */
+	private static final class Property {
+		
+		static final Property FIELD = new Property(null, null);
+		static final Property GENERIC = new Property(null, null);
+		
+		final LoxClass klass;
+		final LoxFunction method;
+		
+		Property(LoxClass klass, LoxFunction method) {
+			
+			this.klass = klass;
+			this.method = method;
+			
+		}
+		
+	}
+	
+	private static final class Get implements CompiledExpr {
+		
+		private final Token name;
+		private final CompiledExpr object;
+		
+		// Null until the first instance comes along
+		private Property cache;
+		
+		Get(Token name, CompiledExpr object) {
+			
+			this.name = name;
+			this.object = object;
+			
+		}
+		
+		@Override
+		public Object evaluate(Interpreter interpreter, Environment environment) {
+			
+			Object value = object.evaluate(interpreter, environment);
+			Property cache = this.cache;
+			
+			// A snapshot's instances keep their fields in the interpreter
+			if(cache == Property.GENERIC || !(value instanceof LoxInstance) || ((LoxInstance) value).frozen)
+				return property(interpreter, name, value);
+			
+			LoxInstance instance = (LoxInstance) value;
+			boolean isField = instance.hasField(name.lexeme);
+			
+			if(cache == null) {
+				
+				if(isField)
+					this.cache = Property.FIELD;
+				else {
+					LoxFunction method = instance.klass().method(name.lexeme);
+					this.cache = (method == null) ? Property.GENERIC : new Property(instance.klass(), method);
+				}
+				
+			} else if(cache == Property.FIELD) {
+				
+				if(isField)
+					return instance.get(name);
+				
+				this.cache = Property.GENERIC;
+				
+			} else {
+				
+				// Fields shadow methods
+				if(!isField && instance.klass() == cache.klass)
+					return cache.method.bind(instance);
+				
+				this.cache = Property.GENERIC;
+				
+			}
+			
+			return property(interpreter, name, value);
+			
+		}
+		
+	}
+	
+	/**
+	 * What a call has seen: the same function (bound to </br>
+	 * any instance), or the same class
+	 */
+	private static final class Target {
+		
+		static final Target GENERIC = new Target(null, null);
+		
+		final List<Stmt> body;
+		final LoxClass klass;
+		
+		Target(List<Stmt> body, LoxClass klass) {
+			
+			this.body = body;
+			this.klass = klass;
+			
+		}
+		
+		/**
+		 * Only caches a callee the call's arguments fit
+		 */
+		static Target of(Object callee, int arguments) {
+			
+			if(callee instanceof LoxFunction && ((LoxFunction) callee).arity() == arguments)
+				return new Target(((LoxFunction) callee).body(), null);
+			
+			if(callee instanceof LoxClass && ((LoxClass) callee).arity() == arguments)
+				return new Target(null, (LoxClass) callee);
+			
+			return GENERIC;
+			
+		}
+		
+		boolean matches(Object callee) {
+			
+			if(body != null)
+				return callee instanceof LoxFunction && ((LoxFunction) callee).body() == body;
+			
+			return callee == klass;
+			
+		}
+		
+	}
+	
+	private static final class Call implements CompiledExpr {
+		
+		private final Token paren;
+		private final CompiledExpr callee;
+		private final CompiledExpr[] arguments;
+		
+		// Null until the first call
+		private Target target;
+		
+		Call(Token paren, CompiledExpr callee, CompiledExpr[] arguments) {
+			
+			this.paren = paren;
+			this.callee = callee;
+			this.arguments = arguments;
+			
+		}
+		
+		@Override
+		public Object evaluate(Interpreter interpreter, Environment environment) {
+			
+			int stackNum = interpreter.incrementStack(paren);
+			
+			Object value = callee.evaluate(interpreter, environment);
+			
+			List<Object> values = new ArrayList<>(arguments.length);
+			for(CompiledExpr argument : arguments)
+				values.add(argument.evaluate(interpreter, environment));
+			
+			Target target = this.target;
+			Object result;
+			
+			if(target != null && target != Target.GENERIC && target.matches(value))
+				result = direct(interpreter, (LoxCallable) value, values);
+			else {
+				
+				if(target == null)
+					this.target = Target.of(value, values.size());
+				else if(target != Target.GENERIC)
+					this.target = Target.GENERIC;
+				
+				result = call(interpreter, environment, paren, value, values);
+				
+			}
+			
+			interpreter.decrementStack(stackNum);
+			
+			return result;
+			
+		}
+		
+		/**
+		 * Calls a function or class already known to take </br>
+		 * these arguments
+		 */
+		private Object direct(Interpreter interpreter, LoxCallable function, List<Object> values) {
+			
+			try {
+				return function.call(interpreter, values);
+			} catch(InterpreterRuntimeError error) {
+				
+				if(error.token == null)
+					throw new InterpreterRuntimeError(paren, error.getMessage(), error.catchable);
+				
+				throw error;
+				
+			}
+			
+		}
+		
+	}
+	
+}
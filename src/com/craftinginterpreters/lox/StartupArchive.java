@@ -0,0 +1,94 @@
+package com.craftinginterpreters.lox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Creates an application class-data sharing archive for the </br>
+ * interpreter, so the JVM maps its classes in already parsed </br>
+ * and verified instead of loading them one by one at startup
+ * </p>
+ *
+ * <p>
+ * The archive is dumped by a second JVM that runs a training </br>
+ * script and archives every class it loaded, the JDK's and </br>
+ * the interpreter's alike. A training script that imports the </br>
+ * lib/ modules gets everything scanning, parsing and resolving </br>
+ * them needs in there too. Only classes are archived, the </br>
+ * modules themselves can be kept in an image (<b>--image</b>)
+ * </p>
+ *
+ * <p>
+ * The JVM can only archive classes from jars, and refuses an </br>
+ * archive once one of them changed, so the archive has to be </br>
+ * created again after every build. The <b>lox</b> launcher uses </br>
+ * it whenever it's there
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class StartupArchive {
+	
+	private StartupArchive() {}
+	
+	/**
+	 * @return <b>$LOX_ARCHIVE</b>, or startup.jsa in the user's .lox directory
+	 */
+	static Path defaultLocation() {
+		
+		String archive = System.getenv("LOX_ARCHIVE");
+		if(archive != null && !archive.isEmpty())
+			return Paths.get(archive);
+		
+		return Paths.get(System.getProperty("user.home"), ".lox", "startup.jsa");
+		
+	}
+	
+	/**
+	 * Runs the training script in a JVM that dumps the </br>
+	 * archive when it exits
+	 *
+	 * @return the exit code of the training run
+	 * @throws IllegalStateException
+	 *             if the interpreter isn't run from jars
+	 */
+	static int create(Path archive, String trainingScript) throws IOException, InterruptedException {
+		
+		String classPath = System.getProperty("java.class.path");
+		
+		for(String entry : classPath.split(File.pathSeparator))
+			if(!entry.endsWith(".jar"))
+				throw new IllegalStateException("only classes in jars can be archived, but '" + entry
+						+ "' isn't one. Build the interpreter's jar with mvn package and run that");
+		
+		Path parent = archive.toAbsolutePath().getParent();
+		if(parent != null)
+			Files.createDirectories(parent);
+		
+		// An archive of an older build must not outlive a failed dump
+		Files.deleteIfExists(archive);
+		
+		List<String> command = Arrays.asList(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-XX:ArchiveClassesAtExit=" + archive.toAbsolutePath(),
+				"-Dlox.lib=" + Lox.getLibLoc(),
+				"-cp", classPath,
+				Lox.class.getName(), trainingScript);
+		
+		int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+		
+		if(!Files.exists(archive))
+			throw new IOException("the JVM didn't write it");
+		
+		return status;
+		
+	}
+	
+}
@@ -1,8 +1,13 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-public abstract class Stmt {
+// Serializable so a whole interpreter can be saved to an image
+public abstract class Stmt implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
 	interface Visitor<R> {
 		R visitBlockStmt(Block stmt);
 		R visitCatchStmt(Catch stmt);
@@ -22,8 +27,13 @@ public abstract class Stmt {
 	}
 	static class Block extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final List<Stmt> statements;
 
+		// Set by the resolver
+		boolean sharesScope;
+
 		Block(List<Stmt> statements) {
 			this.statements = statements;
 		}
@@ -35,6 +45,8 @@ public abstract class Stmt {
 	}
 	static class Catch extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final List<Token> errors;
 		final Token identifier;
@@ -54,6 +66,8 @@ public abstract class Stmt {
 	}
 	static class Class extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token name;
 		final Expr.Variable superclass;
 		final List<Stmt.Function> methods;
@@ -71,6 +85,8 @@ public abstract class Stmt {
 	}
 	static class Exit extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr exitCode;
 
@@ -86,6 +102,8 @@ public abstract class Stmt {
 	}
 	static class Expression extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Expr expression;
 
 		Expression(Expr expression) {
@@ -99,10 +117,18 @@ public abstract class Stmt {
 	}
 	static class Function extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token name;
 		final List<Token> parameters;
 		final List<Stmt> body;
 
+		// Set by the resolver
+		boolean sharesScope;
+		int slot = -1;
+		int frameSize;
+		int[] parameterSlots;
+
 		Function(Token name, List<Token> parameters, List<Stmt> body) {
 			this.name = name;
 			this.parameters = parameters;
@@ -116,6 +142,8 @@ public abstract class Stmt {
 	}
 	static class If extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr condition;
 		final Stmt thenBranch;
@@ -135,6 +163,8 @@ public abstract class Stmt {
 	}
 	static class Import extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final String file;
 		final List<Stmt> body;
@@ -152,6 +182,8 @@ public abstract class Stmt {
 	}
 	static class Include extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final String file;
 		final List<Stmt> body;
@@ -169,6 +201,8 @@ public abstract class Stmt {
 	}
 	static class Print extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr expression;
 
@@ -184,6 +218,8 @@ public abstract class Stmt {
 	}
 	static class Return extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr value;
 
@@ -199,6 +235,8 @@ public abstract class Stmt {
 	}
 	static class Throw extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr thrown;
 
@@ -214,6 +252,8 @@ public abstract class Stmt {
 	}
 	static class Try extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Stmt body;
 		final List<Stmt.Catch> catches;
@@ -233,9 +273,14 @@ public abstract class Stmt {
 	}
 	static class Var extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token name;
 		final Expr initializer;
 
+		// Set by the resolver
+		int slot = -1;
+
 		Var(Token name, Expr initializer) {
 			this.name = name;
 			this.initializer = initializer;
@@ -248,6 +293,8 @@ public abstract class Stmt {
 	}
 	static class While extends Stmt {
 
+		private static final long serialVersionUID = 1L;
+
 		final Token keyword;
 		final Expr condition;
 		final Stmt body;
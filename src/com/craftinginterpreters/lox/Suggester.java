@@ -62,6 +62,7 @@ import com.craftinginterpreters.lox.Stmt.While;
  */
 public class Suggester implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	
+	private final LoxContext context;
 	private final List<Warning> warnings;
 	
 	private final Stack<Map<Token, Boolean>> varsUsed;
@@ -76,7 +77,9 @@ public class Suggester implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	private final ControlFlowTracker exited;
 	private final ControlFlowTracker thrown;
 	
-	Suggester() {
+	Suggester(LoxContext context) {
+		
+		this.context = context;
 		
 		warnings = new ArrayList<>();
 		
@@ -117,9 +120,9 @@ public class Suggester implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		
 		for(Warning warning : warnings)
 			if(warning.useLine)
-				Lox.warning(warning.token.file, warning.token.line, warning.message);
+				context.diagnostics.warning(warning.token.file, warning.token.line, warning.message);
 			else
-				Lox.warning(warning.token, warning.message);
+				context.diagnostics.warning(warning.token, warning.message);
 		
 	}
 	
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Notified by <b>TestCase.run</b> in lib/test/TestCase </br>
+ * (through the <b>testStarted</b> and <b>testFinished</b> </br>
+ * natives) as each test runs
+ * 
+ * @author dragonfire
+ *
+ */
+interface TestListener {
+	
+	void testStarted(String testClass, String method);
+	
+	/**
+	 * @param failure
+	 *            the message of the error that failed the </br>
+	 *            test, or null if it passed
+	 */
+	void testFinished(String testClass, String method, String failure);
+	
+}
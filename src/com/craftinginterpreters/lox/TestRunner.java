@@ -0,0 +1,406 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Runs Lox test suites in parallel: <code>lox --test &lt;dir&gt; [--junit &lt;file&gt;] [--all-engines]</code>
+ * </p>
+ *
+ * <p>
+ * Every file under the directory whose name ends in </br>
+ * <b>Test.lox</b> is a suite. Each suite runs in its own </br>
+ * {@link LoxContext} on a pool with a thread per core, </br>
+ * and the tests it runs through <b>TestCase.run</b> are </br>
+ * timed individually. The results are merged into one </br>
+ * report, and optionally written out as JUnit XML. With </br>
+ * <b>--all-engines</b> every suite runs once in each {@link Engine}
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class TestRunner {
+	
+	static final String SUITE_SUFFIX = "Test.lox";
+	// The test case a suite's own error is reported under in the JUnit XML
+	static final String SUITE_CASE = "(suite)";
+	
+	// Lox recursion is deep in Java frames, give the workers the room the main thread has
+	private static final long WORKER_STACK_SIZE = 16L << 20;
+	
+	private final Path root;
+	private final Path junitReport;
+	// The engines every suite runs in, just the configured one unless they're all asked for
+	private final List<Engine> engines;
+	
+	// Every suite imports TestCase, parse it once for all of them
+	private final ModuleCache modules;
+	
+	TestRunner(Path root, Path junitReport) {
+		this(root, junitReport, Arrays.asList(Engine.configured()));
+	}
+	
+	TestRunner(Path root, Path junitReport, List<Engine> engines) {
+		
+		this.root = root;
+		this.junitReport = junitReport;
+		this.engines = engines;
+		this.modules = new ModuleCache();
+		
+	}
+	
+	/**
+	 * @return the exit code of the run, 0 if every suite passed
+	 */
+	int run() throws IOException {
+		
+		long start = System.nanoTime();
+		
+		List<Path> files = discover();
+		List<SuiteResult> suites = new ArrayList<>();
+		
+		int threads = Math.max(1, Math.min(files.size() * engines.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				task -> new Thread(null, task, "lox-test", WORKER_STACK_SIZE));
+		
+		try {
+			
+			List<Future<SuiteResult>> pending = new ArrayList<>();
+			for(Path file : files)
+				for(Engine engine : engines)
+					pending.add(pool.submit(() -> runSuite(file, engine)));
+			
+			for(Future<SuiteResult> result : pending)
+				suites.add(result.get());
+			
+		} catch(InterruptedException | ExecutionException e) {
+			throw new IOException("Test run failed: " + e, e);
+		} finally {
+			pool.shutdown();
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		
+		System.out.print(report(suites, elapsed));
+		System.out.flush();
+		
+		if(junitReport != null)
+			Files.write(junitReport, junitXml(suites).getBytes(StandardCharsets.UTF_8));
+		
+		for(SuiteResult suite : suites)
+			if(!suite.passed())
+				return 1;
+		
+		return 0;
+		
+	}
+	
+	private List<Path> discover() throws IOException {
+		
+		try(Stream<Path> paths = Files.walk(root)) {
+			return paths
+					.filter(Files::isRegularFile)
+					.filter(path -> path.getFileName().toString().endsWith(SUITE_SUFFIX))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		
+	}
+	
+	private SuiteResult runSuite(Path file, Engine engine) throws IOException {
+		
+		String name = root.relativize(file).toString();
+		if(engines.size() > 1)
+			name += " [" + engine.name().toLowerCase(Locale.ROOT) + "]";
+		
+		SuiteResult suite = new SuiteResult(name);
+		long start = System.nanoTime();
+		
+		StringWriter output = new StringWriter();
+		// Suites run side by side, so none of them reads the runner's input, they're all at its end
+		LoxContext context = new LoxContext(new OutputChannel(output, OutputChannel.FlushPolicy.FULL),
+				new BufferedReader(new StringReader("")), new Diagnostics(new PrintWriter(output, true)), modules,
+				new HashMap<>(), new HashMap<>());
+		Interpreter interpreter = context.interpreter;
+		interpreter.testListener = suite;
+		interpreter.engine = engine;
+		
+		try {
+			
+			byte[] bytes = Files.readAllBytes(file);
+			
+			List<Stmt> statements = context.parse(file.toString(), new String(bytes, Charset.defaultCharset()));
+			
+			if(context.diagnostics.hadError) {
+				suite.error = "Syntax error";
+			} else if(!context.resolve(statements)) {
+				suite.error = "Resolver error";
+			} else {
+				
+				interpreter.interpret(context.optimize(statements));
+				
+				if(context.diagnostics.hadRuntimeError)
+					suite.error = "Runtime error outside of a test";
+				else if(interpreter.exitCode != null && interpreter.exitCode != 0)
+					suite.error = "Exited with code " + interpreter.exitCode;
+				
+			}
+			
+		} catch(RuntimeException | StackOverflowError e) {
+			// A bug in the interpreter (or Lox recursing where it doesn't count calls), the other suites still get to run
+			suite.error = "Interpreter crashed: " + e;
+		} finally {
+			interpreter.shutdown();
+		}
+		
+		suite.output = output.toString();
+		suite.nanos = System.nanoTime() - start;
+		
+		return suite;
+		
+	}
+	
+	private String report(List<SuiteResult> suites, long elapsed) {
+		
+		StringBuilder report = new StringBuilder();
+		
+		int tests = 0;
+		int failures = 0;
+		
+		for(SuiteResult suite : suites) {
+			
+			report.append("== ").append(suite.file).append(" (").append(millis(suite.nanos)).append(")\n");
+			
+			for(TestRecord test : suite.tests) {
+				
+				report.append(test.passed() ? "  PASS  " : "  FAIL  ")
+					.append(test.testClass).append('.').append(test.method)
+					.append(" (").append(millis(test.nanos)).append(")");
+				
+				if(!test.passed())
+					report.append(": ").append(test.failure);
+				
+				report.append('\n');
+				
+				tests++;
+				if(!test.passed())
+					failures++;
+				
+			}
+			
+			if(suite.error != null)
+				report.append("  ERROR ").append(suite.error).append('\n');
+			
+			// What the suite printed is only interesting when something went wrong
+			if(!suite.passed() && !suite.output.isEmpty())
+				report.append("  ").append(suite.output.trim().replace("\n", "\n  ")).append('\n');
+			
+		}
+		
+		long errors = suites.stream().filter(suite -> suite.error != null).count();
+		
+		report.append('\n')
+			.append(tests).append(" tests, ")
+			.append(failures).append(" failed, ")
+			.append(errors).append(" suite errors in ")
+			.append(suites.size()).append(" suites (").append(millis(elapsed)).append(")\n");
+		
+		return report.toString();
+		
+	}
+	
+	private String junitXml(List<SuiteResult> suites) {
+		
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+		
+		for(SuiteResult suite : suites) {
+			
+			long failures = suite.tests.stream().filter(test -> !test.passed()).count();
+			
+			xml.append("  <testsuite name=\"").append(escape(suite.file))
+				.append("\" tests=\"").append(suite.tests.size() + (suite.error == null ? 0 : 1))
+				.append("\" failures=\"").append(failures)
+				.append("\" errors=\"").append(suite.error == null ? 0 : 1)
+				.append("\" time=\"").append(seconds(suite.nanos)).append("\">\n");
+			
+			for(TestRecord test : suite.tests) {
+				
+				xml.append("    <testcase classname=\"").append(escape(test.testClass))
+					.append("\" name=\"").append(escape(test.method))
+					.append("\" time=\"").append(seconds(test.nanos)).append('"');
+				
+				if(test.passed())
+					xml.append("/>\n");
+				else
+					xml.append(">\n      <failure message=\"").append(escape(test.failure)).append("\"/>\n    </testcase>\n");
+				
+			}
+			
+			// Errors only go in test cases, so one that isn't a test's stands for the whole file
+			if(suite.error != null)
+				xml.append("    <testcase classname=\"").append(escape(suite.file))
+					.append("\" name=\"").append(SUITE_CASE)
+					.append("\" time=\"").append(seconds(suite.nanos)).append("\">\n")
+					.append("      <error message=\"").append(escape(suite.error)).append("\"/>\n")
+					.append("    </testcase>\n");
+			
+			if(!suite.output.isEmpty())
+				xml.append("    <system-out>").append(escape(suite.output)).append("</system-out>\n");
+			
+			xml.append("  </testsuite>\n");
+			
+		}
+		
+		xml.append("</testsuites>\n");
+		
+		return xml.toString();
+		
+	}
+	
+	/**
+	 * Escapes text for an attribute or element, replacing the </br>
+	 * characters XML 1.0 doesn't allow at all (control characters </br>
+	 * a program printed, lone surrogates) with U+FFFD
+	 */
+	private static String escape(String text) {
+		
+		StringBuilder escaped = new StringBuilder(text.length());
+		
+		text.codePoints().forEach(c -> {
+			
+			if(c == '&')
+				escaped.append("&amp;");
+			else if(c == '<')
+				escaped.append("&lt;");
+			else if(c == '>')
+				escaped.append("&gt;");
+			else if(c == '"')
+				escaped.append("&quot;");
+			else if(allowedInXml(c))
+				escaped.appendCodePoint(c);
+			else
+				escaped.append('\uFFFD');
+			
+		});
+		
+		return escaped.toString();
+		
+	}
+	
+	private static boolean allowedInXml(int c) {
+		
+		return c == '\t' || c == '\n' || c == '\r'
+				|| (c >= 0x20 && c <= 0xD7FF)
+				|| (c >= 0xE000 && c <= 0xFFFD)
+				|| (c >= 0x10000 && c <= 0x10FFFF);
+		
+	}
+	
+	private static String millis(long nanos) {
+		
+		return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+	}
+	
+	private static String seconds(long nanos) {
+		
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+	
+	/**
+	 * The results of one suite file, filled in by the </br>
+	 * tests as they run
+	 */
+	private static class SuiteResult implements TestListener {
+		
+		final String file;
+		final List<TestRecord> tests;
+		
+		// Tests that run tests (like TestCaseTest) are timed as a whole
+		private final Deque<Long> running;
+		
+		String output;
+		String error;
+		long nanos;
+		
+		SuiteResult(String file) {
+			
+			this.file = file;
+			this.tests = new ArrayList<>();
+			this.running = new ArrayDeque<>();
+			this.output = "";
+			
+		}
+		
+		@Override
+		public void testStarted(String testClass, String method) {
+			
+			running.push(System.nanoTime());
+		}
+		
+		@Override
+		public void testFinished(String testClass, String method, String failure) {
+			
+			if(running.isEmpty())
+				return;
+			
+			long start = running.pop();
+			
+			if(running.isEmpty())
+				tests.add(new TestRecord(testClass, method, failure, System.nanoTime() - start));
+			
+		}
+		
+		boolean passed() {
+			
+			return error == null && tests.stream().allMatch(TestRecord::passed);
+		}
+		
+	}
+	
+	private static class TestRecord {
+		
+		final String testClass;
+		final String method;
+		final String failure;
+		final long nanos;
+		
+		TestRecord(String testClass, String method, String failure, long nanos) {
+			
+			this.testClass = testClass;
+			this.method = method;
+			this.failure = failure;
+			this.nanos = nanos;
+			
+		}
+		
+		boolean passed() {
+			
+			return failure == null;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,711 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Supplier;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * Compiles a hot loop like a {@link ClosureCompiler}, but along </br>
+ * the trace a {@link Tracer} recorded of it
+ * </p>
+ *
+ * <p>
+ * An <b>if</b> that always went the same way is a guard: only </br>
+ * that branch is compiled, and if the condition goes the </br>
+ * other way the iteration leaves the trace. The tree walker </br>
+ * then runs the other branch and whatever is left of every </br>
+ * block around it, in the same environments, and the loop </br>
+ * goes back to the {@link Tracer}
+ * </p>
+ *
+ * <p>
+ * <b>-</b>, <b>*</b> and <b>/</b> that only saw numbers stay </br>
+ * unboxed all the way to the top of the arithmetic, and so do </br>
+ * comparisons of them. Their guards check the operands once </br>
+ * both are evaluated, like the tree walker does, so a value </br>
+ * that isn't a number fails the same way. Anything else is </br>
+ * compiled like the closure compiler does
+ * </p>
+ *
+ * <p>
+ * A trace starts in the middle of a loop the tree walker is </br>
+ * running, so it takes over the variables the loop uses from </br>
+ * the environments around it, locals and globals alike. They </br>
+ * are kept in registers while it runs, and written back when </br>
+ * it ends, throws, leaves the trace, or calls anything that </br>
+ * could look at them. A loop with a <b>try</b>, <b>throw</b>, </br>
+ * class, <b>import</b> or <b>include</b> in it leaves them </br>
+ * in their environments
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class TraceCompiler extends ClosureCompiler {
+	
+	interface TracedStmt {
+		// False if it left the trace, the tree walker finished it then
+		boolean execute(Interpreter interpreter, Environment environment);
+	}
+	
+	private interface Comparison {
+		boolean test(double left, double right);
+	}
+	
+	/**
+	 * A loop compiled along its trace
+	 */
+	static final class Trace {
+		
+		private final CompiledExpr condition;
+		private final TracedStmt body;
+		private final Promoted[] promoted;
+		
+		private Trace(CompiledExpr condition, TracedStmt body, Promoted[] promoted) {
+			
+			this.condition = condition;
+			this.body = body;
+			this.promoted = promoted;
+			
+		}
+		
+		/**
+		 * Runs the loop until it ends or an iteration leaves the trace
+		 *
+		 * @return whether the loop ended
+		 */
+		boolean run(Interpreter interpreter, Environment environment) {
+			
+			// Traces run by calls in this one have their own
+			Registers enclosing = interpreter.registers;
+			Registers registers = new Registers(promoted, environment);
+			
+			registers.load(interpreter);
+			interpreter.registers = registers;
+			
+			try {
+				
+				while(interpreter.isTruthy(condition.evaluate(interpreter, environment)))
+					if(!body.execute(interpreter, environment))
+						return false;
+				
+				return true;
+				
+			} finally {
+				
+				// An iteration that left the trace wrote them back before the tree walker finished it
+				if(!registers.left)
+					registers.store(interpreter);
+				
+				interpreter.registers = enclosing;
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * A variable of an environment around the loop, kept in </br>
+	 * a register while its trace runs
+	 */
+	private static final class Promoted {
+		
+		private final Token name;
+		// Environments out from the loop's, -1 for a global
+		private final int depth;
+		// Only variables the loop assigns are written back
+		private boolean assigned;
+		
+		private Promoted(Token name, int depth) {
+			
+			this.name = name;
+			this.depth = depth;
+			this.assigned = false;
+			
+		}
+		
+	}
+	
+	/**
+	 * The registers of a running trace
+	 */
+	static final class Registers {
+		
+		// Where a variable nothing defined yet would be
+		private static final Object UNDEFINED = new Object();
+		
+		private final Promoted[] promoted;
+		private final Environment environment;
+		private final Object[] values;
+		private boolean left;
+		
+		private Registers(Promoted[] promoted, Environment environment) {
+			
+			this.promoted = promoted;
+			this.environment = environment;
+			this.values = new Object[promoted.length];
+			this.left = false;
+			
+		}
+		
+		/**
+		 * Reads every variable from its environment
+		 */
+		private void load(Interpreter interpreter) {
+			
+			for(int i = 0; i < promoted.length; i++) {
+				
+				String name = promoted[i].name.lexeme;
+				
+				if(promoted[i].depth < 0)
+					values[i] = interpreter.globals.getOrDefault(name, UNDEFINED);
+				else
+					values[i] = interpreter.scope(environment, promoted[i].depth).getOrDefault(name, UNDEFINED);
+				
+			}
+			
+		}
+		
+		/**
+		 * Writes every variable the loop assigns back to its environment
+		 */
+		private void store(Interpreter interpreter) {
+			
+			for(int i = 0; i < promoted.length; i++) {
+				
+				if(!promoted[i].assigned || values[i] == UNDEFINED)
+					continue;
+				
+				if(promoted[i].depth < 0)
+					interpreter.globals.assign(promoted[i].name, values[i]);
+				else
+					interpreter.writableScope(environment, promoted[i].depth).assignAt(0, promoted[i].name, values[i]);
+				
+			}
+			
+		}
+		
+		/**
+		 * Writes them back for good, the tree walker takes over
+		 */
+		private void leave(Interpreter interpreter) {
+			
+			store(interpreter);
+			left = true;
+			
+		}
+		
+	}
+	
+	private final Tracer.Recording recording;
+	
+	// Null if the loop's variables stay in their environments
+	private List<Promoted> promoted;
+	// Environments the code being compiled is in, inside the loop's
+	private int depth;
+	// Function bodies in the loop run outside the trace, and don't use its registers
+	private int functions;
+	
+	TraceCompiler(Interpreter resolutions, Tracer.Recording recording) {
+		
+		super(resolutions);
+		this.recording = recording;
+		this.promoted = null;
+		this.depth = 0;
+		this.functions = 0;
+		
+	}
+	
+	Trace trace(Stmt.While loop) {
+		
+		promoted = promotes(loop.body) ? new ArrayList<>() : null;
+		
+		CompiledExpr condition = compile(loop.condition);
+		TracedStmt body = traced(loop.body);
+		
+		return new Trace(condition, body, (promoted == null) ? new Promoted[0] : promoted.toArray(new Promoted[0]));
+		
+	}
+	
+	/**
+	 * @return whether nothing in the loop can run Lox code </br>
+	 *         except calls and operators, or bring in variables
+	 */
+	private static boolean promotes(Stmt stmt) {
+		
+		if(stmt instanceof Stmt.Block) {
+			for(Stmt statement : ((Stmt.Block) stmt).statements)
+				if(!promotes(statement))
+					return false;
+			return true;
+		}
+		
+		if(stmt instanceof Stmt.If) {
+			Stmt.If ifStmt = (Stmt.If) stmt;
+			return promotes(ifStmt.thenBranch) && (ifStmt.elseBranch == null || promotes(ifStmt.elseBranch));
+		}
+		
+		if(stmt instanceof Stmt.While)
+			return promotes(((Stmt.While) stmt).body);
+		
+		return !(stmt instanceof Stmt.Try || stmt instanceof Stmt.Throw || stmt instanceof Stmt.Class
+				|| stmt instanceof Stmt.Import || stmt instanceof Stmt.Include);
+		
+	}
+	
+	private TracedStmt traced(Stmt stmt) {
+		
+		if(stmt instanceof Stmt.Block)
+			return block((Stmt.Block) stmt);
+		
+		if(stmt instanceof Stmt.If && recording.branch((Stmt.If) stmt) != null)
+			return guard((Stmt.If) stmt, recording.branch((Stmt.If) stmt));
+		
+		CompiledStmt compiled = compile(stmt);
+		return (interpreter, environment) -> {
+			compiled.execute(interpreter, environment);
+			return true;
+		};
+		
+	}
+	
+	private TracedStmt block(Stmt.Block stmt) {
+		
+		int count = stmt.statements.size();
+		boolean sharesScope = stmt.sharesScope;
+		
+		TracedStmt[] traced = new TracedStmt[count];
+		// What the tree walker runs if each statement leaves the trace
+		List<List<Stmt>> rests = new ArrayList<>(count);
+		
+		if(!sharesScope)
+			depth++;
+		
+		for(int i = 0; i < count; i++) {
+			traced[i] = traced(stmt.statements.get(i));
+			rests.add(stmt.statements.subList(i + 1, count));
+		}
+		
+		if(!sharesScope)
+			depth--;
+		
+		return (interpreter, environment) -> {
+			
+			Environment scope = sharesScope ? environment : new Environment(environment);
+			
+			for(int i = 0; i < count; i++)
+				if(!traced[i].execute(interpreter, scope)) {
+					interpreter.executeBlock(rests.get(i), scope);
+					return false;
+				}
+			
+			return true;
+			
+		};
+		
+	}
+	
+	private TracedStmt guard(Stmt.If stmt, boolean taken) {
+		
+		CompiledExpr condition = compile(stmt.condition);
+		
+		Stmt onTrace = taken ? stmt.thenBranch : stmt.elseBranch;
+		Stmt offTrace = taken ? stmt.elseBranch : stmt.thenBranch;
+		
+		TracedStmt branch = (onTrace == null) ? null : traced(onTrace);
+		// Going the other way doesn't run anything, so it stays on the trace
+		List<Stmt> exit = (offTrace == null) ? null : Collections.singletonList(offTrace);
+		
+		return (interpreter, environment) -> {
+			
+			if(interpreter.isTruthy(condition.evaluate(interpreter, environment)) == taken)
+				return branch == null || branch.execute(interpreter, environment);
+			
+			if(exit == null)
+				return true;
+			
+			recording.branch(stmt, !taken);
+			interpreter.registers.leave(interpreter);
+			interpreter.executeBlock(exit, environment);
+			
+			return false;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledStmt visitBlockStmt(Stmt.Block stmt) {
+		
+		if(stmt.sharesScope)
+			return super.visitBlockStmt(stmt);
+		
+		depth++;
+		try {
+			return super.visitBlockStmt(stmt);
+		} finally {
+			depth--;
+		}
+		
+	}
+	
+	@Override
+	public CompiledStmt visitFunctionStmt(Stmt.Function stmt) {
+		
+		functions++;
+		try {
+			return super.visitFunctionStmt(stmt);
+		} finally {
+			functions--;
+		}
+		
+	}
+	
+	@Override
+	public CompiledExpr visitLambdaExpr(Expr.Lambda expr) {
+		
+		functions++;
+		try {
+			return super.visitLambdaExpr(expr);
+		} finally {
+			functions--;
+		}
+		
+	}
+	
+	@Override
+	public CompiledStmt visitPrintStmt(Stmt.Print stmt) {
+		
+		if(!promoting())
+			return super.visitPrintStmt(stmt);
+		
+		CompiledExpr expression = compile(stmt.expression);
+		return (interpreter, environment) -> {
+			Object value = expression.evaluate(interpreter, environment);
+			// toString() is Lox code
+			String text = (value instanceof LoxInstance) ? spilled(interpreter, () -> interpreter.stringify(value))
+					: interpreter.stringify(value);
+			interpreter.output.print(text);
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitVariableExpr(Expr.Variable expr) {
+		
+		Integer register = register(expr, expr.name);
+		if(register == null)
+			return super.visitVariableExpr(expr);
+		
+		int index = register;
+		CompiledExpr undefined = super.visitVariableExpr(expr);
+		
+		return (interpreter, environment) -> {
+			Object value = interpreter.registers.values[index];
+			return (value != Registers.UNDEFINED) ? value : undefined.evaluate(interpreter, environment);
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitAssignExpr(Expr.Assign expr) {
+		
+		Integer register = register(expr, expr.name);
+		if(register == null)
+			return super.visitAssignExpr(expr);
+		
+		int index = register;
+		Token name = expr.name;
+		CompiledExpr value = compile(expr.value);
+		promoted.get(index).assigned = true;
+		
+		return (interpreter, environment) -> {
+			
+			Object assigned = value.evaluate(interpreter, environment);
+			Object[] values = interpreter.registers.values;
+			
+			if(values[index] == Registers.UNDEFINED)
+				throw new InterpreterRuntimeError(name, "Undefined variable '" + name.lexeme + "'");
+			
+			return values[index] = assigned;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitCallExpr(Expr.Call expr) {
+		
+		if(!promoting())
+			return super.visitCallExpr(expr);
+		
+		Token paren = expr.paren;
+		CompiledExpr callee = compile(expr.callee);
+		
+		int count = expr.arguments.size();
+		CompiledExpr[] arguments = new CompiledExpr[count];
+		for(int i = 0; i < count; i++)
+			arguments[i] = compile(expr.arguments.get(i));
+		
+		return (interpreter, environment) -> {
+			
+			int stackNum = interpreter.incrementStack(paren);
+			
+			Object value = callee.evaluate(interpreter, environment);
+			
+			List<Object> values = new ArrayList<>(count);
+			for(CompiledExpr argument : arguments)
+				values.add(argument.evaluate(interpreter, environment));
+			
+			Object result = spilled(interpreter, () -> call(interpreter, environment, paren, value, values));
+			
+			interpreter.decrementStack(stackNum);
+			
+			return result;
+			
+		};
+		
+	}
+	
+	@Override
+	public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+		
+		if(promoting() && !numbers(expr))
+			switch(expr.operator.type) {
+			case PLUS:
+			case EQUAL_EQUAL:
+			case BANG_EQUAL:
+				return instances(expr);
+			default:
+			}
+		
+		if(numbers(expr) || !recording.numbers(expr))
+			return super.visitBinaryExpr(expr);
+		
+		switch(expr.operator.type) {
+		case MINUS:
+		case STAR:
+		case SLASH:
+			// Boxed once, at the top of the arithmetic
+			CompiledNumber value = unboxed(expr);
+			return (interpreter, environment) -> value.evaluate(interpreter, environment);
+		case GREATER:
+			return compare(expr, (left, right) -> left > right);
+		case GREATER_EQUAL:
+			return compare(expr, (left, right) -> left >= right);
+		case LESS:
+			return compare(expr, (left, right) -> left < right);
+		case LESS_EQUAL:
+			return compare(expr, (left, right) -> left <= right);
+		default:
+			return super.visitBinaryExpr(expr);
+		}
+		
+	}
+	
+	/**
+	 * Compiles an operator that runs toString() or equals() </br>
+	 * when an operand is an instance
+	 */
+	private CompiledExpr instances(Expr.Binary expr) {
+		
+		Token operator = expr.operator;
+		CompiledExpr left = compile(expr.left);
+		CompiledExpr right = compile(expr.right);
+		
+		return (interpreter, environment) -> {
+			
+			Object a = left.evaluate(interpreter, environment), b = right.evaluate(interpreter, environment);
+			
+			if(a instanceof LoxInstance || b instanceof LoxInstance)
+				return spilled(interpreter, () -> operate(interpreter, operator, a, b));
+			
+			return operate(interpreter, operator, a, b);
+			
+		};
+		
+	}
+	
+	private static Object operate(Interpreter interpreter, Token operator, Object left, Object right) {
+		
+		switch(operator.type) {
+		case PLUS:
+			return add(interpreter, operator, left, right);
+		case EQUAL_EQUAL:
+			return interpreter.isEqual(left, right);
+		case BANG_EQUAL:
+			return !interpreter.isEqual(left, right);
+		default:
+			throw new IllegalStateException("Unknown binary operator " + operator.type);
+		}
+		
+	}
+	
+	/**
+	 * @return whether variables of the environments around the </br>
+	 *         loop are kept in registers where this code runs
+	 */
+	private boolean promoting() {
+		
+		return promoted != null && functions == 0;
+	}
+	
+	/**
+	 * @return the register the variable is kept in, null if </br>
+	 *         it's one of the loop's own or in the frame
+	 */
+	private Integer register(Expr expr, Token name) {
+		
+		if(!promoting())
+			return null;
+		
+		Integer distance = resolutions.distance(expr);
+		if(distance != null && distance < depth)
+			return null;
+		
+		int home = (distance == null) ? -1 : distance - depth;
+		
+		for(int i = 0; i < promoted.size(); i++)
+			if(promoted.get(i).depth == home && promoted.get(i).name.lexeme.equals(name.lexeme))
+				return i;
+		
+		promoted.add(new Promoted(name, home));
+		return promoted.size() - 1;
+		
+	}
+	
+	/**
+	 * Runs code that can run Lox code, which may look at or </br>
+	 * assign the variables in the registers. They're written </br>
+	 * back before, and read again after
+	 */
+	private static <T> T spilled(Interpreter interpreter, Supplier<T> code) {
+		
+		Registers registers = interpreter.registers;
+		registers.store(interpreter);
+		
+		try {
+			return code.get();
+		} finally {
+			registers.load(interpreter);
+		}
+		
+	}
+	
+	/**
+	 * @return the expression kept unboxed if it's always a number, </br>
+	 *         or arithmetic that only saw numbers, null otherwise
+	 */
+	private CompiledNumber unboxed(Expr expr) {
+		
+		if(expr instanceof Expr.Grouping)
+			return unboxed(((Expr.Grouping) expr).expression);
+		
+		if(expr instanceof Expr.Binary && !numbers((Expr.Binary) expr) && recording.numbers((Expr.Binary) expr)) {
+			
+			Expr.Binary binary = (Expr.Binary) expr;
+			
+			switch(binary.operator.type) {
+			case MINUS:
+				return arithmetic(binary, (left, right) -> left - right);
+			case STAR:
+				return arithmetic(binary, (left, right) -> left * right);
+			case SLASH:
+				return arithmetic(binary, (left, right) -> left / right);
+			default:
+			}
+			
+		}
+		
+		if(expr.type == LoxType.NUMBER)
+			return number(expr);
+		
+		return null;
+		
+	}
+	
+	private CompiledNumber arithmetic(Expr.Binary expr, DoubleBinaryOperator operation) {
+		
+		Token operator = expr.operator;
+		CompiledNumber left = unboxed(expr.left);
+		CompiledNumber right = unboxed(expr.right);
+		
+		if(left != null && right != null)
+			return (interpreter, environment) -> operation.applyAsDouble(left.evaluate(interpreter, environment),
+					right.evaluate(interpreter, environment));
+		
+		CompiledExpr leftValue = (left == null) ? compile(expr.left) : null;
+		CompiledExpr rightValue = (right == null) ? compile(expr.right) : null;
+		
+		if(left == null && right == null)
+			return (interpreter, environment) -> {
+				Object a = leftValue.evaluate(interpreter, environment), b = rightValue.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return operation.applyAsDouble((double) a, (double) b);
+			};
+		
+		if(left == null)
+			return (interpreter, environment) -> {
+				Object a = leftValue.evaluate(interpreter, environment);
+				double b = right.evaluate(interpreter, environment);
+				if(!(a instanceof Double))
+					interpreter.checkNumberOperand(operator, a, b);
+				return operation.applyAsDouble((double) a, b);
+			};
+		
+		return (interpreter, environment) -> {
+			double a = left.evaluate(interpreter, environment);
+			Object b = rightValue.evaluate(interpreter, environment);
+			if(!(b instanceof Double))
+				interpreter.checkNumberOperand(operator, a, b);
+			return operation.applyAsDouble(a, (double) b);
+		};
+		
+	}
+	
+	private CompiledExpr compare(Expr.Binary expr, Comparison comparison) {
+		
+		Token operator = expr.operator;
+		CompiledNumber left = unboxed(expr.left);
+		CompiledNumber right = unboxed(expr.right);
+		
+		if(left != null && right != null)
+			return (interpreter, environment) -> comparison.test(left.evaluate(interpreter, environment),
+					right.evaluate(interpreter, environment));
+		
+		CompiledExpr leftValue = (left == null) ? compile(expr.left) : null;
+		CompiledExpr rightValue = (right == null) ? compile(expr.right) : null;
+		
+		if(left == null && right == null)
+			return (interpreter, environment) -> {
+				Object a = leftValue.evaluate(interpreter, environment), b = rightValue.evaluate(interpreter, environment);
+				interpreter.checkNumberOperand(operator, a, b);
+				return comparison.test((double) a, (double) b);
+			};
+		
+		if(left == null)
+			return (interpreter, environment) -> {
+				Object a = leftValue.evaluate(interpreter, environment);
+				double b = right.evaluate(interpreter, environment);
+				if(!(a instanceof Double))
+					interpreter.checkNumberOperand(operator, a, b);
+				return comparison.test((double) a, b);
+			};
+		
+		return (interpreter, environment) -> {
+			double a = left.evaluate(interpreter, environment);
+			Object b = rightValue.evaluate(interpreter, environment);
+			if(!(b instanceof Double))
+				interpreter.checkNumberOperand(operator, a, b);
+			return comparison.test(a, (double) b);
+		};
+		
+	}
+	
+}
@@ -0,0 +1,194 @@
+package com.craftinginterpreters.lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Finds the hot <b>while</b> loops the tree walker runs and </br>
+ * compiles them along the path they take, turned on with </br>
+ * <b>--trace</b> or <b>-Dlox.trace=true</b>
+ * </p>
+ *
+ * <p>
+ * Every loop counts its iterations. Once it's hot, the tree </br>
+ * walker records the next one: which way each <b>if</b> went, </br>
+ * and whether each binary operator only saw numbers. The loop </br>
+ * is then compiled along that trace, see {@link TraceCompiler}, </br>
+ * and runs compiled from the next iteration on, with the </br>
+ * variables it uses moved out of their environments
+ * </p>
+ *
+ * <p>
+ * An iteration that goes the other way at an <b>if</b> leaves </br>
+ * the trace, and the tree walker finishes it where it left. </br>
+ * That way is added to the recording, and the loop is compiled </br>
+ * again to take both. A loop that keeps leaving its traces is </br>
+ * left to the tree walker for good
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class Tracer {
+	
+	// Iterations the tree walker runs a loop before recording one
+	static final int HOT_ITERATIONS = 64;
+	// Times a loop is compiled before it's left to the tree walker
+	static final int MAX_COMPILATIONS = 8;
+	
+	private final Interpreter interpreter;
+	private final Map<Stmt.While, Loop> loops;
+	
+	// What the tree walker is recording into, null if it isn't
+	Recording recording;
+	
+	Tracer(Interpreter interpreter) {
+		
+		this.interpreter = interpreter;
+		this.loops = new IdentityHashMap<>();
+		this.recording = null;
+		
+	}
+	
+	/**
+	 * @return whether <b>lox.trace</b> turns tracing on
+	 */
+	static boolean enabled() {
+		
+		return Boolean.getBoolean("lox.trace");
+	}
+	
+	/**
+	 * @return what's known about the loop so far
+	 */
+	Loop loop(Stmt.While stmt) {
+		
+		Loop loop = loops.get(stmt);
+		
+		if(loop == null) {
+			loop = new Loop();
+			loops.put(stmt, loop);
+		}
+		
+		return loop;
+		
+	}
+	
+	/**
+	 * Compiles the loop along what was recorded of it
+	 */
+	void compile(Stmt.While stmt, Loop loop) {
+		
+		if(loop.compilations == MAX_COMPILATIONS)
+			return;
+		
+		loop.compilations++;
+		loop.trace = new TraceCompiler(interpreter, loop.recording).trace(stmt);
+		
+	}
+	
+	/**
+	 * Drops the trace an iteration just left, and compiles </br>
+	 * the loop again with the way it went instead
+	 */
+	void exited(Stmt.While stmt, Loop loop) {
+		
+		loop.trace = null;
+		compile(stmt, loop);
+		
+	}
+	
+	/**
+	 * Forgets every loop, the statements they're in may not run again
+	 */
+	void reset() {
+		
+		loops.clear();
+		recording = null;
+		
+	}
+	
+	static final class Loop {
+		
+		private int iterations;
+		private int compilations;
+		final Recording recording;
+		
+		// The loop compiled along its trace, null while the tree walker runs it
+		TraceCompiler.Trace trace;
+		
+		Loop() {
+			
+			this.iterations = 0;
+			this.compilations = 0;
+			this.recording = new Recording();
+			this.trace = null;
+			
+		}
+		
+		/**
+		 * Counts an iteration the tree walker runs
+		 *
+		 * @return whether this one should be recorded
+		 */
+		boolean hot() {
+			
+			return ++iterations == HOT_ITERATIONS;
+		}
+		
+	}
+	
+	/**
+	 * What the tree walker saw a loop do
+	 */
+	static final class Recording {
+		
+		// Which way each if went, null once it went both ways
+		private final Map<Stmt.If, Boolean> branches;
+		// Whether each binary operator only saw numbers
+		private final Map<Expr.Binary, Boolean> numbers;
+		
+		Recording() {
+			
+			this.branches = new IdentityHashMap<>();
+			this.numbers = new IdentityHashMap<>();
+			
+		}
+		
+		void branch(Stmt.If stmt, boolean taken) {
+			
+			Boolean recorded = branches.get(stmt);
+			
+			if(!branches.containsKey(stmt))
+				branches.put(stmt, taken);
+			else if(recorded != null && recorded != taken)
+				branches.put(stmt, null);
+			
+		}
+		
+		/**
+		 * @return which way the if always went, null if it </br>
+		 *         went both ways or never ran
+		 */
+		Boolean branch(Stmt.If stmt) {
+			
+			return branches.get(stmt);
+		}
+		
+		void operands(Expr.Binary expr, Object left, Object right) {
+			
+			numbers.merge(expr, left instanceof Double && right instanceof Double, Boolean::logicalAnd);
+		}
+		
+		/**
+		 * @return whether the operator only ever saw two numbers
+		 */
+		boolean numbers(Expr.Binary expr) {
+			
+			return Boolean.TRUE.equals(numbers.get(expr));
+		}
+		
+	}
+	
+}
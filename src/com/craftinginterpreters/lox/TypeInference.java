@@ -0,0 +1,652 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * <p>
+ * Works out which expressions always evaluate to values of </br>
+ * the same type, and writes it down in {@link Expr#type}
+ * </p>
+ *
+ * <p>
+ * A local's type is the type every value put in it has in </br>
+ * common: its initializer's and every assignment's. Those </br>
+ * can depend on other locals or the local itself, like </br>
+ * <b>i = i + 1</b> does, so every local starts out with no </br>
+ * type at all and the types are worked out again until none </br>
+ * of them changes. Parameters, globals, and whatever calls, </br>
+ * properties and <b>this</b> give can be anything
+ * </p>
+ *
+ * <p>
+ * Native modules define their names in the scope they're </br>
+ * imported into, so every local in sight of an import can </br>
+ * be anything, and so can the names a module declares at </br>
+ * its top. That way a module's types are the same wherever </br>
+ * it's imported, it's one parse shared by all of them
+ * </p>
+ *
+ * <p>
+ * Runs after the optimizer, on the nodes that will run. </br>
+ * The engines use {@link LoxType#NUMBER} to skip checking </br>
+ * operands and to do arithmetic without boxing every step
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+class TypeInference implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	
+	// The initializer of a variable declared without one
+	private static final Expr NIL = new Expr.Literal(null);
+	
+	private final Interpreter interpreter;
+	private final Typer typer;
+	
+	// Every scope the resolver had, and the locals declared in it
+	private final Stack<Map<String, Local>> scopes;
+	// Where the module being visited declares its top level names, null outside of one
+	private Map<String, Local> module;
+	
+	private final List<Local> locals;
+	// The local each variable and assignment resolved to one means
+	private final Map<Expr, Local> references;
+	private final List<Expr> expressions;
+	
+	private int numbers;
+	
+	TypeInference(LoxContext context) {
+		
+		this.interpreter = context.interpreter;
+		this.typer = new Typer();
+		this.scopes = new Stack<>();
+		this.module = null;
+		this.locals = new ArrayList<>();
+		this.references = new IdentityHashMap<>();
+		this.expressions = new ArrayList<>();
+		this.numbers = 0;
+		
+	}
+	
+	private static final class Local {
+		
+		// Every value put in it, null if it can be anything
+		final List<Expr> sources;
+		LoxType type;
+		
+		Local(Expr initializer) {
+			
+			this.sources = new ArrayList<>();
+			this.sources.add(initializer);
+			this.type = null;
+			
+		}
+		
+		Local() {
+			
+			this.sources = null;
+			this.type = LoxType.ANY;
+			
+		}
+		
+		void forget() {
+			
+			sources.clear();
+			type = LoxType.ANY;
+			
+		}
+		
+	}
+	
+	/**
+	 * Annotates every expression of the statements
+	 */
+	void infer(List<Stmt> statements) {
+		
+		collect(statements);
+		
+		// Types only ever get more general, so this ends
+		boolean changed = true;
+		while(changed) {
+			
+			changed = false;
+			
+			for(Local local : locals) {
+				
+				if(local.sources == null || local.sources.isEmpty())
+					continue;
+				
+				LoxType type = null;
+				for(Expr source : local.sources)
+					type = LoxType.join(type, typer.type(source));
+				
+				if(type != local.type) {
+					local.type = type;
+					changed = true;
+				}
+				
+			}
+			
+		}
+		
+		for(Expr expr : expressions) {
+			
+			LoxType type = typer.type(expr);
+			expr.type = (type == null) ? LoxType.ANY : type;
+			
+			if(type == LoxType.NUMBER)
+				numbers++;
+			
+		}
+		
+	}
+	
+	/**
+	 * @return how many expressions are always numbers
+	 */
+	int numbers() {
+		
+		return numbers;
+	}
+	
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		
+		scopes.push(new HashMap<>());
+		collect(stmt.statements);
+		scopes.pop();
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitCatchStmt(Stmt.Catch stmt) {
+		
+		scopes.push(new HashMap<>());
+		declare(stmt.identifier, new Local());
+		collect(stmt.body);
+		scopes.pop();
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		
+		declare(stmt.name, new Local());
+		
+		if(stmt.superclass != null) {
+			collect(stmt.superclass);
+			scopes.push(new HashMap<>());
+			scopes.peek().put("super", new Local());
+		}
+		
+		scopes.push(new HashMap<>());
+		scopes.peek().put("this", new Local());
+		
+		for(Stmt.Function method : stmt.methods)
+			function(method.parameters, method.body);
+		
+		scopes.pop();
+		if(stmt.superclass != null)
+			scopes.pop();
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitExitStmt(Stmt.Exit stmt) {
+		
+		if(stmt.exitCode != null)
+			collect(stmt.exitCode);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		
+		collect(stmt.expression);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		
+		declare(stmt.name, new Local());
+		function(stmt.parameters, stmt.body);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		
+		collect(stmt.condition);
+		collect(stmt.thenBranch);
+		
+		if(stmt.elseBranch != null)
+			collect(stmt.elseBranch);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitImportStmt(Stmt.Import stmt) {
+		
+		module(stmt.body);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitIncludeStmt(Stmt.Include stmt) {
+		
+		module(stmt.body);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		
+		collect(stmt.expression);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		
+		if(stmt.value != null)
+			collect(stmt.value);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitThrowStmt(Stmt.Throw stmt) {
+		
+		collect(stmt.thrown);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitTryStmt(Stmt.Try stmt) {
+		
+		collect(stmt.body);
+		
+		for(Stmt.Catch catchStmt : stmt.catches)
+			collect(catchStmt);
+		
+		if(stmt.finallyStmt != null)
+			collect(stmt.finallyStmt);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		
+		if(stmt.initializer != null)
+			collect(stmt.initializer);
+		
+		declare(stmt.name, new Local((stmt.initializer == null) ? NIL : stmt.initializer));
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		
+		collect(stmt.condition);
+		collect(stmt.body);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		
+		collect(expr.value);
+		
+		Local local = local(expr, expr.name);
+		if(local != null && local.sources != null)
+			local.sources.add(expr.value);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		
+		collect(expr.left);
+		collect(expr.right);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		
+		collect(expr.callee);
+		for(Expr argument : expr.arguments)
+			collect(argument);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		
+		collect(expr.object);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		
+		collect(expr.expression);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitLambdaExpr(Expr.Lambda expr) {
+		
+		function(expr.parameters, expr.body);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		
+		return null;
+	}
+	
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		
+		collect(expr.left);
+		collect(expr.right);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		
+		collect(expr.object);
+		collect(expr.value);
+		
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		
+		return null;
+	}
+	
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		
+		return null;
+	}
+	
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		
+		collect(expr.right);
+		return null;
+		
+	}
+	
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		
+		local(expr, expr.name);
+		return null;
+		
+	}
+	
+	private void collect(List<Stmt> statements) {
+		
+		for(Stmt stmt : statements)
+			collect(stmt);
+	}
+	
+	private void collect(Stmt stmt) {
+		
+		stmt.accept(this);
+	}
+	
+	private void collect(Expr expr) {
+		
+		expressions.add(expr);
+		expr.accept(this);
+		
+	}
+	
+	private void function(List<Token> parameters, List<Stmt> body) {
+		
+		scopes.push(new HashMap<>());
+		
+		for(Token parameter : parameters)
+			declare(parameter, new Local());
+		
+		collect(body);
+		
+		scopes.pop();
+		
+	}
+	
+	private void module(List<Stmt> body) {
+		
+		for(Map<String, Local> scope : scopes)
+			for(Local local : scope.values())
+				if(local.sources != null)
+					local.forget();
+		
+		Map<String, Local> enclosing = module;
+		module = scopes.isEmpty() ? null : scopes.peek();
+		
+		collect(body);
+		
+		module = enclosing;
+		
+	}
+	
+	private void declare(Token name, Local local) {
+		
+		// Globals can be anything
+		if(scopes.isEmpty())
+			return;
+		
+		if(scopes.peek() == module && local.sources != null)
+			local.forget();
+		
+		scopes.peek().put(name.lexeme, local);
+		locals.add(local);
+		
+	}
+	
+	/**
+	 * Remembers which local a variable or assignment means, </br>
+	 * the same one the resolver found
+	 *
+	 * @return the local, null if it's a global
+	 */
+	private Local local(Expr expr, Token name) {
+		
+		if(interpreter.distance(expr) == null)
+			return null;
+		
+		for(int i = scopes.size() - 1; i >= 0; i--) {
+			
+			Local local = scopes.get(i).get(name.lexeme);
+			
+			if(local != null) {
+				references.put(expr, local);
+				return local;
+			}
+			
+		}
+		
+		return null;
+		
+	}
+	
+	/**
+	 * The type of an expression with the types the locals </br>
+	 * have so far. Null if it hasn't got a value with a type yet
+	 */
+	private final class Typer implements Expr.Visitor<LoxType> {
+		
+		LoxType type(Expr expr) {
+			
+			return expr.accept(this);
+		}
+		
+		@Override
+		public LoxType visitAssignExpr(Expr.Assign expr) {
+			
+			return type(expr.value);
+		}
+		
+		@Override
+		public LoxType visitBinaryExpr(Expr.Binary expr) {
+			
+			switch(expr.operator.type) {
+			case PLUS:
+				
+				LoxType left = type(expr.left);
+				LoxType right = type(expr.right);
+				
+				// Anything concatenated with a string
+				if(left == LoxType.STRING || right == LoxType.STRING)
+					return LoxType.STRING;
+				if(left == null || right == null)
+					return null;
+				if(left == LoxType.NUMBER && right == LoxType.NUMBER)
+					return LoxType.NUMBER;
+				
+				return LoxType.ANY;
+			
+			case MINUS:
+			case STAR:
+			case SLASH:
+				return LoxType.NUMBER;
+			case GREATER:
+			case GREATER_EQUAL:
+			case LESS:
+			case LESS_EQUAL:
+			case EQUAL_EQUAL:
+			case BANG_EQUAL:
+				return LoxType.BOOLEAN;
+			default:
+				return LoxType.ANY;
+			}
+			
+		}
+		
+		@Override
+		public LoxType visitCallExpr(Expr.Call expr) {
+			
+			return LoxType.ANY;
+		}
+		
+		@Override
+		public LoxType visitGetExpr(Expr.Get expr) {
+			
+			return LoxType.ANY;
+		}
+		
+		@Override
+		public LoxType visitGroupingExpr(Expr.Grouping expr) {
+			
+			return type(expr.expression);
+		}
+		
+		@Override
+		public LoxType visitLambdaExpr(Expr.Lambda expr) {
+			
+			return LoxType.ANY;
+		}
+		
+		@Override
+		public LoxType visitLiteralExpr(Expr.Literal expr) {
+			
+			return LoxType.of(expr.value);
+		}
+		
+		@Override
+		public LoxType visitLogicalExpr(Expr.Logical expr) {
+			
+			// Either side is what it evaluates to
+			return LoxType.join(type(expr.left), type(expr.right));
+		}
+		
+		@Override
+		public LoxType visitSetExpr(Expr.Set expr) {
+			
+			return type(expr.value);
+		}
+		
+		@Override
+		public LoxType visitSuperExpr(Expr.Super expr) {
+			
+			return LoxType.ANY;
+		}
+		
+		@Override
+		public LoxType visitThisExpr(Expr.This expr) {
+			
+			return LoxType.ANY;
+		}
+		
+		@Override
+		public LoxType visitUnaryExpr(Expr.Unary expr) {
+			
+			if(expr.operator.type == TokenType.BANG)
+				return LoxType.BOOLEAN;
+			
+			return LoxType.NUMBER;
+			
+		}
+		
+		@Override
+		public LoxType visitVariableExpr(Expr.Variable expr) {
+			
+			Local local = references.get(expr);
+			return (local == null) ? LoxType.ANY : local.type;
+			
+		}
+		
+	}
+	
+}
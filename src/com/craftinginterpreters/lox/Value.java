@@ -0,0 +1,85 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * <p>
+ * How the {@link Vm} keeps a Lox value in a <b>long</b>, </br>
+ * NaN-boxed so numbers never get boxed
+ * </p>
+ *
+ * <p>
+ * A number is its own bits. Every other value is a quiet NaN </br>
+ * no arithmetic produces: <b>nil</b>, <b>true</b> and </br>
+ * <b>false</b> are three of them, and with the sign bit set </br>
+ * the low bits are an index in the object table, for strings, </br>
+ * instances, functions and anything else
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class Value {
+	
+	private static final long SIGN = 0x8000_0000_0000_0000L;
+	// Bits every value that isn't a number has set
+	private static final long QUIET_NAN = 0x7FFC_0000_0000_0000L;
+	private static final long OBJECT = SIGN | QUIET_NAN;
+	
+	static final long NIL = QUIET_NAN | 1;
+	static final long FALSE = QUIET_NAN | 2;
+	static final long TRUE = QUIET_NAN | 3;
+	
+	private Value() {}
+	
+	static long number(double value) {
+		
+		return Double.doubleToRawLongBits(value);
+	}
+	
+	static double asNumber(long value) {
+		
+		return Double.longBitsToDouble(value);
+	}
+	
+	static boolean isNumber(long value) {
+		
+		return (value & QUIET_NAN) != QUIET_NAN;
+	}
+	
+	static long bool(boolean value) {
+		
+		return value ? TRUE : FALSE;
+	}
+	
+	/**
+	 * @return whether the value is true to a condition, like </br>
+	 *         {@link Interpreter#isTruthy(Object)}: anything but </br>
+	 *         <b>nil</b>, <b>false</b> and zero
+	 */
+	static boolean isTruthy(long value) {
+		
+		if(isNumber(value))
+			return asNumber(value) != 0;
+		
+		return value != NIL && value != FALSE;
+		
+	}
+	
+	static long object(int index) {
+		
+		return OBJECT | index;
+	}
+	
+	static boolean isObject(long value) {
+		
+		return (value & OBJECT) == OBJECT;
+	}
+	
+	/**
+	 * @return where the object is in the object table
+	 */
+	static int index(long value) {
+		
+		return (int) value;
+	}
+	
+}
@@ -0,0 +1,606 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.craftinginterpreters.lox.RuntimeError.InterpreterRuntimeError;
+
+/**
+ * <p>
+ * Runs functions compiled into bytecode by the {@link Assembler}, </br>
+ * on an interpreter's register file
+ * </p>
+ *
+ * <p>
+ * Every value is a <b>long</b>, see {@link Value}, so numbers </br>
+ * are never boxed. The registers of every call are a window </br>
+ * of one <b>long[]</b>: a function's frame slots first, its </br>
+ * temporaries after them, and a call's arguments are copied </br>
+ * straight into the window of the function it calls when that </br>
+ * one runs here too
+ * </p>
+ *
+ * <p>
+ * Anything that isn't a number, <b>nil</b> or a boolean is </br>
+ * kept in the object table, and the registers refer to it by </br>
+ * index. When the table is full, whatever no register refers </br>
+ * to anymore is dropped and the rest moves down (only while </br>
+ * no user code the bytecode called, like a toString(), is </br>
+ * running bytecode of its own, else it grows), and once the </br>
+ * outermost call returns it's emptied. Values go back to </br>
+ * being objects where they leave the bytecode: globals, </br>
+ * properties, and calls to anything not compiled here
+ * </p>
+ *
+ * @author dragonfire
+ *
+ */
+final class Vm {
+	
+	// Every instruction is an opcode and three operands
+	static final int WIDTH = 4;
+	
+	static final int STRING = 0;
+	static final int MOVE = 1;
+	static final int GLOBAL = 2;
+	static final int SET_GLOBAL = 3;
+	static final int ADD = 4;
+	static final int SUBTRACT = 5;
+	static final int MULTIPLY = 6;
+	static final int DIVIDE = 7;
+	static final int LESS = 8;
+	static final int LESS_EQUAL = 9;
+	static final int GREATER = 10;
+	static final int GREATER_EQUAL = 11;
+	static final int EQUAL = 12;
+	static final int NOT_EQUAL = 13;
+	static final int NEGATE = 14;
+	static final int NOT = 15;
+	static final int JUMP = 16;
+	static final int JUMP_IF_FALSE = 17;
+	static final int JUMP_IF_TRUE = 18;
+	// Compare and jump if it's false, for conditions
+	static final int JUMP_UNLESS_LESS = 19;
+	static final int JUMP_UNLESS_LESS_EQUAL = 20;
+	static final int JUMP_UNLESS_GREATER = 21;
+	static final int JUMP_UNLESS_GREATER_EQUAL = 22;
+	static final int CALL = 23;
+	static final int GET = 24;
+	static final int INSTANCE = 25;
+	static final int SET = 26;
+	static final int PRINT = 27;
+	static final int RETURN = 28;
+	static final int RETURN_NIL = 29;
+	
+	private static final int INITIAL_REGISTERS = 256;
+	private static final int INITIAL_OBJECTS = 1024;
+	private static final int INITIAL_CALLS = 64;
+	
+	/**
+	 * <p>
+	 * A function's body as bytecode
+	 * </p>
+	 *
+	 * <p>
+	 * Operands are registers, except a string's index, a </br>
+	 * call's argument count, and a jump's target, which is </br>
+	 * always the last one. Numbers, booleans and <b>nil</b> </br>
+	 * the code uses are in the last registers. The token of each instruction is </br>
+	 * the one its errors are reported at, and the name of a </br>
+	 * global or property
+	 * </p>
+	 */
+	static final class Program implements ClosureCompiler.CompiledStmt {
+		
+		private final int[] code;
+		private final long[] constants;
+		private final String[] strings;
+		private final Token[] tokens;
+		private final int registers;
+		// The frame slot of each parameter
+		private final int[] parameters;
+		
+		Program(int[] code, long[] constants, String[] strings, Token[] tokens, int registers, int[] parameters) {
+			
+			this.code = code;
+			this.constants = constants;
+			this.strings = strings;
+			this.tokens = tokens;
+			this.registers = registers;
+			this.parameters = parameters;
+			
+		}
+		
+		/**
+		 * Runs the body of a call made from outside the bytecode, </br>
+		 * with the arguments in the interpreter's frame. </br>
+		 * {@link LoxFunction#call} enters the VM itself instead, </br>
+		 * without the {@link Return}
+		 */
+		@Override
+		public void execute(Interpreter interpreter, Environment environment) {
+			
+			throw new Return(interpreter.vm().enter(this, environment));
+		}
+		
+	}
+	
+	private final Interpreter interpreter;
+	
+	private long[] stack;
+	// The end of the innermost call's registers
+	private int top;
+	
+	private Object[] objects;
+	private int count;
+	// How many calls from outside the bytecode are running, one inside another
+	private int entries;
+	
+	// Where each call that runs here was made from
+	private Program[] programs;
+	private int[] pcs;
+	private int[] bases;
+	private Environment[] environments;
+	private int[] stackNums;
+	private int calls;
+	
+	Vm(Interpreter interpreter) {
+		
+		this.interpreter = interpreter;
+		this.stack = new long[INITIAL_REGISTERS];
+		this.top = 0;
+		this.objects = new Object[INITIAL_OBJECTS];
+		this.count = 0;
+		this.entries = 0;
+		this.programs = new Program[INITIAL_CALLS];
+		this.pcs = new int[INITIAL_CALLS];
+		this.bases = new int[INITIAL_CALLS];
+		this.environments = new Environment[INITIAL_CALLS];
+		this.stackNums = new int[INITIAL_CALLS];
+		this.calls = 0;
+		
+	}
+	
+	/**
+	 * Runs a program called from outside the bytecode
+	 *
+	 * @return what it returned
+	 */
+	Object enter(Program program, Environment environment) {
+		
+		int base = top;
+		entries++;
+		
+		try {
+			
+			frame(program, base);
+			
+			for(int slot : program.parameters)
+				stack[base + slot] = unbox(interpreter.frame[slot]);
+			
+			return box(run(program, base, environment));
+			
+		} finally {
+			
+			top = base;
+			entries--;
+			
+			// Nothing refers to any object anymore
+			if(top == 0) {
+				Arrays.fill(objects, 0, count, null);
+				count = 0;
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Makes room for a call's registers on top of the others, </br>
+	 * every one of them nil but the constants
+	 */
+	private void frame(Program program, int base) {
+		
+		int size = base + program.registers;
+		
+		if(size > stack.length)
+			stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+		
+		int constants = size - program.constants.length;
+		
+		Arrays.fill(stack, base, constants, Value.NIL);
+		System.arraycopy(program.constants, 0, stack, constants, program.constants.length);
+		
+		top = size;
+		
+	}
+	
+	/**
+	 * Runs a program until it returns, and every function it calls </br>
+	 * that runs here too, in the same loop
+	 */
+	private long run(Program program, int base, Environment environment) {
+		
+		int[] code = program.code;
+		Token[] tokens = program.tokens;
+		
+		long[] registers = stack;
+		int pc = 0;
+		
+		// The calls below this one are someone else's
+		int entry = calls;
+		
+		try {
+			
+			while(true) {
+				
+				int a = code[pc + 1], b = code[pc + 2], c = code[pc + 3];
+				
+				switch(code[pc]) {
+				case STRING:
+					registers[base + a] = reference(program.strings[b]);
+					break;
+				case MOVE:
+					registers[base + a] = registers[base + b];
+					break;
+				case GLOBAL:
+					registers[base + a] = unbox(interpreter.globals.get(tokens[pc / WIDTH]));
+					break;
+				case SET_GLOBAL:
+					interpreter.globals.assign(tokens[pc / WIDTH], box(registers[base + a]));
+					break;
+				case ADD: {
+					long left = registers[base + b], right = registers[base + c];
+					if(Value.isNumber(left) && Value.isNumber(right))
+						registers[base + a] = Value.number(Value.asNumber(left) + Value.asNumber(right));
+					else {
+						Object sum = ClosureCompiler.add(interpreter, tokens[pc / WIDTH], box(left), box(right));
+						// Adding a string calls toString(), which may have grown the registers
+						registers = stack;
+						registers[base + a] = unbox(sum);
+					}
+					break;
+				}
+				case SUBTRACT:
+					registers[base + a] = Value.number(left(registers, base + b, base + c, tokens, pc)
+							- Value.asNumber(registers[base + c]));
+					break;
+				case MULTIPLY:
+					registers[base + a] = Value.number(left(registers, base + b, base + c, tokens, pc)
+							* Value.asNumber(registers[base + c]));
+					break;
+				case DIVIDE:
+					registers[base + a] = Value.number(left(registers, base + b, base + c, tokens, pc)
+							/ Value.asNumber(registers[base + c]));
+					break;
+				case LESS:
+					registers[base + a] = Value.bool(left(registers, base + b, base + c, tokens, pc)
+							< Value.asNumber(registers[base + c]));
+					break;
+				case LESS_EQUAL:
+					registers[base + a] = Value.bool(left(registers, base + b, base + c, tokens, pc)
+							<= Value.asNumber(registers[base + c]));
+					break;
+				case GREATER:
+					registers[base + a] = Value.bool(left(registers, base + b, base + c, tokens, pc)
+							> Value.asNumber(registers[base + c]));
+					break;
+				case GREATER_EQUAL:
+					registers[base + a] = Value.bool(left(registers, base + b, base + c, tokens, pc)
+							>= Value.asNumber(registers[base + c]));
+					break;
+				case EQUAL:
+				case NOT_EQUAL: {
+					// Comparing instances calls equals(), which may have grown the registers
+					boolean equal = equal(registers[base + b], registers[base + c]);
+					registers = stack;
+					registers[base + a] = Value.bool(equal == (code[pc] == EQUAL));
+					break;
+				}
+				case NEGATE: {
+					long value = registers[base + b];
+					if(!Value.isNumber(value))
+						interpreter.checkNumberOperand(tokens[pc / WIDTH], box(value));
+					registers[base + a] = Value.number(-Value.asNumber(value));
+					break;
+				}
+				case NOT:
+					registers[base + a] = Value.bool(!Value.isTruthy(registers[base + b]));
+					break;
+				case JUMP:
+					pc = c;
+					continue;
+				case JUMP_IF_FALSE:
+					if(!Value.isTruthy(registers[base + a])) {
+						pc = c;
+						continue;
+					}
+					break;
+				case JUMP_IF_TRUE:
+					if(Value.isTruthy(registers[base + a])) {
+						pc = c;
+						continue;
+					}
+					break;
+				case JUMP_UNLESS_LESS:
+					if(!(left(registers, base + a, base + b, tokens, pc) < Value.asNumber(registers[base + b]))) {
+						pc = c;
+						continue;
+					}
+					break;
+				case JUMP_UNLESS_LESS_EQUAL:
+					if(!(left(registers, base + a, base + b, tokens, pc) <= Value.asNumber(registers[base + b]))) {
+						pc = c;
+						continue;
+					}
+					break;
+				case JUMP_UNLESS_GREATER:
+					if(!(left(registers, base + a, base + b, tokens, pc) > Value.asNumber(registers[base + b]))) {
+						pc = c;
+						continue;
+					}
+					break;
+				case JUMP_UNLESS_GREATER_EQUAL:
+					if(!(left(registers, base + a, base + b, tokens, pc) >= Value.asNumber(registers[base + b]))) {
+						pc = c;
+						continue;
+					}
+					break;
+				case CALL: {
+					
+					Object value = box(registers[base + b]);
+					
+					if(!(value instanceof LoxFunction && ((LoxFunction) value).code() instanceof Program)) {
+						long result = call(value, base + b, c, tokens[pc / WIDTH], environment);
+						// The call may have grown the registers
+						registers = stack;
+						registers[base + a] = result;
+						break;
+					}
+					
+					LoxFunction function = (LoxFunction) value;
+					Program callee = (Program) function.code();
+					
+					int stackNum = interpreter.incrementStack(tokens[pc / WIDTH]);
+					if(c != function.arity())
+						throw new InterpreterRuntimeError(tokens[pc / WIDTH],
+								"Expected " + function.arity() + " arguments but got " + c);
+					
+					push(program, pc, base, environment, stackNum);
+					
+					int arguments = base + b + 1;
+					base = top;
+					frame(callee, base);
+					
+					registers = stack;
+					for(int i = 0; i < c; i++)
+						registers[base + callee.parameters[i]] = registers[arguments + i];
+					
+					program = callee;
+					code = callee.code;
+					tokens = callee.tokens;
+					environment = function.closure();
+					pc = 0;
+					
+					continue;
+					
+				}
+				case GET:
+					registers[base + a] = unbox(ClosureCompiler.property(interpreter, tokens[pc / WIDTH], box(registers[base + b])));
+					break;
+				case INSTANCE:
+					if(!(box(registers[base + a]) instanceof LoxInstance))
+						throw new InterpreterRuntimeError(tokens[pc / WIDTH], "Only instances have fields");
+					break;
+				case SET:
+					interpreter.setProperty((LoxInstance) box(registers[base + a]), tokens[pc / WIDTH], box(registers[base + b]));
+					break;
+				case PRINT:
+					interpreter.output.print(interpreter.stringify(box(registers[base + a])));
+					registers = stack;
+					break;
+				case RETURN:
+				case RETURN_NIL: {
+					
+					long result = (code[pc] == RETURN) ? registers[base + a] : Value.NIL;
+					
+					if(calls == entry)
+						return result;
+					
+					// Back to the caller, right after its call
+					top = base;
+					calls--;
+					
+					program = programs[calls];
+					code = program.code;
+					tokens = program.tokens;
+					environment = environments[calls];
+					environments[calls] = null;
+					pc = pcs[calls];
+					base = bases[calls];
+					interpreter.decrementStack(stackNums[calls]);
+					
+					registers[base + code[pc + 1]] = result;
+					
+					break;
+					
+				}
+				default:
+					throw new IllegalStateException("Unknown opcode " + code[pc]);
+				}
+				
+				pc += WIDTH;
+				
+			}
+			
+		} finally {
+			
+			// Whatever the calls it made threw out of
+			while(calls > entry)
+				environments[--calls] = null;
+			
+		}
+		
+	}
+	
+	/**
+	 * Saves where a call was made from, to go back there once </br>
+	 * the function it called returns
+	 */
+	private void push(Program program, int pc, int base, Environment environment, int stackNum) {
+		
+		if(calls == programs.length) {
+			programs = Arrays.copyOf(programs, calls * 2);
+			pcs = Arrays.copyOf(pcs, calls * 2);
+			bases = Arrays.copyOf(bases, calls * 2);
+			environments = Arrays.copyOf(environments, calls * 2);
+			stackNums = Arrays.copyOf(stackNums, calls * 2);
+		}
+		
+		programs[calls] = program;
+		pcs[calls] = pc;
+		bases[calls] = base;
+		environments[calls] = environment;
+		stackNums[calls] = stackNum;
+		
+		calls++;
+		
+	}
+	
+	/**
+	 * Checks both operands of an arithmetic or comparison </br>
+	 * operator are numbers, looking up the operator's token </br>
+	 * only if they aren't
+	 *
+	 * @return the left one
+	 */
+	private double left(long[] registers, int left, int right, Token[] tokens, int pc) {
+		
+		if(!Value.isNumber(registers[left]) || !Value.isNumber(registers[right]))
+			interpreter.checkNumberOperand(tokens[pc / WIDTH], box(registers[left]), box(registers[right]));
+		
+		return Value.asNumber(registers[left]);
+		
+	}
+	
+	private boolean equal(long left, long right) {
+		
+		if(Value.isNumber(left) && Value.isNumber(right))
+			return Double.doubleToLongBits(Value.asNumber(left)) == Double.doubleToLongBits(Value.asNumber(right));
+		
+		if(!Value.isObject(left) && !Value.isObject(right))
+			return left == right;
+		
+		return interpreter.isEqual(box(left), box(right));
+		
+	}
+	
+	/**
+	 * Calls anything that doesn't run here, with the arguments </br>
+	 * in the registers after the callee's
+	 *
+	 * @return what it returned
+	 */
+	private long call(Object callee, int register, int arguments, Token paren, Environment environment) {
+		
+		int stackNum = interpreter.incrementStack(paren);
+		
+		List<Object> values = new ArrayList<>(arguments);
+		for(int i = 0; i < arguments; i++)
+			values.add(box(stack[register + 1 + i]));
+		
+		long result = unbox(ClosureCompiler.call(interpreter, environment, paren, callee, values));
+		
+		interpreter.decrementStack(stackNum);
+		
+		return result;
+		
+	}
+	
+	private Object box(long value) {
+		
+		if(Value.isNumber(value))
+			return Value.asNumber(value);
+		
+		if(value == Value.NIL)
+			return null;
+		if(value == Value.TRUE)
+			return true;
+		if(value == Value.FALSE)
+			return false;
+		
+		return objects[Value.index(value)];
+		
+	}
+	
+	private long unbox(Object value) {
+		
+		if(value instanceof Double)
+			return Double.doubleToLongBits((double) value);
+		
+		if(value == null)
+			return Value.NIL;
+		if(value instanceof Boolean)
+			return Value.bool((boolean) value);
+		
+		return reference(value);
+		
+	}
+	
+	/**
+	 * @return the object, put in the object table
+	 */
+	private long reference(Object value) {
+		
+		if(count == objects.length) {
+			// An outer call may be in the middle of an instruction, holding indices no register has
+			if(entries > 1)
+				objects = Arrays.copyOf(objects, objects.length * 2);
+			else
+				collect();
+		}
+		
+		objects[count] = value;
+		
+		return Value.object(count++);
+		
+	}
+	
+	/**
+	 * Drops every object no register refers to, moving the </br>
+	 * rest down, and grows the table if it's still half full
+	 */
+	private void collect() {
+		
+		Object[] live = new Object[objects.length];
+		int kept = 0;
+		
+		int[] moved = new int[count];
+		Arrays.fill(moved, -1);
+		
+		for(int i = 0; i < top; i++) {
+			
+			if(!Value.isObject(stack[i]))
+				continue;
+			
+			int index = Value.index(stack[i]);
+			
+			if(moved[index] < 0) {
+				live[kept] = objects[index];
+				moved[index] = kept++;
+			}
+			
+			stack[i] = Value.object(moved[index]);
+			
+		}
+		
+		if(kept > objects.length / 2)
+			live = Arrays.copyOf(live, objects.length * 2);
+		
+		objects = live;
+		count = kept;
+		
+	}
+	
+}
@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A {@link ClosureCompiler} that compiles the bodies of </br>
+ * functions into bytecode for the {@link Vm} when it can run </br>
+ * them, see {@link Assembler}. Everything else is closures
+ *
+ * @author dragonfire
+ *
+ */
+final class VmCompiler extends ClosureCompiler {
+	
+	VmCompiler(Interpreter resolutions) {
+		
+		super(resolutions);
+	}
+	
+	@Override
+	CompiledStmt body(Stmt.Function stmt) {
+		
+		Vm.Program program = Assembler.assemble(resolutions, stmt.body, stmt.frameSize, stmt.parameterSlots);
+		return (program == null) ? super.body(stmt) : program;
+		
+	}
+	
+	@Override
+	CompiledStmt body(Expr.Lambda expr) {
+		
+		Vm.Program program = Assembler.assemble(resolutions, expr.body, expr.frameSize, expr.parameterSlots);
+		return (program == null) ? super.body(expr) : program;
+		
+	}
+	
+}
@@ -20,7 +20,7 @@ public class GenerateAst {
 			      "Call     : Expr callee, Token paren, List<Expr> arguments",
 			      "Get      : Expr object, Token name",
 			      "Grouping : Expr expression",
-			      "Lambda   : Token start, List<Token> parameters, List<Stmt> body",
+			      "Lambda   : Token start, List<Token> parameters, List<Stmt> body | boolean sharesScope, int frameSize, int[] parameterSlots",
 			      "Literal  : Object value",
 			      "Logical  : Expr left, Token operator, Expr right",
 			      "Set      : Expr object, Token name, Expr value",
@@ -28,14 +28,14 @@ public class GenerateAst {
 			      "This     : Token keyword",
 			      "Unary    : Token operator, Expr right",
 			      "Variable : Token name"
-			    ));
+			    ), "LoxType type");
 		defineAst(outputDir, "Stmt", Arrays.asList(
-				  "Block      : List<Stmt> statements",
+				  "Block      : List<Stmt> statements | boolean sharesScope",
 				  "Catch      : Token keyword, List<Token> errors, Token identifier, Stmt body",
 				  "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
 				  "Exit       : Token keyword, Expr exitCode",
 				  "Expression : Expr expression",
-			      "Function   : Token name, List<Token> parameters, List<Stmt> body",
+			      "Function   : Token name, List<Token> parameters, List<Stmt> body | boolean sharesScope, int slot = -1, int frameSize, int[] parameterSlots",
 			      "If         : Token keyword, Expr condition, Stmt thenBranch, Stmt elseBranch",
 			      "Import     : Token keyword, String file, List<Stmt> body",
 			      "Include    : Token keyword, String file, List<Stmt> body",
@@ -43,22 +43,40 @@ public class GenerateAst {
 			      "Return     : Token keyword, Expr value",
 			      "Throw      : Token keyword, Expr thrown",
 			      "Try        : Token keyword, Stmt body, List<Stmt.Catch> catches, Stmt finallyStmt",
-			      "Var        : Token name, Expr initializer",
+			      "Var        : Token name, Expr initializer | int slot = -1",
 			      "While      : Token keyword, Expr condition, Stmt body"
 			    ));
 		
 	}
 	
-	private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+	/**
+	 * @param common
+	 *            fields every node has, that passes after the </br>
+	 *            parser fill in
+	 */
+	private static void defineAst(String outputDir, String baseName, List<String> types, String... common)
+			throws IOException {
 		
 		String path = outputDir + "/" + baseName + ".java";
 		PrintWriter writer = new PrintWriter(path, "UTF-8");
 		
 		writer.println("package com.craftinginterpreters.lox;");
 		writer.println("");
+		writer.println("import java.io.Serializable;");
 		writer.println("import java.util.List;");
 		writer.println("");
-		writer.println("public abstract class " + baseName + " {");
+		writer.println("// Serializable so a whole interpreter can be saved to an image");
+		writer.println("public abstract class " + baseName + " implements Serializable {");
+		writer.println("");
+		writer.println("\tprivate static final long serialVersionUID = 1L;");
+		writer.println("");
+		
+		if(common.length > 0) {
+			writer.println("\t// Filled in after parsing");
+			for(String field : common)
+				writer.println("\t" + field + ";");
+			writer.println("");
+		}
 		
 		defineVisitor(writer, baseName, types);
 		
@@ -90,17 +108,36 @@ public class GenerateAst {
 		writer.println("\t}");
 	}
 	
+	/**
+	 * Fields after a '|' aren't parsed, the resolver fills them in. </br>
+	 * They may start out with a value, like a slot of -1 for none
+	 */
 	private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
 		
 		writer.println("\tstatic class " + className + " extends " + baseName + " {");
 		
+		String[] resolved = new String[0];
+		if(fieldList.contains(" | ")) {
+			resolved = fieldList.split(" \\| ")[1].split(", ");
+			fieldList = fieldList.split(" \\| ")[0];
+		}
+		
 		// Fields
 		String[] fields = fieldList.split(", ");
 		writer.println();
+		writer.println("\t\tprivate static final long serialVersionUID = 1L;");
+		writer.println();
 		for(String field : fields) {
 			writer.println("\t\tfinal " + field + ";");
 		}
 		
+		if(resolved.length > 0) {
+			writer.println();
+			writer.println("\t\t// Set by the resolver");
+			for(String field : resolved)
+				writer.println("\t\t" + field + ";");
+		}
+		
 		// Constructor
 		writer.println();
 		writer.println("\t\t" + className + "(" + fieldList + ") {");